@@ -0,0 +1,40 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that deletes the shared blobs that no project file refers to any
+ * more. It is run by cron (see cron.xml) and is restricted to admins.
+ *
+ */
+public class BlobSweeperServlet extends HttpServlet {
+  private static final Logger LOG = Logger.getLogger(BlobSweeperServlet.class.getName());
+
+  // Most blobs deleted by one request
+  private static final Flag<Integer> maxBlobsPerSweep =
+      Flag.createFlag("blob.sweeper.max.blobs", 500);
+
+  private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    int deleted = storageIo.sweepUnreferencedBlobs(maxBlobsPerSweep.get());
+    LOG.info("Deleted " + deleted + " unreferenced shared blobs");
+    resp.setContentType("text/plain; charset=utf-8");
+    resp.getWriter().println("Deleted " + deleted + " blobs");
+  }
+}
@@ -10,15 +10,20 @@ import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
+import com.google.appinventor.server.util.ModifiedHeaders;
 import com.google.appinventor.shared.rpc.ServerLayout;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -85,6 +90,9 @@ public class DownloadServlet extends OdeServlet {
   // Content type for response header (to avoid security vulnerabilities)
   private static final String CONTENT_TYPE = "text/html; charset=utf-8";
 
+  // The name of the zip of all of a user's projects
+  private static final String ALL_PROJECTS_ZIP_NAME = "all-projects.zip";
+
   private final FileExporter fileExporter = new FileExporterImpl();
 
   @Override
@@ -177,10 +185,9 @@ public class DownloadServlet extends OdeServlet {
         downloadableFile = zipFile.getRawFile();
         
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
-        // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        // Download all project source files as a zip of zips, written straight to the response.
+        writeAllProjectsSourceZip(req, resp, userId);
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -188,7 +195,17 @@ public class DownloadServlet extends OdeServlet {
         long projectId = Long.parseLong(uriComponents[PROJECT_ID_INDEX]);
         String filePath = (uriComponents.length > FILE_PATH_INDEX) ?
             uriComponents[FILE_PATH_INDEX] : null;
+        // A file's content only changes when its project's modification date does, so the date
+        // serves as both the Last-Modified date and the strong ETag of the file.
+        long dateModified = fileExporter.getProjectDateModified(userId, projectId);
+        String etag = "\"" + dateModified + "\"";
+        if (dateModified != 0 && ModifiedHeaders.notModified(req, dateModified, etag)) {
+          ModifiedHeaders.setHeaders(resp, dateModified, etag);
+          resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
         downloadableFile = fileExporter.exportFile(userId, projectId, filePath);
+        ModifiedHeaders.setHeaders(resp, dateModified, etag);
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USERFILE)) {
         // Download a specific user file, such as android.keystore
@@ -221,4 +238,97 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Writes all of the user's projects as a zip of zips. An interrupted download can be resumed
+   * with a "Range: bytes=<start>-" header: the zip is written again and the bytes the client
+   * already has are skipped. The ETag tells whether the projects have changed since, in which
+   * case an If-Range header makes the whole zip be sent again.
+   */
+  private void writeAllProjectsSourceZip(HttpServletRequest req, HttpServletResponse resp,
+      String userId) throws IOException {
+    String etag = "\"" + fileExporter.getAllProjectsSourceZipVersion(userId) + "\"";
+    long start = getResumeOffset(req, etag);
+
+    resp.setHeader("content-disposition", "attachment; filename=\"" + ALL_PROJECTS_ZIP_NAME + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(ALL_PROJECTS_ZIP_NAME));
+    resp.setHeader("ETag", etag);
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (start > 0) {
+      // The length of the zip isn't known until it has been written once.
+      CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+      fileExporter.writeAllProjectsSourceZip(userId, counter);
+      long length = counter.getCount();
+      if (start >= length) {
+        resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        resp.setHeader("Content-Range", "bytes */" + length);
+        return;
+      }
+      resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      resp.setHeader("Content-Range", "bytes " + start + "-" + (length - 1) + "/" + length);
+      resp.setHeader("Content-Length", Long.toString(length - start));
+    } else {
+      resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    OutputStream out = new SkippingOutputStream(resp.getOutputStream(), start);
+    try {
+      fileExporter.writeAllProjectsSourceZip(userId, out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /*
+   * Returns the offset from which the download should be resumed, or 0 if the whole file should
+   * be sent. Only ranges that run to the end of the file are supported.
+   */
+  private static long getResumeOffset(HttpServletRequest req, String etag) {
+    String range = req.getHeader("Range");
+    if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+      return 0;
+    }
+    String ifRange = req.getHeader("If-Range");
+    if (ifRange != null && !ifRange.equals(etag)) {
+      // The file has changed since the client started downloading it.
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(range.substring("bytes=".length(), range.length() - 1)));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /*
+   * A stream that drops the given number of bytes before writing the rest.
+   */
+  private static class SkippingOutputStream extends FilterOutputStream {
+    private long remainingToSkip;
+
+    SkippingOutputStream(OutputStream out, long bytesToSkip) {
+      super(out);
+      remainingToSkip = bytesToSkip;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (remainingToSkip > 0) {
+        remainingToSkip--;
+      } else {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (remainingToSkip >= len) {
+        remainingToSkip -= len;
+        return;
+      }
+      int skip = (int) remainingToSkip;
+      remainingToSkip = 0;
+      out.write(b, off + skip, len - skip);
+    }
+  }
 }
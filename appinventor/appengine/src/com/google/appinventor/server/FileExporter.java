@@ -9,6 +9,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -53,6 +54,24 @@ public interface FileExporter {
                                           boolean includeAndroidKeystore, @Nullable String zipName)
       throws IOException;
 
+  /**
+   * Writes the project source files as a zip to the given stream, one file at a time, so that
+   * the zip is never held in memory. The stream is not closed.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param out the stream to write the zip to
+   * @return the number of zipped files
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files)
+   * @throws IOException if files cannot be written
+   */
+  int writeProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                            boolean includeAndroidKeystore, OutputStream out) throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
@@ -65,6 +84,42 @@ public interface FileExporter {
    */
   ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
 
+  /**
+   * Writes all of the user's projects' source files as a zip of zips to the given stream. The
+   * zip of each project is written as soon as it is ready, and only a few projects are read
+   * at a time. The stream is not closed.
+   *
+   * <p>The same bytes are written every time as long as the user's projects and keystore are
+   * unchanged, which {@link #getAllProjectsSourceZipVersion} tells, so that an interrupted
+   * download can be resumed by writing the zip again.
+   *
+   * @param userId the userId
+   * @param out the stream to write the zip to
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects)
+   * @throws IOException if files cannot be written
+   */
+  int writeAllProjectsSourceZip(String userId, OutputStream out) throws IOException;
+
+  /**
+   * Returns a string that changes whenever the zip written by {@link #writeAllProjectsSourceZip}
+   * for the user changes.
+   *
+   * @param userId the userId
+   */
+  String getAllProjectsSourceZipVersion(String userId);
+
+  /**
+   * Returns the modification date of a project, which changes whenever any of
+   * its files change. It is used to validate cached copies of the files.
+   *
+   * @param userId the userId
+   * @param projectId the project id
+   * @return modification date, or 0 if the user has no such project
+   */
+  long getProjectDateModified(String userId, long projectId);
+
   /**
    * Exports a specific project file.
    *
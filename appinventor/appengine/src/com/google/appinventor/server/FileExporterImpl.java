@@ -5,18 +5,36 @@
 
 package com.google.appinventor.server;
 
-import com.google.common.base.Strings;
+import com.google.appengine.api.ThreadManager;
+import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -27,6 +45,12 @@ import javax.annotation.Nullable;
  *
  */
 public final class FileExporterImpl implements FileExporter {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(FileExporterImpl.class.getName());
+
+  // The number of projects read at the same time when exporting all of a user's projects.
+  private static final Flag<Integer> exportAllParallelism =
+      Flag.createFlag("export.all.parallelism", 4);
 
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
 
@@ -70,48 +94,126 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public int writeProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                                   boolean includeAndroidKeystore, OutputStream out)
+      throws IOException {
+    if (storageIo instanceof ObjectifyStorageIo) {
+      return ((ObjectifyStorageIo)storageIo).writeProjectSourceZip(userId, projectId,
+          includeProjectHistory, includeAndroidKeystore, out);
+    } else {
+      throw new IllegalArgumentException("Objectify only");
+    }
+  }
+
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    StringBuilder metadata = new StringBuilder();
+    int count = writeAllProjectsSourceZip(userId, zipFile, metadata);
+
+    // Package the big zip file up as a ProjectSourceZip and return it.
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), count);
+    projectSourceZip.setMetadata(metadata.toString());
+    return projectSourceZip;
+  }
+
+  @Override
+  public int writeAllProjectsSourceZip(String userId, OutputStream out) throws IOException {
+    return writeAllProjectsSourceZip(userId, out, new StringBuilder());
+  }
+
+  @Override
+  public String getAllProjectsSourceZipVersion(String userId) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (UserProject project : getSortedUserProjects(userId)) {
+      hasher.putLong(project.getProjectId());
+      hasher.putString(project.getProjectName(), Charsets.UTF_8);
+      hasher.putLong(project.getDateModified());
+    }
+    List<String> userFiles = storageIo.getUserFiles(userId);
+    if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
+      hasher.putBytes(
+          storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME));
+    }
+    return hasher.hash().toString();
+  }
+
+  /*
+   * Writes the zip of zips, and appends the name of each project in it to metadata.
+   */
+  private int writeAllProjectsSourceZip(String userId, OutputStream outputStream,
+      StringBuilder metadata) throws IOException {
     // Create a zip file for each project's sources.
-    List<Long> projectIds = storageIo.getProjects(userId);
-    if (projectIds.size() == 0) {
+    List<UserProject> projects = getSortedUserProjects(userId);
+    if (projects.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    // Each project's zip is read by a task. A few tasks run ahead of the one being written, so
+    // that reading the projects overlaps, but no more than that are held in memory.
+    List<FutureTask<byte[]>> tasks = Lists.newArrayListWithCapacity(projects.size());
+    for (UserProject project : projects) {
+      tasks.add(new FutureTask<byte[]>(newExportTask(userId, project.getProjectId())));
+    }
+    ExecutorService executor = newExportExecutor();
+    int parallelism = (executor == null) ? 1 : exportAllParallelism.get();
+
+    ZipOutputStream out = new ZipOutputStream(outputStream);
     int count = 0;
-    String metadata = "";
-    for (Long projectId : projectIds) {
-      try {
-        ProjectSourceZip projectSourceZip =
-            exportProjectSourceZip(userId, projectId, false, false, null);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
+    long lastModified = 0;
+    try {
+      if (executor != null) {
+        for (int i = 0; i < Math.min(parallelism, tasks.size()); i++) {
+          executor.execute(tasks.get(i));
+        }
+      }
+      for (int i = 0; i < tasks.size(); i++) {
+        FutureTask<byte[]> task = tasks.get(i);
+        if (executor == null) {
+          task.run();
+        }
+        UserProject project = projects.get(i);
+        byte[] data;
+        try {
+          data = getExportedZip(task);
+        } catch (IllegalArgumentException e) {
+          LOG.info("No files found for userid: " + userId +
+              " for projectid: " + project.getProjectId());
+          continue;
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "IOException while reading files found for userid: " +
+              userId + " for projectid: " + project.getProjectId(), e);
+          continue;
+        } finally {
+          // Start reading another project now that this one is done.
+          if (executor != null && i + parallelism < tasks.size()) {
+            executor.execute(tasks.get(i + parallelism));
+          }
+        }
+        String name = project.getProjectName() + ".aia";
 
         // If necessary, rename duplicate projects
         while (true) {
           try {
-            out.putNextEntry(new ZipEntry(name));
+            out.putNextEntry(newZipEntry(name, project.getDateModified()));
             break;
           } catch (IOException e) {
             name = "duplicate-" + name;
           }
         }
-        metadata += projectSourceZip.getMetadata() + "\n";
+        metadata.append(project.getProjectName()).append('\n');
 
         out.write(data, 0, data.length);
         out.closeEntry();
+        lastModified = Math.max(lastModified, project.getDateModified());
         count++;
-      } catch (IllegalArgumentException e) {
-        System.err.println("No files found for userid: " + userId +
-            " for projectid: " + projectId);
-        continue;
-      } catch (IOException e) {
-        System.err.println("IOException while reading files found for userid: " +
-            userId + " for projectid: " + projectId);
-        continue;
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
       }
     }
     if (count == 0) {
@@ -123,20 +225,89 @@ public final class FileExporterImpl implements FileExporter {
       byte[] androidKeystoreBytes =
           storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
       if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.putNextEntry(newZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME, lastModified));
         out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
         out.closeEntry();
         count++;
       }
     }
 
-    out.close();
+    // The caller closes the underlying stream.
+    out.finish();
+    return count;
+  }
 
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+  /*
+   * Returns the user's projects in the order they are exported.
+   */
+  private List<UserProject> getSortedUserProjects(String userId) {
+    List<UserProject> projects = Lists.newArrayList(storageIo.getUserProjects(userId));
+    Collections.sort(projects, new Comparator<UserProject>() {
+      @Override
+      public int compare(UserProject a, UserProject b) {
+        return Long.valueOf(a.getProjectId()).compareTo(b.getProjectId());
+      }
+    });
+    return projects;
+  }
+
+  private Callable<byte[]> newExportTask(final String userId, final long projectId) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+        writeProjectSourceZip(userId, projectId, false, false, zipFile);
+        return zipFile.toByteArray();
+      }
+    };
+  }
+
+  /*
+   * Returns an executor for reading projects in parallel, or null if they should be read one at
+   * a time. Threads can only be created through the current request, so there is no executor
+   * outside of a request.
+   */
+  private static ExecutorService newExportExecutor() {
+    int parallelism = exportAllParallelism.get();
+    if (parallelism <= 1) {
+      return null;
+    }
+    ThreadFactory threadFactory;
+    try {
+      threadFactory = ThreadManager.currentRequestThreadFactory();
+    } catch (RuntimeException e) {
+      threadFactory = null;
+    }
+    if (threadFactory == null) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(parallelism, threadFactory);
+  }
+
+  private static byte[] getExportedZip(FutureTask<byte[]> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while exporting projects", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static ZipEntry newZipEntry(String name, long time) {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(time);
+    return entry;
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    if (!storageIo.getProjects(userId).contains(projectId)) {
+      return 0;
+    }
+    return storageIo.getProjectDateModified(userId, projectId);
   }
 
   @Override
@@ -18,8 +18,10 @@ import com.google.appinventor.shared.rpc.project.ProjectService;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -107,12 +109,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public List<UserProject> getProjectInfos() {
     String userId = userInfoProvider.getUserId();
-    List<Long> projectIds = storageIo.getProjects(userId);
-    List<UserProject> projectInfos = Lists.newArrayListWithExpectedSize(projectIds.size());
-    for (Long projectId : projectIds) {
-      projectInfos.add(makeUserProject(userId, projectId));
-    }
-    return projectInfos;
+    return storageIo.getUserProjects(userId);
   }
 
   /**
@@ -271,11 +268,22 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public long save(List<FileDescriptorWithContent> filesAndContent) {
     final String userId = userInfoProvider.getUserId();
-    long date = 0;
+    // Group the files by project so that each project's files are saved in one transaction.
+    // If a file appears more than once, the last content wins.
+    Map<Long, Map<String, String>> contentsByProject = Maps.newLinkedHashMap();
     for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+      long projectId = fileAndContent.getProjectId();
+      Map<String, String> contents = contentsByProject.get(projectId);
+      if (contents == null) {
+        contents = Maps.newLinkedHashMap();
+        contentsByProject.put(projectId, contents);
+      }
+      contents.put(fileAndContent.getFileId(), fileAndContent.getContent());
+    }
+    long date = 0;
+    for (Map.Entry<Long, Map<String, String>> entry : contentsByProject.entrySet()) {
+      long projectId = entry.getKey();
+      date = getProjectRpcImpl(userId, projectId).save(userId, projectId, entry.getValue());
     }
     return date;
   }
@@ -13,7 +13,10 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -190,6 +193,31 @@ public abstract class CommonProjectService {
         content, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Saves the contents of several files of a project in one transaction.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  map from file ID to content to be saved
+   * @return modification date for project
+   */
+  public long save(String userId, long projectId, Map<String, String> contents) {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> entry : contents.entrySet()) {
+      try {
+        files.put(entry.getKey(), entry.getValue().getBytes(StorageUtil.DEFAULT_CHARSET));
+      } catch (UnsupportedEncodingException e) {
+        // StorageUtil.DEFAULT_CHARSET is always supported.
+        throw new IllegalStateException(e);
+      }
+    }
+    long date = 0;
+    for (long fileDate : storageIo.uploadRawFiles(projectId, userId, files).values()) {
+      date = Math.max(date, fileDate);
+    }
+    return date;
+  }
+
   /**
    * Invokes a build command for the project.
    *
@@ -0,0 +1,497 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Sends build requests to the least loaded of a pool of build servers.
+ *
+ * <p>The load of each build server is read from its /buildserver/vars.json page, and is
+ * refreshed when it is older than a few seconds. There are no background threads on App Engine,
+ * so the pages are read while dispatching a build. What is read is shared with the other
+ * instances through memcache, so that only one of them reads the pages at a time. A build server
+ * that can't be contacted, or that rejects a build because it is busy or runs a different
+ * version, is skipped and the build is sent to the next one. A build is never sent to another
+ * build server once one has received all of it, since that one may be building it.
+ */
+final class BuildServerDispatcher {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildServerDispatcher.class.getName());
+
+  // How long the load read from a build server is used before it is read again.
+  private static final long STATS_MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  // How long a build server that can't be contacted is skipped.
+  private static final long UNREACHABLE_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  // How long a build server that is busy is skipped, unless it says otherwise.
+  private static final long BUSY_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  // The timeouts used when reading the load of a build server.
+  private static final int STATS_TIMEOUT_MILLIS = 2000;
+
+  // The timeouts used when sending a build. The build server responds as soon as the build is
+  // queued.
+  private static final int BUILD_CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int BUILD_READ_TIMEOUT_MILLIS = 30000;
+
+  // The load read from each build server, by host, shared by all instances.
+  private static final MemcacheService statsCache =
+      MemcacheServiceFactory.getMemcacheService("buildServerStats");
+
+  // The dispatchers for the values of the build.server.host flag.
+  private static final ConcurrentMap<String, BuildServerDispatcher> dispatchers =
+      new ConcurrentHashMap<String, BuildServerDispatcher>();
+
+  /**
+   * Thrown when none of the build servers could be contacted.
+   */
+  static final class UnreachableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    UnreachableException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /**
+   * Writes the content of a request. The content is written again for each build server that is
+   * tried, so it doesn't have to be held in memory.
+   */
+  interface ContentWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * The response of the build server that handled a request, or of the last build server that
+   * was tried if none of them handled it.
+   */
+  static final class Response {
+    private final String host;
+    private final int responseCode;
+    private final String content;
+
+    Response(String host, int responseCode, String content) {
+      this.host = host;
+      this.responseCode = responseCode;
+      this.content = content;
+    }
+
+    String getHost() {
+      return host;
+    }
+
+    int getResponseCode() {
+      return responseCode;
+    }
+
+    String getContent() {
+      return content;
+    }
+  }
+
+  /*
+   * The health and load read from a build server. Only reachable is set if the build server
+   * couldn't be contacted.
+   */
+  private static final class Stats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final boolean reachable;
+    final boolean healthy;
+    final int activeTasks;
+    final int maxActiveTasks;
+    final int queuedTasks;
+
+    Stats(boolean reachable, boolean healthy, int activeTasks, int maxActiveTasks,
+        int queuedTasks) {
+      this.reachable = reachable;
+      this.healthy = healthy;
+      this.activeTasks = activeTasks;
+      this.maxActiveTasks = maxActiveTasks;
+      this.queuedTasks = queuedTasks;
+    }
+  }
+
+  /*
+   * What is known about one build server.
+   */
+  private static final class BuildServerState {
+    final String host;
+
+    // The following fields are guarded by this.
+    boolean healthy = true;
+    int activeTasks;
+    int maxActiveTasks;  // 0 means unlimited
+    int queuedTasks;
+    long statsMillis;
+    long unavailableUntilMillis = Long.MIN_VALUE;
+
+    BuildServerState(String host) {
+      this.host = host;
+    }
+
+    synchronized boolean isAvailable(long now) {
+      return healthy && now >= unavailableUntilMillis;
+    }
+
+    synchronized boolean needsRefresh(long now) {
+      return now >= unavailableUntilMillis && now - statsMillis > STATS_MAX_AGE_MILLIS;
+    }
+
+    /*
+     * Returns the number of tasks waiting for or using each build slot of the server.
+     */
+    synchronized double getLoad() {
+      // A build server without a limit is ranked by its number of tasks.
+      return (double) (activeTasks + queuedTasks) / Math.max(maxActiveTasks, 1);
+    }
+
+    synchronized void setUnavailable(long now, long millis) {
+      unavailableUntilMillis = now + millis;
+    }
+
+    synchronized void buildStarted() {
+      // Count the build until the load is read again, so that builds dispatched in the meantime
+      // are spread across the build servers.
+      activeTasks++;
+    }
+  }
+
+  /*
+   * The stream of a request, which remembers whether writing to the build server failed, as
+   * opposed to producing the content.
+   */
+  private static final class RequestOutputStream extends FilterOutputStream {
+    boolean failed;
+
+    RequestOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        out.write(b);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+  }
+
+  private final List<BuildServerState> servers;
+
+  /**
+   * Creates a BuildServerDispatcher.
+   *
+   * @param hosts  the host[:port] of each build server
+   */
+  @VisibleForTesting
+  BuildServerDispatcher(List<String> hosts) {
+    ImmutableList.Builder<BuildServerState> builder = ImmutableList.builder();
+    for (String host : hosts) {
+      builder.add(new BuildServerState(host));
+    }
+    servers = builder.build();
+    if (servers.isEmpty()) {
+      throw new IllegalArgumentException("No build servers");
+    }
+  }
+
+  /**
+   * Returns the dispatcher for the given comma separated list of build servers.
+   */
+  static BuildServerDispatcher forHosts(String hosts) {
+    BuildServerDispatcher dispatcher = dispatchers.get(hosts);
+    if (dispatcher == null) {
+      dispatcher = new BuildServerDispatcher(Lists.newArrayList(
+          Splitter.on(',').trimResults().omitEmptyStrings().split(hosts)));
+      BuildServerDispatcher existing = dispatchers.putIfAbsent(hosts, dispatcher);
+      if (existing != null) {
+        dispatcher = existing;
+      }
+    }
+    return dispatcher;
+  }
+
+  /**
+   * Posts the given content to the build servers, least loaded first, until one of them accepts
+   * it.
+   *
+   * @param pathAndQuery  the path and query of the request, e.g. "/buildserver/build-all-from-zip"
+   * @param content  the content of the request
+   * @return the response of the build server that accepted the request, or of the last one that
+   *         rejected it
+   * @throws UnreachableException if none of the build servers could be contacted
+   */
+  Response dispatch(String pathAndQuery, final byte[] content) throws IOException {
+    return dispatch(pathAndQuery, new ContentWriter() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        out.write(content);
+      }
+    });
+  }
+
+  /**
+   * Streams the given content to the build servers, least loaded first, until one of them
+   * accepts it. The content is sent with chunked transfer encoding, so that it doesn't have to be
+   * buffered to find its length.
+   *
+   * @param pathAndQuery  the path and query of the request, e.g. "/buildserver/build-all-from-zip"
+   * @param content  the writer of the content of the request
+   * @return the response of the build server that accepted the request, or of the last one that
+   *         rejected it
+   * @throws UnreachableException if none of the build servers could be contacted
+   * @throws IOException if the content couldn't be written
+   */
+  Response dispatch(String pathAndQuery, ContentWriter content) throws IOException {
+    IOException lastException = null;
+    Response lastResponse = null;
+    for (BuildServerState server : rankServers()) {
+      long now = System.currentTimeMillis();
+      HttpURLConnection connection = null;
+      RequestOutputStream out = null;
+      boolean sent = false;
+      int responseCode;
+      try {
+        connection = (HttpURLConnection) new URL("http://" + server.host + pathAndQuery)
+            .openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setConnectTimeout(BUILD_CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(BUILD_READ_TIMEOUT_MILLIS);
+        connection.setChunkedStreamingMode(0);
+        out = new RequestOutputStream(connection.getOutputStream());
+        try {
+          content.writeTo(out);
+          out.close();
+          sent = true;
+        } finally {
+          if (!sent) {
+            // Drop the connection rather than close the stream, so that the build server doesn't
+            // receive a truncated zip.
+            connection.disconnect();
+          }
+        }
+        responseCode = connection.getResponseCode();
+      } catch (IOException e) {
+        if (sent) {
+          // The build server received the whole request, so it may be building it. Sending it to
+          // another build server could build it twice.
+          LOG.warning("No response from build server " + server.host + ": " + e);
+          throw e;
+        }
+        if (out != null && !out.failed) {
+          // The content couldn't be produced. Another build server wouldn't help.
+          throw e;
+        }
+        LOG.warning("Unable to contact build server " + server.host + ": " + e);
+        server.setUnavailable(now, UNREACHABLE_RETRY_MILLIS);
+        lastException = e;
+        continue;
+      }
+
+      Response response = new Response(server.host, responseCode, readResponse(connection));
+      switch (responseCode) {
+        case HttpURLConnection.HTTP_OK:
+          server.buildStarted();
+          LOG.info("Build server " + server.host + " accepted " + pathAndQuery);
+          return response;
+        case HttpURLConnection.HTTP_UNAVAILABLE:
+          // The build server is busy.
+          server.setUnavailable(now, getRetryAfterMillis(connection));
+          break;
+        case HttpURLConnection.HTTP_CONFLICT:
+          // The build server runs a different version. Another one may run the right one.
+          server.setUnavailable(now, UNREACHABLE_RETRY_MILLIS);
+          break;
+        default:
+          // The build server rejected the request itself, so the others would too.
+          return response;
+      }
+      LOG.info("Build server " + server.host + " rejected the build with response code " +
+          responseCode);
+      lastResponse = response;
+    }
+    if (lastResponse != null) {
+      return lastResponse;
+    }
+    throw new UnreachableException("Unable to contact any of the build servers", lastException);
+  }
+
+  /*
+   * Returns the build servers in the order they should be tried: the available ones, least
+   * loaded first, followed by the others in case they have become available since.
+   */
+  private List<BuildServerState> rankServers() {
+    long now = System.currentTimeMillis();
+    List<BuildServerState> available = Lists.newArrayList();
+    List<BuildServerState> unavailable = Lists.newArrayList();
+    for (BuildServerState server : servers) {
+      if (server.needsRefresh(now)) {
+        refreshStats(server, now);
+      }
+      (server.isAvailable(now) ? available : unavailable).add(server);
+    }
+    Collections.sort(available, new Comparator<BuildServerState>() {
+      @Override
+      public int compare(BuildServerState a, BuildServerState b) {
+        return Double.compare(a.getLoad(), b.getLoad());
+      }
+    });
+    available.addAll(unavailable);
+    return available;
+  }
+
+  /*
+   * Updates the health and load of the given build server, from memcache if another instance has
+   * read them recently, or from the build server otherwise.
+   */
+  private static void refreshStats(BuildServerState server, long now) {
+    Stats stats = (Stats) statsCache.get(server.host);
+    if (stats == null) {
+      stats = readStats(server.host);
+      statsCache.put(server.host, stats, Expiration.byDeltaMillis((int) (stats.reachable
+          ? STATS_MAX_AGE_MILLIS : UNREACHABLE_RETRY_MILLIS)));
+    }
+    if (!stats.reachable) {
+      server.setUnavailable(now, UNREACHABLE_RETRY_MILLIS);
+      return;
+    }
+    synchronized (server) {
+      server.healthy = stats.healthy;
+      server.activeTasks = stats.activeTasks;
+      server.maxActiveTasks = stats.maxActiveTasks;
+      server.queuedTasks = stats.queuedTasks;
+      server.statsMillis = now;
+    }
+  }
+
+  /*
+   * Reads the health and load of the given build server. The load of an unhealthy build server
+   * isn't read, since it isn't used.
+   */
+  private static Stats readStats(String host) {
+    try {
+      if (get(host, "/buildserver/health").getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return new Stats(true, false, 0, 0, 0);
+      }
+      HttpURLConnection connection = get(host, "/buildserver/vars.json");
+      JSONObject vars = new JSONObject(readContent(connection.getInputStream()));
+      return new Stats(true, true, vars.optInt("active-build-tasks"),
+          vars.optInt("maximum-simultaneous-build-tasks-allowed"),
+          vars.optInt("queued-build-tasks"));
+    } catch (IOException e) {
+      LOG.warning("Unable to read the load of build server " + host + ": " + e);
+      return new Stats(false, false, 0, 0, 0);
+    } catch (JSONException e) {
+      LOG.warning("Unable to parse the load of build server " + host + ": " + e);
+      return new Stats(true, true, 0, 0, 0);
+    }
+  }
+
+  private static HttpURLConnection get(String host, String path) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://" + host + path).openConnection();
+    connection.setConnectTimeout(STATS_TIMEOUT_MILLIS);
+    connection.setReadTimeout(STATS_TIMEOUT_MILLIS);
+    return connection;
+  }
+
+  private static long getRetryAfterMillis(HttpURLConnection connection) {
+    String retryAfter = connection.getHeaderField("Retry-After");
+    if (retryAfter != null) {
+      try {
+        return TimeUnit.SECONDS.toMillis(Integer.parseInt(retryAfter.trim()));
+      } catch (NumberFormatException e) {
+        // Use the default.
+      }
+    }
+    return BUSY_RETRY_MILLIS;
+  }
+
+  /*
+   * Reads the content and error content of the response, ignoring any that can't be read.
+   */
+  private static String readResponse(HttpURLConnection connection) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      sb.append(readContent(connection.getInputStream()));
+    } catch (IOException e) {
+      // No content. That's ok.
+    }
+    try {
+      InputStream errorStream = connection.getErrorStream();
+      if (errorStream != null) {
+        if (sb.length() > 0) {
+          sb.append("\n");
+        }
+        sb.append(readContent(errorStream));
+      }
+    } catch (IOException e) {
+      // No error content. That's ok.
+    }
+    return sb.toString();
+  }
+
+  private static String readContent(InputStream stream) throws IOException {
+    InputStreamReader reader = new InputStreamReader(stream, "UTF-8");
+    try {
+      return CharStreams.toString(reader);
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -5,6 +5,9 @@
 
 package com.google.appinventor.server.project.youngandroid;
 
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
@@ -27,8 +30,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidAssetNode;
@@ -46,18 +47,22 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -67,6 +72,7 @@ import java.net.URLEncoder;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 import java.util.logging.Logger;
 
 /**
@@ -77,7 +83,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -109,10 +114,16 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // Comma separated host[:port] of the build servers. Each build is sent to the least loaded one.
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
 
+  // The build server each build was sent to and the ID of the build there, by project and target,
+  // so that the progress of the current build is asked for there.
+  private static final MemcacheService buildServerHosts =
+      MemcacheServiceFactory.getMemcacheService("buildServerHosts");
+  private static final int BUILD_SERVER_HOST_EXPIRATION_SECONDS = 60 * 60;
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -311,42 +322,39 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     newProject.setProjectHistory(oldProjectHistory);
 
     // Get the old project's source files and add them to new project, modifying where necessary.
+    // Map from old file name to new file name for the files that are copied unchanged.
+    Map<String, String> copiedFileNames = Maps.newLinkedHashMap();
     for (String oldSourceFileName : storageIo.getProjectSourceFiles(userId, oldProjectId)) {
-      String newSourceFileName;
-
-      String newContents = null;
       if (oldSourceFileName.equals(PROJECT_PROPERTIES_FILE_NAME)) {
         // This is the project properties file. The name of the file doesn't contain the old
         // project name.
-        newSourceFileName = oldSourceFileName;
         // For the contents of the project properties file, generate the file with the new project
         // name and qualified name.
         String qualifiedFormName = StringUtils.getQualifiedFormName(
             storageIo.getUser(userId).getUserEmail(), newName);
-        newContents = getProjectPropertiesFileContents(newName, qualifiedFormName, icon, vcode, vname, useslocation);
+        String newContents = getProjectPropertiesFileContents(newName, qualifiedFormName, icon, vcode, vname, useslocation);
+        newProject.addTextFile(new TextFile(oldSourceFileName, newContents));
       } else {
         // This is some file other than the project properties file.
         // oldSourceFileName may contain the old project name as a path segment, surrounded by /.
         // Replace the old name with the new name.
-        newSourceFileName = StringUtils.replaceLastOccurrence(oldSourceFileName,
+        String newSourceFileName = StringUtils.replaceLastOccurrence(oldSourceFileName,
             "/" + oldName + "/", "/" + newName + "/");
-      }
-
-      if (newContents != null) {
-        // We've determined (above) that the contents of the file must change for the new project.
-        // Use newContents when adding the file to the new project.
-        newProject.addTextFile(new TextFile(newSourceFileName, newContents));
-      } else {
-        // If we get here, we know that the contents of the file can just be copied from the old
-        // project. Since it might be a binary file, we copy it as a raw file (that works for both
-        // text and binary files).
-        byte[] contents = storageIo.downloadRawFile(userId, oldProjectId, oldSourceFileName);
-        newProject.addRawFile(new RawFile(newSourceFileName, contents));
+        // The contents of the file can just be copied from the old project. The storage copies
+        // them without reading shared blobs, such as the assets.
+        copiedFileNames.put(oldSourceFileName, newSourceFileName);
       }
     }
 
-    // Create the new project and return the new project's id.
-    return storageIo.createProject(userId, newProject, getProjectSettings(icon, vcode, vname, useslocation));
+    // Create the new project, copy the files to it, and return the new project's id.
+    long newProjectId = storageIo.createProject(userId, newProject, getProjectSettings(icon, vcode, vname, useslocation));
+    try {
+      storageIo.copySourceFiles(userId, oldProjectId, newProjectId, copiedFileNames);
+    } catch (RuntimeException e) {
+      storageIo.deleteProject(userId, newProjectId);
+      throw e;
+    }
+    return newProjectId;
   }
 
   @Override
@@ -509,57 +517,35 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     for (String buildOutputFile : buildOutputFiles) {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
-    URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    String buildServerPath = null;
+    BuildServerDispatcher dispatcher = BuildServerDispatcher.forHosts(buildServerHost.get());
+    ProjectZipWriter zipWriter = new ProjectZipWriter(userId, projectId);
+    // The build server's progress endpoint isn't authenticated, so the build ID must not be
+    // guessable.
+    String buildId = UUID.randomUUID().toString();
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
+      buildServerPath = getBuildServerPathStr(
           user.getUserEmail(),
           userId,
           projectId,
-          outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
+          outputFileDir,
+          buildId);
 
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-      FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-          projectName + ".aia");
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = 0;
+      BuildServerDispatcher.Response response;
       try {
-          responseCode = connection.getResponseCode();
-      } catch (IOException e) {
-          throw new CouldNotFetchException();
+        // The zip is streamed from storage to the build server rather than built in memory.
+        response = dispatcher.dispatch(buildServerPath, zipWriter);
+      } catch (BuildServerDispatcher.UnreachableException e) {
+        throw new CouldNotFetchException();
       }
+      int responseCode = response.getResponseCode();
       if (responseCode != HttpURLConnection.HTTP_OK) {
         // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
         // can provide an appropriate error message to the user.
-        // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
-        // responseCode is 503, connection.getResponseMessage() returns "OK", but it should return
-        // "Service Unavailable". If I make the request with curl and look at the headers, they
-        // have the expected error message.
-        // For now, the moral of the story is: don't use connection.getResponseMessage().
-        String error = "Build server responded with response code " + responseCode + ".";
-        try {
-          String content = readContent(connection.getInputStream());
-          if (content != null && !content.isEmpty()) {
-            error += "\n" + content;
-          }
-        } catch (IOException e) {
-          // No content. That's ok.
-        }
-        try {
-          String errorContent = readContent(connection.getErrorStream());
-          if (errorContent != null && !errorContent.isEmpty()) {
-            error += "\n" + errorContent;
-          }
-        } catch (IOException e) {
-          // No error content. That's ok.
+        String error = "Build server " + response.getHost() + " responded with response code "
+            + responseCode + ".";
+        if (!response.getContent().isEmpty()) {
+          error += "\n" + response.getContent();
         }
         if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
           // The build server is not compatible with this App Inventor instance. Log this as severe
@@ -569,28 +555,29 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
         return new RpcResult(responseCode, "", StringUtils.escape(error));
       }
-    } catch (MalformedURLException e) {
-      CrashReport.createAndLogError(LOG, null,
-          buildErrorMsg("MalformedURLException", buildServerUrl, userId, projectId), e);
-      return new RpcResult(false, "", e.getMessage());
+      LOG.info("Building project " + projectId + " for user " + userId + " on build server "
+          + response.getHost());
+      buildServerHosts.put(getBuildKey(userId, projectId, outputFileDir),
+          new BuildLocation(response.getHost(), buildId),
+          Expiration.byDeltaSeconds(BUILD_SERVER_HOST_EXPIRATION_SECONDS));
     } catch (IOException e) {
       CrashReport.createAndLogError(LOG, null,
-          buildErrorMsg("IOException", buildServerUrl, userId, projectId), e);
+          buildErrorMsg("IOException", buildServerPath, userId, projectId), e);
       return new RpcResult(false, "", e.getMessage());
     } catch (CouldNotFetchException e) {
         CrashReport.createAndLogError(LOG, null,
-                buildErrorMsg("CouldNotFetchException", buildServerUrl, userId, projectId), e);
-      return new RpcResult(false, "", " Can not contact the BuildServer at " + buildServerUrl.getHost());
+                buildErrorMsg("CouldNotFetchException", buildServerPath, userId, projectId), e);
+      return new RpcResult(false, "", " Can not contact the BuildServer at " + buildServerHost.get());
     } catch (EncryptionException e) {
       CrashReport.createAndLogError(LOG, null,
-          buildErrorMsg("EncryptionException", buildServerUrl, userId, projectId), e);
+          buildErrorMsg("EncryptionException", buildServerPath, userId, projectId), e);
       return new RpcResult(false, "", e.getMessage());
     } catch (RuntimeException e) {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && zipWriter.getSize() > 0) {
+        long zipFileLength = zipWriter.getSize();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           wrappedException = new IllegalArgumentException(
               "Sorry, can't package projects larger than 5MB."
@@ -601,30 +588,57 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         }
       }
       CrashReport.createAndLogError(LOG, null,
-          buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId), wrappedException);
+          buildErrorMsg("RuntimeException", buildServerPath, userId, projectId), wrappedException);
       return new RpcResult(false, "", wrappedException.getMessage());
     }
     return new RpcResult(true, "Building " + projectName, "");
   }
 
-  private String buildErrorMsg(String exceptionName, URL buildURL, String userId, long projectId) {
+  /*
+   * Writes the source zip of a project, as sent to the build server, and remembers its size.
+   */
+  private static final class ProjectZipWriter implements BuildServerDispatcher.ContentWriter {
+    private final String userId;
+    private final long projectId;
+    private long size;
+
+    ProjectZipWriter(String userId, long projectId) {
+      this.userId = userId;
+      this.projectId = projectId;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      CountingOutputStream countingOut = new CountingOutputStream(out);
+      FileExporter fileExporter = new FileExporterImpl();
+      fileExporter.writeProjectSourceZip(userId, projectId, false,
+          /* includeAndroidKeystore */ true, countingOut);
+      size = countingOut.getCount();
+    }
+
+    long getSize() {
+      return size;
+    }
+  }
+
+  private String buildErrorMsg(String exceptionName, String buildPath, String userId,
+                               long projectId) {
     return "Request to build failed with " + exceptionName + ", user=" + userId
-        + ", project=" + projectId + ", build URL is " + buildURL
-        + " [" + buildURL.toString().length() + "]";
+        + ", project=" + projectId + ", build path is " + buildPath
+        + " [" + (buildPath == null ? 0 : buildPath.length()) + "]";
   }
 
-  // Note that this is a function rather than just a constant because we assume it will get
-  // a little more complicated when we want to get the URL from an App Engine config file or
-  // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
-                                      long projectId, String fileName)
+  // Returns the path and query of the build request, which is sent to one of the build servers.
+  private String getBuildServerPathStr(String userName, String userId,
+                                       long projectId, String fileName, String buildId)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
                  + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
                : "")
+           + "&buildId=" + buildId
            + "&callback="
            + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
                                + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
@@ -633,6 +647,32 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  /*
+   * Returns the memcache key of the current build of the given project and target.
+   */
+  private static String getBuildKey(String userId, long projectId, String fileName) {
+    return Hashing.sha1().newHasher()
+        .putString(userId, Charsets.UTF_8)
+        .putLong(projectId)
+        .putString(fileName, Charsets.UTF_8)
+        .hash().toString();
+  }
+
+  /*
+   * The build server a build was sent to, and the ID under which it records the build's progress.
+   */
+  private static final class BuildLocation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String host;
+    final String buildId;
+
+    BuildLocation(String host, String buildId) {
+      this.host = host;
+      this.buildId = buildId;
+    }
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       String applicationVersionId = SystemProperty.applicationVersion.get();
@@ -677,7 +717,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     String userId = user.getUserId();
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
+    int currentProgress = getCurrentProgress(user, projectId, target);
     RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
@@ -703,17 +743,22 @@ public final class YoungAndroidProjectService extends CommonProjectService {
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @return the percentage of the build that is done, or 0 if it isn't known
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  private int getCurrentProgress(User user, long projectId, String target) {
+    int currentProgress = 0;
     try {
       String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
       String outputFileDir = BUILD_FOLDER + '/' + target;
-      URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
-
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
-        userId, projectId, outputFileDir));
+      // Ask the build server the build was sent to. If the build isn't known, for instance
+      // because the memcache entry was evicted, its progress can't be asked for.
+      BuildLocation location =
+          (BuildLocation) buildServerHosts.get(getBuildKey(userId, projectId, outputFileDir));
+      if (location == null) {
+        return currentProgress;
+      }
+      URL buildServerUrl = new URL("http://" + location.host + getBuildServerPathStr(
+        user.getUserEmail(), userId, projectId, outputFileDir, location.buildId));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
@@ -739,6 +784,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       } catch (RuntimeException e) {
         // that's ok, nothing to do
       }
+    return currentProgress;
   }
 
   /**
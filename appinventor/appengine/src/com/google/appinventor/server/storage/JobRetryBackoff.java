@@ -0,0 +1,183 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server.storage;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how long to wait before retrying a datastore job that failed because
+ * of contention, and keeps the retry statistics.
+ *
+ * <p>The delay grows exponentially with the number of attempts and is
+ * randomized ("full jitter") so that competing writers spread out instead of
+ * retrying in lock step. Conflicts are also counted per entity group; a job on
+ * a group that has recently seen conflicts starts out with a longer delay.
+ *
+ */
+final class JobRetryBackoff {
+  // Recent conflicts on an entity group count half as much after this long.
+  private static final long CONFLICT_HALF_LIFE_MILLIS = 10000;
+
+  // Most attempts that recent conflicts can add to a job's first retry.
+  private static final int MAX_CONTENTION_ATTEMPTS = 4;
+
+  // Entity groups that haven't had a conflict for this long are forgotten.
+  private static final long FORGET_GROUP_MILLIS = 10 * CONFLICT_HALF_LIFE_MILLIS;
+
+  private static final int MAX_TRACKED_GROUPS = 10000;
+
+  /*
+   * The recent conflicts on one entity group, as a count that decays over
+   * time.
+   */
+  private static final class Contention {
+    private double conflicts;
+    private long updatedMillis;
+
+    synchronized double getConflicts(long now) {
+      decay(now);
+      return conflicts;
+    }
+
+    synchronized void conflict(long now) {
+      decay(now);
+      conflicts++;
+    }
+
+    synchronized boolean isStale(long now) {
+      return now - updatedMillis > FORGET_GROUP_MILLIS;
+    }
+
+    private void decay(long now) {
+      if (now > updatedMillis) {
+        conflicts *= Math.pow(0.5, (double) (now - updatedMillis) / CONFLICT_HALF_LIFE_MILLIS);
+        updatedMillis = now;
+      }
+    }
+  }
+
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final Random random;
+  private final ConcurrentMap<String, Contention> contentionByGroup =
+      new ConcurrentHashMap<String, Contention>();
+
+  // Statistics
+  private final AtomicLong jobs = new AtomicLong();
+  private final AtomicLong retriedJobs = new AtomicLong();
+  private final AtomicLong failedJobs = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong retryMillis = new AtomicLong();
+
+  JobRetryBackoff(long baseDelayMillis, long maxDelayMillis, Random random) {
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.random = random;
+  }
+
+  /**
+   * Records a conflict on the given entity group and returns how long to wait
+   * before the next attempt.
+   *
+   * @param entityGroup  the entity group the job writes, or null if unknown
+   * @param attempt  the number of attempts that have failed so far, at least 1
+   * @return delay in milliseconds
+   */
+  long conflict(String entityGroup, int attempt) {
+    return conflict(entityGroup, attempt, System.currentTimeMillis());
+  }
+
+  long conflict(String entityGroup, int attempt, long now) {
+    int exponent = attempt - 1;
+    if (entityGroup != null) {
+      Contention contention = getContention(entityGroup, now);
+      // Conflicts of other jobs make the first retry wait longer.
+      exponent += (int) Math.min(contention.getConflicts(now), MAX_CONTENTION_ATTEMPTS);
+      contention.conflict(now);
+    }
+    long maxDelay = maxDelayMillis;
+    if (exponent < 31) {
+      maxDelay = Math.min(maxDelayMillis, baseDelayMillis << exponent);
+    }
+    return maxDelay <= 0 ? 0 : (long) (random.nextDouble() * (maxDelay + 1));
+  }
+
+  /**
+   * Returns the recent number of conflicts on the given entity group.
+   */
+  double getConflicts(String entityGroup, long now) {
+    Contention contention = contentionByGroup.get(entityGroup);
+    return contention == null ? 0 : contention.getConflicts(now);
+  }
+
+  private Contention getContention(String entityGroup, long now) {
+    Contention contention = contentionByGroup.get(entityGroup);
+    if (contention == null) {
+      if (contentionByGroup.size() >= MAX_TRACKED_GROUPS) {
+        for (Map.Entry<String, Contention> entry : contentionByGroup.entrySet()) {
+          if (entry.getValue().isStale(now)) {
+            contentionByGroup.remove(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      Contention newContention = new Contention();
+      contention = contentionByGroup.putIfAbsent(entityGroup, newContention);
+      if (contention == null) {
+        contention = newContention;
+      }
+    }
+    return contention;
+  }
+
+  /**
+   * Records the outcome of a job.
+   *
+   * @param attempts  number of attempts made
+   * @param millisRetrying  time spent after the first attempt failed
+   * @param succeeded  whether the job was committed
+   */
+  void jobFinished(int attempts, long millisRetrying, boolean succeeded) {
+    jobs.incrementAndGet();
+    if (attempts > 1) {
+      retriedJobs.incrementAndGet();
+      retries.addAndGet(attempts - 1);
+      retryMillis.addAndGet(millisRetrying);
+    }
+    if (!succeeded) {
+      failedJobs.incrementAndGet();
+    }
+  }
+
+  long getJobs() {
+    return jobs.get();
+  }
+
+  long getRetriedJobs() {
+    return retriedJobs.get();
+  }
+
+  long getFailedJobs() {
+    return failedJobs.get();
+  }
+
+  long getRetries() {
+    return retries.get();
+  }
+
+  long getRetryMillis() {
+    return retryMillis.get();
+  }
+
+  @Override
+  public String toString() {
+    return "jobs=" + jobs + ", retriedJobs=" + retriedJobs + ", failedJobs=" + failedJobs
+        + ", retries=" + retries + ", retryMillis=" + retryMillis;
+  }
+}
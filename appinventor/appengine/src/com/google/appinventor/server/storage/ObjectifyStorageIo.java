@@ -27,17 +27,23 @@ import com.google.appinventor.server.storage.StoredData.UserData;
 import com.google.appinventor.server.storage.StoredData.UserFileData;
 import com.google.appinventor.server.storage.StoredData.UserProjectData;
 import com.google.appinventor.server.storage.StoredData.RendezvousData;
+import com.google.appinventor.server.storage.StoredData.SharedBlobData;
 import com.google.appinventor.server.storage.StoredData.WhiteListData;
 import com.google.appinventor.shared.rpc.Motd;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
 import com.googlecode.objectify.Key;
@@ -53,9 +59,15 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -78,19 +90,111 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private static final String DEFAULT_ENCODING = "UTF-8";
 
+  // Blobstore name prefix for blobs shared by files with the same content.
+  private static final String SHARED_BLOB_NAME_PREFIX = "shared/";
+
+  // How long a shared blob is kept after a file was last known to refer to it.
+  // This is much longer than it takes to store a file that refers to the blob
+  // and for the datastore to index the file.
+  private static final long SHARED_BLOB_GRACE_MILLIS = 60 * 60 * 1000;
+
+  // How old SharedBlobData.dateReferenced may get before a new reference
+  // updates it, so that popular blobs are read rather than written.
+  private static final long SHARED_BLOB_REFRESH_MILLIS = 10 * 60 * 1000;
+
   private static final long MOTD_ID = 1;
 
   // TODO(user): need a way to modify this. Also, what is really a good value?
   private static final int MAX_JOB_RETRIES = 10;
 
+  // Delays before retrying a job that failed: the first retry waits up to the
+  // base delay, and each further retry waits up to twice as long as the one
+  // before, but never more than the max delay.
+  private static final Flag<Integer> jobRetryBaseDelayMillis =
+      Flag.createFlag("job.retry.base.delay.millis", 20);
+  private static final Flag<Integer> jobRetryMaxDelayMillis =
+      Flag.createFlag("job.retry.max.delay.millis", 1000);
+
+  // Whether to queue and merge this instance's concurrent writes to a project's files.
+  private static final Flag<Boolean> serializeProjectWrites =
+      Flag.createFlag("serialize.project.writes", true);
+
+  @VisibleForTesting
+  final JobRetryBackoff jobRetryBackoff = new JobRetryBackoff(jobRetryBaseDelayMillis.get(),
+      jobRetryMaxDelayMillis.get(), new Random());
+
+  private final ProjectWriteSerializer projectWriteSerializer = new ProjectWriteSerializer();
+
+  // How long users and whitelist membership are remembered in this instance, in
+  // front of memcache.
+  private static final Flag<Integer> localUserCacheSecs =
+      Flag.createFlag("local.user.cache.secs", 10);
+
+  private static final int LOCAL_USER_CACHE_SIZE = 10000;
+
+  // Memcache key prefix for whitelist membership.
+  private static final String WHITELIST_CACHE_KEY = "whitelist|";
+
+  // Size of this instance's cache of project file contents.
+  private static final Flag<Integer> localFileCacheMegs =
+      Flag.createFlag("local.file.cache.megs", 8);
+
+  // Memcache key prefix for project file contents, and the largest content
+  // that is cached (memcache values are limited to 1MB). Larger files, such as
+  // built apks, are always read from storage.
+  private static final String FILE_CACHE_KEY = "file|";
+  private static final int MAX_CACHED_FILE_BYTES = 900 * 1024;
+
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  // Project file contents by projectId|dateModified|fileName, in front of
+  // memcache. Any change to a project changes its modification date, so the
+  // entries never need to be invalidated. downloadRawFile() returns copies.
+  private final Cache<String, byte[]> localFiles = CacheBuilder.newBuilder()
+      .maximumWeight(localFileCacheMegs.get() * 1024L * 1024L)
+      .weigher(new Weigher<String, byte[]>() {
+        @Override
+        public int weigh(String key, byte[] content) {
+          return key.length() + content.length;
+        }
+      })
+      .build();
+
+  // Users by user id. getUser() returns copies, since callers modify the users.
+  private final Cache<String, User> localUsers = CacheBuilder.newBuilder()
+      .maximumSize(LOCAL_USER_CACHE_SIZE)
+      .expireAfterWrite(localUserCacheSecs.get(), TimeUnit.SECONDS)
+      .build();
+
+  // Whitelist membership by lower case email.
+  private final Cache<String, Boolean> localWhiteList = CacheBuilder.newBuilder()
+      .maximumSize(LOCAL_USER_CACHE_SIZE)
+      .expireAfterWrite(localUserCacheSecs.get(), TimeUnit.SECONDS)
+      .build();
+
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
-  // on "datastore" should be for objects in the same entity group.
+  // on "datastore" should be for objects in the same entity group. Jobs that
+  // write an entity group that is often written concurrently (such as a
+  // project's) should name it, so that the retries can take its contention
+  // into account.
   @VisibleForTesting
   abstract class JobRetryHelper {
+    private final Key<?> entityGroup;
+
+    JobRetryHelper() {
+      this(null);
+    }
+
+    JobRetryHelper(Key<?> entityGroup) {
+      this.entityGroup = entityGroup;
+    }
+
+    Key<?> getEntityGroup() {
+      return entityGroup;
+    }
+
     public abstract void run(Objectify datastore) throws ObjectifyException;
     /*
      * Called before retrying the job. Note that the underlying datastore
@@ -116,6 +220,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(ProjectData.class);
     ObjectifyService.register(UserProjectData.class);
     ObjectifyService.register(FileData.class);
+    ObjectifyService.register(SharedBlobData.class);
     ObjectifyService.register(UserFileData.class);
     ObjectifyService.register(MotdData.class);
     ObjectifyService.register(RendezvousData.class);
@@ -147,9 +252,17 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @Override
   public User getUser(final String userId, final String email) {
+    // Users are looked up in this instance's cache, then in memcache, then in
+    // the datastore. Users who haven't accepted the terms of service, or whose
+    // email has changed, are always read from the datastore.
+    User tuser = localUsers.getIfPresent(userId);
+    if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
+      return tuser.copy();
+    }
     String cachekey = User.usercachekey + "|" + userId;
-    User tuser = (User) memcache.get(cachekey);
+    tuser = (User) memcache.get(cachekey);
     if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
+      localUsers.put(userId, tuser.copy());
       return tuser;
     } else {                    // If not in memcache, or tos
                                 // not yet accepted, fetch from datastore
@@ -175,6 +288,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
     memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
+    localUsers.put(userId, user.copy());
     // The choice of one minute here is arbitrary. getUser() is called on every authenticated
     // RPC call to the system (out of OdeAuthFilter), so using memcache will save a significant
     // number of calls to the datastore. If someone is idle for more then a minute, it isn't
@@ -210,6 +324,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    invalidateUser(userId);
   }
 
   @Override
@@ -228,6 +343,16 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    invalidateUser(userId);
+  }
+
+  /*
+   * Removes a user from the caches, so that the next getUser() reads it from
+   * the datastore. Other instances may keep their copy until it expires.
+   */
+  private void invalidateUser(String userId) {
+    localUsers.invalidate(userId);
+    memcache.delete(User.usercachekey + "|" + userId);
   }
 
   @Override
@@ -274,8 +399,11 @@ public class ObjectifyStorageIo implements  StorageIo {
   public long createProject(final String userId, final Project project,
       final String projectSettings) {
     final Result<Long> projectId = new Result<Long>();
+    final Result<Long> date = new Result<Long>();
     final List<String> blobsToDelete = new ArrayList<String>();
     final List<FileData> addedFiles = new ArrayList<FileData>();
+    // The shared blobs, by file name, that the project's files will refer to.
+    final Map<String, SharedBlobData> sharedBlobs = acquireSharedBlobs(userId, project);
 
     try {
       // first job is on the project entity, creating the ProjectData object
@@ -283,11 +411,11 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
-          long date = System.currentTimeMillis();
+          date.t = System.currentTimeMillis();
           ProjectData pd = new ProjectData();
           pd.id = null;  // let Objectify auto-generate the project id
-          pd.dateCreated = date;
-          pd.dateModified = date;
+          pd.dateCreated = date.t;
+          pd.dateModified = date.t;
           pd.history = project.getProjectHistory();
           pd.name = project.getProjectName();
           pd.settings = projectSettings;
@@ -307,7 +435,8 @@ public class ObjectifyStorageIo implements  StorageIo {
             for (TextFile file : project.getSourceFiles()) {
               try {
                 addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE,
-                    file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING)));
+                    file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING),
+                    sharedBlobs.get(file.getFileName())));
               } catch (BlobWriteException e) {
                 rememberBlobsToDelete();
                 // Note that this makes the BlobWriteException fatal. The job will
@@ -323,7 +452,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           for (RawFile file : project.getRawSourceFiles()) {
             try {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, file.getFileName(),
-                  file.getContent()));
+                  file.getContent(), sharedBlobs.get(file.getFileName())));
             } catch (BlobWriteException e) {
               rememberBlobsToDelete();
               // Note that this makes the BlobWriteException fatal. The job will
@@ -342,7 +471,8 @@ public class ObjectifyStorageIo implements  StorageIo {
 
         private void rememberBlobsToDelete() {
           for (FileData addedFile : addedFiles) {
-            if (addedFile.isBlob && addedFile.blobstorePath != null) {
+            if (addedFile.isBlob && addedFile.blobstorePath != null
+                && addedFile.blobHash == null) {
               blobsToDelete.add(addedFile.blobstorePath);
             }
           }
@@ -360,12 +490,15 @@ public class ObjectifyStorageIo implements  StorageIo {
           upd.settings = projectSettings;
           upd.state = UserProjectData.StateEnum.OPEN;
           upd.userKey = userKey(userId);
+          upd.name = project.getProjectName();
+          upd.type = project.getProjectType();
+          upd.dateCreated = date.t;
           datastore.put(upd);
         }
       });
     } catch (ObjectifyException e) {
       for (FileData addedFile : addedFiles) {
-        if (addedFile.isBlob && addedFile.blobstorePath != null) {
+        if (addedFile.isBlob && addedFile.blobstorePath != null && addedFile.blobHash == null) {
           blobsToDelete.add(addedFile.blobstorePath);
         }
       }
@@ -384,18 +517,48 @@ public class ObjectifyStorageIo implements  StorageIo {
     return projectId.t;
   }
 
+  /*
+   * Acquires the shared blobs for those of the project's source files that
+   * are stored in shared blobs. Returns the blobs by file name.
+   */
+  private Map<String, SharedBlobData> acquireSharedBlobs(String userId, Project project) {
+    Map<String, SharedBlobData> sharedBlobs = new HashMap<String, SharedBlobData>();
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        if (useSharedBlobForFile(file.getFileName())) {
+          sharedBlobs.put(file.getFileName(),
+              acquireSharedBlob(file.getContent().getBytes(DEFAULT_ENCODING)));
+        }
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        if (useSharedBlobForFile(file.getFileName())) {
+          sharedBlobs.put(file.getFileName(), acquireSharedBlob(file.getContent()));
+        }
+      }
+    } catch (Exception e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "user=" + userId + ", project=" + project.getProjectName(), e);
+    }
+    return sharedBlobs;
+  }
+
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
    *  the database.
    */
   private FileData createRawFile(Key<ProjectData> projectKey, FileData.RoleEnum role,
-      String fileName, byte[] content) throws BlobWriteException, ObjectifyException {
+      String fileName, byte[] content, SharedBlobData sharedBlob)
+      throws BlobWriteException, ObjectifyException {
     FileData file = new FileData();
     file.fileName = fileName;
     file.projectKey = projectKey;
     file.role = role;
-    if (useBlobstoreForFile(fileName)) {
+    if (sharedBlob != null) {
+      file.isBlob = true;
+      file.blobstorePath = sharedBlob.blobstorePath;
+      file.blobHash = sharedBlob.hash;
+    } else if (useBlobstoreForFile(fileName)) {
       file.isBlob = true;
       file.blobstorePath = uploadToBlobstore(content, makeBlobName(projectKey.getId(), fileName));
     } else {
@@ -426,8 +589,10 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           Key<ProjectData> projectKey = projectKey(projectId);
           Query<FileData> fdq = datastore.query(FileData.class).ancestor(projectKey);
+          blobPaths.clear();
           for (FileData fd: fdq) {
-            if (fd.isBlob) {
+            // Shared blobs are left for sweepUnreferencedBlobs.
+            if (fd.isBlob && fd.blobHash == null) {
               blobPaths.add(fd.blobstorePath);
             }
           }
@@ -467,6 +632,79 @@ public class ObjectifyStorageIo implements  StorageIo {
     return projects;
   }
 
+  @Override
+  public List<UserProject> getUserProjects(final String userId) {
+    final List<UserProjectData> summaries = new ArrayList<UserProjectData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          summaries.clear();
+          Key<UserData> userKey = userKey(userId);
+          for (UserProjectData upd : datastore.query(UserProjectData.class).ancestor(userKey)) {
+            summaries.add(upd);
+          }
+        }
+      });
+      return fillInProjectSummaries(userId, summaries);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+  }
+
+  /*
+   * Returns the user's projects. Their modification dates are read with a single batch get of
+   * their ProjectData. The summaries of projects created before the summaries were kept are
+   * filled in from the same get, and saved.
+   */
+  private List<UserProject> fillInProjectSummaries(final String userId,
+      List<UserProjectData> summaries) throws ObjectifyException {
+    List<Key<ProjectData>> projectKeys = new ArrayList<Key<ProjectData>>();
+    for (UserProjectData upd : summaries) {
+      projectKeys.add(projectKey(upd.projectId));
+    }
+    // The projects are in different entity groups, so they are read outside of a transaction.
+    Map<Key<ProjectData>, ProjectData> projects = ObjectifyService.begin().get(projectKeys);
+    List<UserProject> userProjects = new ArrayList<UserProject>();
+    final List<UserProjectData> unsummarized = new ArrayList<UserProjectData>();
+    for (UserProjectData upd : summaries) {
+      ProjectData pd = projects.get(projectKey(upd.projectId));
+      if (pd == null) {
+        // The project can't be opened, so it isn't listed.
+        continue;
+      }
+      if (upd.name == null) {
+        upd.name = pd.name;
+        upd.type = pd.type;
+        upd.dateCreated = pd.dateCreated;
+        unsummarized.add(upd);
+      }
+      userProjects.add(new UserProject(upd.projectId, upd.name, upd.type, upd.dateCreated,
+          pd.dateModified));
+    }
+    if (!unsummarized.isEmpty()) {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          Key<UserData> userKey = userKey(userId);
+          List<UserProjectData> updated = new ArrayList<UserProjectData>();
+          for (UserProjectData upd : unsummarized) {
+            UserProjectData current = datastore.find(userProjectKey(userKey, upd.projectId));
+            // Leave deleted projects alone.
+            if (current != null) {
+              current.name = upd.name;
+              current.type = upd.type;
+              current.dateCreated = upd.dateCreated;
+              updated.add(current);
+            }
+          }
+          datastore.put(updated);  // batch put
+        }
+      });
+    }
+    return userProjects;
+  }
+
   @Override
   public String loadProjectSettings(final String userId, final long projectId) {
     if (!getProjects(userId).contains(projectId)) {
@@ -498,7 +736,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void storeProjectSettings(final String userId, final long projectId,
       final String settings) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           ProjectData pd = datastore.find(projectKey(projectId));
@@ -814,7 +1052,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           new UnauthorizedAccessException(userId, projectId, null));
     }
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
@@ -835,7 +1073,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           new UnauthorizedAccessException(userId, projectId, null));
     }
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
@@ -884,23 +1122,27 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+              fileNames);
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    if (!changeModDate) {
+      invalidateCachedFiles(projectId, fileNames);
+    }
   }
 
   @Override
   public void removeOutputFilesFromProject(final String userId, final long projectId,
       final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
@@ -910,6 +1152,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    invalidateCachedFiles(projectId, fileNames);
   }
 
   private void removeFilesFromProject(Objectify datastore, long projectId,
@@ -1005,6 +1248,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     long modDate = System.currentTimeMillis();
     ProjectData pd = datastore.find(projectKey(projectId));
     if (pd != null) {
+      // The date always changes, since cached file contents are keyed by it.
+      modDate = Math.max(modDate, pd.dateModified + 1);
       pd.dateModified = modDate;
       datastore.put(pd);
       return modDate;
@@ -1017,57 +1262,135 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long uploadRawFile(final long projectId, final String fileName, final String userId,
       final byte[] content) {
+    return uploadRawFiles(projectId, userId, Collections.singletonMap(fileName, content))
+        .get(fileName);
+  }
+
+  @Override
+  public Map<String, Long> uploadRawFiles(final long projectId, final String userId,
+      Map<String, byte[]> files) {
+    long modTime;
+    if (serializeProjectWrites.get()) {
+      modTime = projectWriteSerializer.write(projectId, files,
+          new ProjectWriteSerializer.Writer() {
+            @Override
+            public long write(Map<String, byte[]> files) {
+              return writeRawFiles(projectId, userId, files);
+            }
+          });
+    } else {
+      modTime = writeRawFiles(projectId, userId, files);
+    }
+    Map<String, Long> modTimes = new LinkedHashMap<String, Long>();
+    for (String fileName : files.keySet()) {
+      modTimes.put(fileName, modTime);
+    }
+    return modTimes;
+  }
+
+  private long writeRawFiles(final long projectId, final String userId,
+      final Map<String, byte[]> files) {
     final Result<Long> modTime = new Result<Long>();
-    final boolean useBlobstore = useBlobstoreForFile(fileName);
-    final Result<String> oldBlobstorePath = new Result<String>();
+    // Blobs replaced by the committed job, and blobs written by jobs that failed.
+    final List<String> oldBlobstorePaths = new ArrayList<String>();
+    final List<String> orphanedBlobstorePaths = new ArrayList<String>();
+    // Shared blobs that the files will refer to
+    final Map<String, SharedBlobData> sharedBlobs = new HashMap<String, SharedBlobData>();
+    String fileNames = files.keySet().toString();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        FileData fd;
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        if (useSharedBlobForFile(file.getKey())) {
+          try {
+            sharedBlobs.put(file.getKey(), acquireSharedBlob(file.getValue()));
+          } catch (BlobWriteException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(userId, projectId, file.getKey()), e);
+          }
+        }
+      }
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
+        final List<String> newBlobstorePaths = new ArrayList<String>();
 
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
-          fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
-          Preconditions.checkState(fd != null);
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstorePath.t = fd.blobstorePath;
+          oldBlobstorePaths.clear();
+          newBlobstorePaths.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+          for (String fileName : files.keySet()) {
+            fileKeys.add(projectFileKey(projectKey, fileName));
           }
-          if (useBlobstore) {
-            fd.isBlob = true;
-            try {
-              fd.blobstorePath = uploadToBlobstore(content, makeBlobName(projectId, fileName));
-            } catch (BlobWriteException e) {
-              // Note that this makes the BlobWriteException fatal. The job will
-              // not be retried if we get this exception.
-              throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
+          // Read all of the files first (batch get), so that nothing is written to the blobstore
+          // unless every file exists.
+          Map<Key<FileData>, FileData> fileDatas = datastore.get(fileKeys);
+          Preconditions.checkState(fileDatas.size() == fileKeys.size());
+          List<FileData> updatedFiles = new ArrayList<FileData>();
+          int i = 0;
+          for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String fileName = file.getKey();
+            byte[] content = file.getValue();
+            FileData fd = fileDatas.get(fileKeys.get(i++));
+            // Shared blobs are left for sweepUnreferencedBlobs.
+            if (fd.isBlob && fd.blobHash == null) {
+              // mark the old blobstore blob for deletion
+              oldBlobstorePaths.add(fd.blobstorePath);
             }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-          } else {
-            fd.content = content;
+            fd.blobHash = null;
+            SharedBlobData sharedBlob = sharedBlobs.get(fileName);
+            if (sharedBlob != null) {
+              fd.isBlob = true;
+              fd.blobstorePath = sharedBlob.blobstorePath;
+              fd.blobHash = sharedBlob.hash;
+              fd.content = null;
+            } else if (useBlobstoreForFile(fileName)) {
+              fd.isBlob = true;
+              try {
+                fd.blobstorePath = uploadToBlobstore(content, makeBlobName(projectId, fileName));
+                newBlobstorePaths.add(fd.blobstorePath);
+              } catch (BlobWriteException e) {
+                // Note that this makes the BlobWriteException fatal. The job will
+                // not be retried if we get this exception.
+                orphanedBlobstorePaths.addAll(newBlobstorePaths);
+                throw CrashReport.createAndLogError(LOG, null,
+                    collectProjectErrorInfo(userId, projectId, fileName), e);
+              }
+              // If the content was previously stored in the datastore, clear it out.
+              fd.content = null;
+            } else {
+              fd.isBlob = false;
+              fd.content = content;
+            }
+            updatedFiles.add(fd);
           }
-          datastore.put(fd);
+          datastore.put(updatedFiles);  // batch put
+          // The project's modification date is read and written once for all the files.
           modTime.t = updateProjectModDate(datastore, projectId);
         }
 
         @Override
         public void onNonFatalError() {
-          if (fd != null && fd.blobstorePath != null) {
-            oldBlobstorePath.t = fd.blobstorePath;
-          }
+          orphanedBlobstorePaths.addAll(newBlobstorePaths);
+          newBlobstorePaths.clear();
         }
       });
-      // It would have been convenient to delete the old blobstore file within the run() method
-      // above but that caused an exception where the app engine datastore claimed to be doing
-      // operations on multiple entity groups within the same transaction.  Apparently the blobstore
-      // operations are, at least partially, also datastore operations.
-      if (oldBlobstorePath.t != null) {
-        deleteBlobstoreFile(oldBlobstorePath.t);
-      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
+          collectProjectErrorInfo(userId, projectId, fileNames), e);
+    } finally {
+      // It would have been convenient to delete the old blobstore files within the run() method
+      // above but that caused an exception where the app engine datastore claimed to be doing
+      // operations on multiple entity groups within the same transaction.  Apparently the
+      // blobstore operations are, at least partially, also datastore operations.
+      for (String blobstorePath : orphanedBlobstorePaths) {
+        deleteBlobstoreFile(blobstorePath);
+      }
+    }
+    for (String blobstorePath : oldBlobstorePaths) {
+      deleteBlobstoreFile(blobstorePath);
+    }
+    // The files just written are likely to be read again, e.g. when the project is reopened.
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      cacheFileContent(projectId, file.getKey(), modTime.t, file.getValue());
     }
     return modTime.t;
   }
@@ -1111,6 +1434,235 @@ public class ObjectifyStorageIo implements  StorageIo {
     return blobstoreFile.getFullPath();
   }
 
+  /*
+   * Returns whether the file's content is stored in a blob shared with the
+   * other files that have the same content. These are the assets, which are
+   * often the same in many projects (e.g. those imported from a template).
+   */
+  private boolean useSharedBlobForFile(String fileName) {
+    return fileName.contains("assets/");
+  }
+
+  private static String contentHash(byte[] content) {
+    return Hashing.sha1().hashBytes(content).toString();
+  }
+
+  /*
+   * Returns the shared blob for the given content, writing the content to the
+   * blobstore if no file has it yet. The blob is kept at least
+   * SHARED_BLOB_GRACE_MILLIS - SHARED_BLOB_REFRESH_MILLIS, so a file that
+   * refers to it must be stored well within that time. Nothing needs to be
+   * released if the file isn't stored.
+   *
+   * Note: this must be called outside of any transaction.
+   */
+  private SharedBlobData acquireSharedBlob(byte[] content)
+      throws BlobWriteException, ObjectifyException {
+    String hash = contentHash(content);
+    SharedBlobData blob = acquireExistingSharedBlob(hash);
+    if (blob != null) {
+      return blob;
+    }
+    final String newBlobstorePath = uploadToBlobstore(content, SHARED_BLOB_NAME_PREFIX + hash);
+    blob = referenceSharedBlob(hash, newBlobstorePath);
+    if (!newBlobstorePath.equals(blob.blobstorePath)) {
+      // Another request stored the same content at the same time.
+      deleteBlobstoreFile(newBlobstorePath);
+    }
+    return blob;
+  }
+
+  /*
+   * Returns an existing shared blob, like acquireSharedBlob, or null if there
+   * is no blob with the given hash.
+   */
+  private SharedBlobData acquireExistingSharedBlob(String hash) throws ObjectifyException {
+    return referenceSharedBlob(hash, null);
+  }
+
+  /*
+   * Records that a file is about to refer to the shared blob with the given
+   * hash, so that the blob isn't swept. If there is no such blob, it is
+   * created with the given blobstore path, or if that is null, null is
+   * returned. This is idempotent, so a job that is retried after it committed
+   * does no harm.
+   */
+  private SharedBlobData referenceSharedBlob(final String hash,
+      final String newBlobstorePath) throws ObjectifyException {
+    // Most references are to blobs that were referred to recently; those are only read.
+    SharedBlobData storedBlob = ObjectifyService.begin().find(sharedBlobKey(hash));
+    if (storedBlob == null && newBlobstorePath == null) {
+      return null;
+    }
+    if (storedBlob != null
+        && storedBlob.dateReferenced >= System.currentTimeMillis() - SHARED_BLOB_REFRESH_MILLIS) {
+      return storedBlob;
+    }
+    final Result<SharedBlobData> blob = new Result<SharedBlobData>();
+    try {
+      runJobWithRetries(new JobRetryHelper(sharedBlobKey(hash)) {
+        @Override
+        public void run(Objectify datastore) {
+          blob.t = datastore.find(sharedBlobKey(hash));
+          if (blob.t == null) {
+            if (newBlobstorePath == null) {
+              return;
+            }
+            blob.t = new SharedBlobData();
+            blob.t.hash = hash;
+            blob.t.blobstorePath = newBlobstorePath;
+          }
+          blob.t.dateReferenced = Math.max(blob.t.dateReferenced, System.currentTimeMillis());
+          datastore.put(blob.t);
+        }
+      });
+    } catch (ObjectifyException e) {
+      if (newBlobstorePath == null) {
+        throw e;
+      }
+      // The job may have committed even though it failed, so the new blob is
+      // only deleted if the shared blob doesn't refer to it.
+      try {
+        storedBlob = ObjectifyService.begin().find(sharedBlobKey(hash));
+      } catch (RuntimeException e2) {
+        LOG.log(Level.WARNING, "Unable to check shared blob " + hash
+            + ", leaving " + newBlobstorePath, e2);
+        throw e;
+      }
+      if (storedBlob != null && newBlobstorePath.equals(storedBlob.blobstorePath)) {
+        return storedBlob;
+      }
+      deleteBlobstoreFile(newBlobstorePath);
+      throw e;
+    }
+    return blob.t;
+  }
+
+  @Override
+  public int sweepUnreferencedBlobs(int maxBlobs) {
+    final long cutoff = System.currentTimeMillis() - SHARED_BLOB_GRACE_MILLIS;
+    int deleted = 0;
+    Objectify ofy = ObjectifyService.begin();
+    Query<SharedBlobData> query = ofy.query(SharedBlobData.class)
+        .filter("dateReferenced <", cutoff).limit(maxBlobs);
+    for (final SharedBlobData candidate : query) {
+      // The files are the blob's references. A file that acquired the blob before the cutoff
+      // has been stored and indexed by now.
+      final boolean referenced =
+          ofy.query(FileData.class).filter("blobHash", candidate.hash).getKey() != null;
+      final Result<String> blobstorePath = new Result<String>();
+      try {
+        runJobWithRetries(new JobRetryHelper(sharedBlobKey(candidate.hash)) {
+          @Override
+          public void run(Objectify datastore) {
+            // Check again, in case the blob has been acquired since the query.
+            SharedBlobData blob = datastore.find(sharedBlobKey(candidate.hash));
+            blobstorePath.t = null;
+            if (blob != null && blob.dateReferenced < cutoff) {
+              if (referenced) {
+                // Don't check the blob again until the grace period has passed.
+                blob.dateReferenced = System.currentTimeMillis();
+                datastore.put(blob);
+              } else {
+                datastore.delete(blob);
+                blobstorePath.t = blob.blobstorePath;
+              }
+            }
+          }
+        });
+      } catch (ObjectifyException e) {
+        CrashReport.createAndLogError(LOG, null, "Error sweeping shared blob " + candidate.hash,
+            e);
+        continue;
+      }
+      if (blobstorePath.t != null) {
+        deleteBlobstoreFile(blobstorePath.t);
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  @Override
+  public void copySourceFiles(final String userId, final long fromProjectId,
+      final long toProjectId, final Map<String, String> fileNames) {
+    List<Long> projects = getProjects(userId);
+    if (!projects.contains(fromProjectId) || !projects.contains(toProjectId)) {
+      long projectId = projects.contains(fromProjectId) ? toProjectId : fromProjectId;
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    final List<FileData> oldFiles = new ArrayList<FileData>();
+    final List<FileData> newFiles = new ArrayList<FileData>();
+    // Blobs written for the copies
+    final List<String> newBlobstorePaths = new ArrayList<String>();
+    boolean committed = false;
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          Key<ProjectData> projectKey = projectKey(fromProjectId);
+          List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+          for (String fileName : fileNames.keySet()) {
+            fileKeys.add(projectFileKey(projectKey, fileName));
+          }
+          oldFiles.clear();
+          oldFiles.addAll(datastore.get(fileKeys).values());
+          Preconditions.checkState(oldFiles.size() == fileKeys.size());
+        }
+      });
+      Key<ProjectData> newProjectKey = projectKey(toProjectId);
+      for (FileData oldFile : oldFiles) {
+        String newFileName = fileNames.get(oldFile.fileName);
+        SharedBlobData sharedBlob = null;
+        if (oldFile.blobHash != null) {
+          // Only the reference is copied, not the content.
+          sharedBlob = acquireExistingSharedBlob(oldFile.blobHash);
+          Preconditions.checkState(sharedBlob != null);
+        } else if (useSharedBlobForFile(newFileName)) {
+          sharedBlob = acquireSharedBlob(oldFile.isBlob
+              ? getBlobstoreBytes(oldFile.blobstorePath)
+              : oldFile.content);
+        }
+        if (sharedBlob != null) {
+          newFiles.add(createRawFile(newProjectKey, FileData.RoleEnum.SOURCE, newFileName, null,
+              sharedBlob));
+        } else {
+          FileData newFile = createRawFile(newProjectKey, FileData.RoleEnum.SOURCE, newFileName,
+              oldFile.isBlob ? getBlobstoreBytes(oldFile.blobstorePath) : oldFile.content, null);
+          if (newFile.isBlob) {
+            newBlobstorePaths.add(newFile.blobstorePath);
+          }
+          newFiles.add(newFile);
+        }
+      }
+      runJobWithRetries(new JobRetryHelper(newProjectKey) {
+        @Override
+        public void run(Objectify datastore) {
+          datastore.put(newFiles);  // batch put
+          updateProjectModDate(datastore, toProjectId);
+        }
+      });
+      committed = true;
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, toProjectId), e);
+    } catch (BlobReadException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, fromProjectId), e);
+    } catch (BlobWriteException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, toProjectId), e);
+    } finally {
+      if (!committed) {
+        for (String blobstorePath : newBlobstorePaths) {
+          deleteBlobstoreFile(blobstorePath);
+        }
+      }
+    }
+  }
+
   @VisibleForTesting
   boolean useBlobstoreForFile(String fileName) {
     return fileName.contains("assets/")
@@ -1129,12 +1681,14 @@ public class ObjectifyStorageIo implements  StorageIo {
     final Result<Long> modTime = new Result<Long>();
     final Result<String> oldBlobstorePath = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
           FileData fileData = datastore.find(fileKey);
-          if (fileData != null) {
+          oldBlobstorePath.t = null;
+          // Shared blobs are left for sweepUnreferencedBlobs.
+          if (fileData != null && fileData.blobHash == null) {
             oldBlobstorePath.t = fileData.blobstorePath;
           }
           datastore.delete(fileKey);
@@ -1172,6 +1726,18 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
+    ProjectData pd = ObjectifyService.begin().find(projectKey(projectId));
+    long dateModified = (pd == null) ? 0 : pd.dateModified;
+    byte[] content = getCachedFileContent(projectId, fileName, dateModified);
+    if (content != null) {
+      return content;
+    }
+    content = readRawFile(userId, projectId, fileName);
+    cacheFileContent(projectId, fileName, dateModified, content);
+    return content;
+  }
+
+  private byte[] readRawFile(final String userId, final long projectId, final String fileName) {
     final Result<byte[]> result = new Result<byte[]>();
     final Result<FileData> fd = new Result<FileData>();
     try {
@@ -1207,6 +1773,56 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
+  private static String fileCacheKey(long projectId, String fileName, long dateModified) {
+    return projectId + "|" + dateModified + "|" + fileName;
+  }
+
+  /*
+   * Returns the cached content of a project file as of the given project
+   * modification date, or null if it isn't cached.
+   */
+  private byte[] getCachedFileContent(long projectId, String fileName, long dateModified) {
+    String key = fileCacheKey(projectId, fileName, dateModified);
+    byte[] content = localFiles.getIfPresent(key);
+    if (content != null) {
+      return content.clone();
+    }
+    content = (byte[]) memcache.get(FILE_CACHE_KEY + key);
+    if (content != null) {
+      localFiles.put(key, content.clone());
+    }
+    return content;
+  }
+
+  private void cacheFileContent(long projectId, String fileName, long dateModified,
+      byte[] content) {
+    // Files that were added but never uploaded have no content.
+    if (content != null && content.length <= MAX_CACHED_FILE_BYTES) {
+      String key = fileCacheKey(projectId, fileName, dateModified);
+      localFiles.put(key, content.clone());
+      memcache.put(FILE_CACHE_KEY + key, content, Expiration.byDeltaSeconds(3600));
+    }
+  }
+
+  /*
+   * Removes the cached contents of project files that changed without a new
+   * project modification date, e.g. removed output files. Must be called after
+   * the change has committed.
+   */
+  private void invalidateCachedFiles(long projectId, String... fileNames) {
+    ProjectData pd = ObjectifyService.begin().find(projectKey(projectId));
+    if (pd == null) {
+      return;
+    }
+    List<String> memcacheKeys = new ArrayList<String>();
+    for (String fileName : fileNames) {
+      String key = fileCacheKey(projectId, fileName, pd.dateModified);
+      localFiles.invalidate(key);
+      memcacheKeys.add(FILE_CACHE_KEY + key);
+    }
+    memcache.deleteAll(memcacheKeys);
+  }
+
   // Note: this must be called outside of any transaction, since getBlobKey()
   // uses the current transaction and it will most likely have the wrong
   // entity group!
@@ -1225,6 +1841,29 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  // Copies the blob to the given stream without holding all of it in memory. Like
+  // getBlobstoreBytes(), this must be called outside of any transaction.
+  private void copyBlobstoreBytes(String blobstorePath, OutputStream out)
+      throws BlobReadException, IOException {
+    AppEngineFile blobstoreFile = new AppEngineFile(blobstorePath);
+    BlobKey blobKey = fileService.getBlobKey(blobstoreFile);
+    if (blobKey == null) {
+      throw new BlobReadException("getBlobKey() returned null for " + blobstorePath);
+    }
+    InputStream blobInputStream;
+    try {
+      blobInputStream = new BlobstoreInputStream(blobKey);
+    } catch (IOException e) {
+      throw new BlobReadException(e, "Error trying to read blob from " + blobstorePath
+          + ", blobkey = " + blobKey);
+    }
+    try {
+      ByteStreams.copy(blobInputStream, out);
+    } finally {
+      blobInputStream.close();
+    }
+  }
+
   /**
    *  Exports project files as a zip archive
    * @param userId a user Id (the request is made on behalf of this user)
@@ -1236,10 +1875,38 @@ public class ObjectifyStorageIo implements  StorageIo {
    * @return  project with the content as requested by params.
    */
   @Override
-  public ProjectSourceZip exportProjectSourceZip(final String userId, final long projectId,
-                                                 final boolean includeProjectHistory,
-                                                 final boolean includeAndroidKeystore,
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+                                                 boolean includeProjectHistory,
+                                                 boolean includeAndroidKeystore,
                                                  @Nullable String zipName) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipFile, projectName);
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int writeProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                                   boolean includeAndroidKeystore, OutputStream outputStream)
+      throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, outputStream, new Result<String>());
+  }
+
+  // Writes the zip of the project's source files to the given stream, one file at a time, and
+  // returns the number of files written. The name of the project is returned in projectName.
+  private int writeProjectSourceZip(final String userId, final long projectId,
+                                    final boolean includeProjectHistory,
+                                    final boolean includeAndroidKeystore,
+                                    OutputStream outputStream, final Result<String> projectName)
+      throws IOException {
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
     final Result<String> projectHistory = new Result<String>();
@@ -1249,12 +1916,11 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
+    final Result<Long> dateModified = new Result<Long>();
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+    final ZipOutputStream out = new ZipOutputStream(outputStream);
 
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1276,6 +1942,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (foundFiles) {
             ProjectData pd = datastore.find(projectKey);
             projectName.t = pd.name;
+            dateModified.t = pd.dateModified;
             if (includeProjectHistory && !Strings.isNullOrEmpty(pd.history)) {
               projectHistory.t = pd.history;
             }
@@ -1287,25 +1954,24 @@ public class ObjectifyStorageIo implements  StorageIo {
       // blobs in the job.
       for (FileData fd : fileData) {
         fileName = fd.fileName;
-        byte[] data;
+        out.putNextEntry(newZipEntry(fileName, dateModified.t));
         if (fd.isBlob) {
           try {
-            data = getBlobstoreBytes(fd.blobstorePath);
+            copyBlobstoreBytes(fd.blobstorePath, out);
           } catch (BlobReadException e) {
             throw CrashReport.createAndLogError(LOG, null,
                 collectProjectErrorInfo(userId, projectId, fileName), e);
           }
         } else {
-          data = fd.content;
+          out.write(fd.content, 0, fd.content.length);
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
         out.closeEntry();
         fileCount.t++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
-        out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+        out.putNextEntry(newZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH,
+            dateModified.t));
         out.write(data, 0, data.length);
         out.closeEntry();
         fileCount.t++;
@@ -1337,7 +2003,8 @@ public class ObjectifyStorageIo implements  StorageIo {
                 for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
                   if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
                       (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+                    out.putNextEntry(newZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME,
+                        dateModified.t));
                     out.write(ufd.content, 0, ufd.content.length);
                     out.closeEntry();
                     fileCount.t++;
@@ -1355,15 +2022,17 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
 
-    out.close();
+    // The caller closes the underlying stream.
+    out.finish();
+    return fileCount.t;
+  }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
-    }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+  // Entries are dated by the project's modification date rather than the current time, so that
+  // exporting an unchanged project gives the same bytes every time.
+  private static ZipEntry newZipEntry(String name, long time) {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(time);
+    return entry;
   }
 
   @Override
@@ -1441,11 +2110,21 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public boolean checkWhiteList(String email) {
-    Objectify datastore = ObjectifyService.begin();
-    WhiteListData data = datastore.query(WhiteListData.class).filter("emailLower", email.toLowerCase()).get();
-    if (data == null)
-      return false;
-    return true;
+    String emailLower = email.toLowerCase();
+    Boolean whiteListed = localWhiteList.getIfPresent(emailLower);
+    if (whiteListed != null) {
+      return whiteListed;
+    }
+    String cachekey = WHITELIST_CACHE_KEY + emailLower;
+    whiteListed = (Boolean) memcache.get(cachekey);
+    if (whiteListed == null) {
+      Objectify datastore = ObjectifyService.begin();
+      WhiteListData data = datastore.query(WhiteListData.class).filter("emailLower", emailLower).get();
+      whiteListed = data != null;
+      memcache.put(cachekey, whiteListed, Expiration.byDeltaSeconds(60));
+    }
+    localWhiteList.put(emailLower, whiteListed);
+    return whiteListed;
   }
 
   @Override
@@ -1522,6 +2201,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<FileData>(projectKey, FileData.class, fileName);
   }
 
+  private Key<SharedBlobData> sharedBlobKey(String hash) {
+    return new Key<SharedBlobData>(SharedBlobData.class, hash);
+  }
+
   /**
    * Call job.run() in a transaction and commit the transaction if no exceptions
    * occur. If we get a {@link java.util.ConcurrentModificationException}
@@ -1533,30 +2216,59 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
+    String entityGroup = job.getEntityGroup() == null ? null : job.getEntityGroup().toString();
+    long firstFailureMillis = 0;
+    boolean committed = false;
     int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
-      Objectify datastore = ObjectifyService.beginTransaction();
-      try {
-        job.run(datastore);
-        datastore.getTxn().commit();
-        break;
-      } catch (ConcurrentModificationException ex) {
-        job.onNonFatalError();
-        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
-      } catch (ObjectifyException oe) {
-        // maybe this should be a fatal error? I think the only thing
-        // that creates this exception (other than this method) is uploadToBlobstore
-        job.onNonFatalError();
-      } finally {
-        if (datastore.getTxn().isActive()) {
+    try {
+      while (tries <= MAX_JOB_RETRIES) {
+        Objectify datastore = ObjectifyService.beginTransaction();
+        String contendedGroup;
+        try {
+          job.run(datastore);
+          datastore.getTxn().commit();
+          committed = true;
+          break;
+        } catch (ConcurrentModificationException ex) {
+          job.onNonFatalError();
+          LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+          contendedGroup = entityGroup;
+        } catch (ObjectifyException oe) {
+          // maybe this should be a fatal error? I think the only thing
+          // that creates this exception (other than this method) is uploadToBlobstore
+          job.onNonFatalError();
+          contendedGroup = null;
+        } finally {
+          if (datastore.getTxn().isActive()) {
+            try {
+              datastore.getTxn().rollback();
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Transaction rollback failed", e);
+            }
+          }
+        }
+        tries++;
+        if (tries == 1) {
+          firstFailureMillis = System.currentTimeMillis();
+        }
+        long delayMillis = jobRetryBackoff.conflict(contendedGroup, tries);
+        if (tries <= MAX_JOB_RETRIES && delayMillis > 0) {
           try {
-            datastore.getTxn().rollback();
-          } catch (RuntimeException e) {
-            LOG.log(Level.WARNING, "Transaction rollback failed", e);
+            Thread.sleep(delayMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ObjectifyException(e);
           }
         }
       }
-      tries++;
+    } finally {
+      int attempts = committed ? tries + 1 : tries;
+      long millisRetrying = tries == 0 ? 0 : System.currentTimeMillis() - firstFailureMillis;
+      jobRetryBackoff.jobFinished(Math.max(attempts, 1), millisRetrying, committed);
+      if (tries > 0) {
+        LOG.info("Job on " + entityGroup + " made " + attempts + " attempts in " + millisRetrying
+            + "ms, committed=" + committed + "; totals: " + jobRetryBackoff);
+      }
     }
     if (tries > MAX_JOB_RETRIES) {
       throw new ObjectifyException("Couldn't commit job after max retries.");
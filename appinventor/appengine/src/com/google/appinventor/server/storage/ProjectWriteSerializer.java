@@ -0,0 +1,168 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the file writes to each project within this server instance.
+ *
+ * <p>Writes to the same project that arrive while another is in progress are
+ * queued. When the write in progress finishes, the queued writes are merged
+ * and done as a single write, so that concurrent saves of a project don't
+ * contend in the datastore. If a merged write fails, its writes are retried one
+ * by one so that a bad write does not fail the others.
+ *
+ */
+final class ProjectWriteSerializer {
+  /**
+   * Writes files to a project.
+   */
+  interface Writer {
+    /**
+     * Writes the given files.
+     *
+     * @param files  map from file ID to content
+     * @return modification date for project
+     */
+    long write(Map<String, byte[]> files);
+  }
+
+  /*
+   * A write waiting for, or taking part in, a merged write.
+   */
+  private static final class PendingWrite {
+    final Map<String, byte[]> files;
+    boolean done;
+    long modDate;
+    RuntimeException failure;
+
+    PendingWrite(Map<String, byte[]> files) {
+      this.files = files;
+    }
+  }
+
+  /*
+   * The writes queued for one project.
+   */
+  private static final class ProjectQueue {
+    final List<PendingWrite> pending = new ArrayList<PendingWrite>();
+    boolean writing;
+    int users;
+  }
+
+  private final Map<Long, ProjectQueue> queues = new HashMap<Long, ProjectQueue>();
+
+  /**
+   * Writes files to a project, possibly merged with other writes to the same
+   * project.
+   *
+   * @param projectId  project ID
+   * @param files  map from file ID to content
+   * @param writer  does the writes; it is called by one thread at a time for
+   *                each project
+   * @return modification date for project
+   */
+  long write(long projectId, Map<String, byte[]> files, Writer writer) {
+    ProjectQueue queue = acquireQueue(projectId);
+    try {
+      PendingWrite write = new PendingWrite(files);
+      List<PendingWrite> batch;
+      synchronized (queue) {
+        queue.pending.add(write);
+        boolean interrupted = false;
+        while (queue.writing && !write.done) {
+          try {
+            queue.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        if (write.done) {
+          // Another thread did this write.
+          return getResult(write);
+        }
+        queue.writing = true;
+        batch = new ArrayList<PendingWrite>(queue.pending);
+        queue.pending.clear();
+      }
+      try {
+        writeBatch(batch, writer);
+      } finally {
+        synchronized (queue) {
+          for (PendingWrite pendingWrite : batch) {
+            pendingWrite.done = true;
+          }
+          queue.writing = false;
+          queue.notifyAll();
+        }
+      }
+      return getResult(write);
+    } finally {
+      releaseQueue(projectId, queue);
+    }
+  }
+
+  private static void writeBatch(List<PendingWrite> batch, Writer writer) {
+    if (batch.size() > 1) {
+      // Later writes of a file replace earlier ones.
+      Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+      for (PendingWrite write : batch) {
+        files.putAll(write.files);
+      }
+      try {
+        long modDate = writer.write(files);
+        for (PendingWrite write : batch) {
+          write.modDate = modDate;
+        }
+        return;
+      } catch (RuntimeException e) {
+        // Fall through and do the writes one at a time.
+      }
+    }
+    for (PendingWrite write : batch) {
+      try {
+        write.modDate = writer.write(write.files);
+      } catch (RuntimeException e) {
+        write.failure = e;
+      }
+    }
+  }
+
+  private static long getResult(PendingWrite write) {
+    if (write.failure != null) {
+      throw write.failure;
+    }
+    return write.modDate;
+  }
+
+  private ProjectQueue acquireQueue(long projectId) {
+    synchronized (queues) {
+      ProjectQueue queue = queues.get(projectId);
+      if (queue == null) {
+        queue = new ProjectQueue();
+        queues.put(projectId, queue);
+      }
+      queue.users++;
+      return queue;
+    }
+  }
+
+  private void releaseQueue(long projectId, ProjectQueue queue) {
+    synchronized (queues) {
+      if (--queue.users == 0) {
+        queues.remove(projectId);
+      }
+    }
+  }
+}
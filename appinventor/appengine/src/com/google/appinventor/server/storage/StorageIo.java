@@ -8,10 +8,13 @@ package com.google.appinventor.server.storage;
 import com.google.appinventor.shared.rpc.Motd;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -138,6 +141,15 @@ public interface StorageIo {
    */
   String getProjectType(String userId, long projectId);
 
+  /**
+   * Returns the IDs, names, types and dates of all the projects of a user, read together rather
+   * than one project at a time.
+   *
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @return list of projects
+   */
+  List<UserProject> getUserProjects(String userId);
+
   /**
    * Returns a project name.
    *
@@ -327,6 +339,38 @@ public interface StorageIo {
    */
   long uploadRawFile(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads several files of a project. All of the files are written, and
+   * the project's modification date is updated, in a single transaction.
+   *
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param files  map from file ID to file content
+   * @return map from file ID to modification date for project
+   */
+  Map<String, Long> uploadRawFiles(long projectId, String userId, Map<String, byte[]> files);
+
+  /**
+   * Copies source files from one project to another. Files stored in shared
+   * blobs are copied by adding references to the blobs.
+   *
+   * @param userId  the user who owns both projects
+   * @param fromProjectId  project ID to copy from
+   * @param toProjectId  project ID to copy to
+   * @param fileNames  map from file ID in the old project to file ID in the
+   *                   new project
+   */
+  void copySourceFiles(String userId, long fromProjectId, long toProjectId,
+      Map<String, String> fileNames);
+
+  /**
+   * Deletes shared blobs that no file has referred to for a while.
+   *
+   * @param maxBlobs  most blobs to check
+   * @return number of blobs deleted
+   */
+  int sweepUnreferencedBlobs(int maxBlobs);
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -381,6 +425,22 @@ public interface StorageIo {
                                           boolean includeAndroidKeystore,
                                           @Nullable String zipName) throws IOException;
 
+  /**
+   *  Writes project files as a zip archive to the given stream, without holding the whole
+   *  archive in memory. The stream is not closed.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param out  the stream to write the zip archive to
+
+   * @return  the number of files in the zip archive
+   */
+  int writeProjectSourceZip(String userId, long projectId,
+                            boolean includeProjectHistory,
+                            boolean includeAndroidKeystore,
+                            OutputStream out) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -98,6 +98,14 @@ public class StoredData {
     // User specific project settings
     // TODO(user): is this ever used?
     String settings;
+
+    // The parts of the project's ProjectData that never change, copied so that listing the
+    // user's projects only needs the ProjectData for their modification dates. The name is null
+    // for projects created before the copy was kept; it is filled in the first time they are
+    // listed.
+    String name;
+    String type;
+    long dateCreated;
   }
 
   // Non-project-specific files (tied to user)
@@ -150,10 +158,31 @@ public class StoredData {
     // The Blobstore path to use to get the data from Blobstore
     String blobstorePath;
 
+    // If the Blobstore blob is shared with other files that have the same content, the hash of
+    // the content, which is the id of the blob's SharedBlobData. Null if the blob belongs to
+    // this file alone. The files with a given hash are the references to that shared blob.
+    @Indexed String blobHash;
+
     // File settings
     String settings;
   }
 
+  // A Blobstore blob that is shared by all the project files with the same content.
+  // The SharedBlobData class is an entity root.
+  @Unindexed
+  static final class SharedBlobData {
+    // Hash of the content
+    @Id String hash;
+
+    // The Blobstore path of the content
+    String blobstorePath;
+
+    // When a file was last known to refer to this blob, or to be about to. It is
+    // refreshed at most every few minutes. Blobs that no FileData refers to are
+    // reclaimed by a sweeper once this is old enough.
+    @Indexed long dateReferenced;
+  }
+
   // MOTD data.
   @Unindexed
   static final class MotdData {
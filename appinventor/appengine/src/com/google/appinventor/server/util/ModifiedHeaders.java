@@ -28,15 +28,54 @@ public class ModifiedHeaders {
    *         has not been modified since the prior request
    */
   public static boolean notModified(HttpServletRequest req) {
+    return notModified(req, BuildData.getTimestamp());
+  }
+
+  /**
+   * Compares the "If-Modified-Since" header in this request (if present) to
+   * the given modification date.
+   *
+   * @param req the request
+   * @param lastModified modification date of the resource, or 0 if unknown
+   * @return {@code true} iff we're sure that request is for a resource that
+   *         has not been modified since the prior request
+   */
+  public static boolean notModified(HttpServletRequest req, long lastModified) {
     long ifModDate = req.getDateHeader("If-Modified-Since");
-    if (BuildData.getTimestamp() > 0 && ifModDate > 0) {
-      if (ifModDate >= BuildData.getTimestamp()) {
+    if (lastModified > 0 && ifModDate > 0) {
+      // HTTP dates have a resolution of one second.
+      if (ifModDate >= lastModified / 1000 * 1000) {
         return true;
       }
     }
     return false;
   }
 
+  /**
+   * Compares the "If-None-Match" header in this request (if present) to the
+   * given entity tag, or, if there is no such header, the "If-Modified-Since"
+   * header to the given modification date.
+   *
+   * @param req the request
+   * @param lastModified modification date of the resource, or 0 if unknown
+   * @param etag strong entity tag of the resource, including the quotes
+   * @return {@code true} iff we're sure that request is for a resource that
+   *         has not been modified since the prior request
+   */
+  public static boolean notModified(HttpServletRequest req, long lastModified, String etag) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.equals(etag) || tag.equals("*")) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return notModified(req, lastModified);
+  }
+
   /**
    * Sets headers such that, if the last build time is known, it is included in
    * the "Last-Modified" header and validation is required for reuse.  If the
@@ -45,11 +84,38 @@ public class ModifiedHeaders {
    * @param resp the response
    */
   public static void setHeaders(HttpServletResponse resp) {
-    if (BuildData.getTimestamp() == 0) {
+    setHeaders(resp, BuildData.getTimestamp());
+  }
+
+  /**
+   * Sets headers such that, if the modification date is known, it is included
+   * in the "Last-Modified" header and validation is required for reuse.  If
+   * the modification date is not known, this makes the response uncacheable.
+   *
+   * @param resp the response
+   * @param lastModified modification date of the resource, or 0 if unknown
+   */
+  public static void setHeaders(HttpServletResponse resp, long lastModified) {
+    if (lastModified == 0) {
       CACHE_HEADERS.setNotCacheable(resp);
     } else {
-      resp.setDateHeader("Last-Modified", BuildData.getTimestamp());
+      resp.setDateHeader("Last-Modified", lastModified);
       CACHE_HEADERS.setCacheablePrivate(resp);
     }
   }
+
+  /**
+   * Like {@link #setHeaders(HttpServletResponse, long)}, and also sets the
+   * "ETag" header if the modification date is known.
+   *
+   * @param resp the response
+   * @param lastModified modification date of the resource, or 0 if unknown
+   * @param etag strong entity tag of the resource, including the quotes
+   */
+  public static void setHeaders(HttpServletResponse resp, long lastModified, String etag) {
+    setHeaders(resp, lastModified);
+    if (lastModified != 0) {
+      resp.setHeader("ETag", etag);
+    }
+  }
 }
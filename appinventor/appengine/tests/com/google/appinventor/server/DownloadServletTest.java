@@ -203,6 +203,39 @@ public class DownloadServletTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testDownloadFileSetsETag() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "file/1234/" + FORM1_QUALIFIED_NAME);
+    expect(exporterMock.getProjectDateModified(USER_ID, PROJECT_ID)).andReturn(1000L);
+    expect(exporterMock.exportFile(USER_ID, PROJECT_ID, FORM1_QUALIFIED_NAME))
+        .andReturn(dummyFile);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    assertEquals(200, response.getStatus());
+    assertEquals("\"1000\"", ((List) response.getHeader("ETag")).get(0));
+    PowerMock.verifyAll();
+  }
+
+  @Test
+  public void testDownloadFileNotModified() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "file/1234/" + FORM1_QUALIFIED_NAME);
+    request.setHeader("If-None-Match", "\"1000\"");
+    expect(exporterMock.getProjectDateModified(USER_ID, PROJECT_ID)).andReturn(1000L);
+    // The file is not read.
+    expect(exporterMock.exportFile(USER_ID, PROJECT_ID, FORM1_QUALIFIED_NAME))
+        .andReturn(dummyFile).times(0);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    assertEquals(304, response.getStatus());
+    PowerMock.verifyAll();
+  }
+
   @Test
   public void testDownloadFileWithNonExistingProject() throws IOException {
     IllegalArgumentException expectedException = new IllegalArgumentException();
@@ -166,5 +166,32 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testExportAllProjectsSourceZip() throws IOException {
+    ProjectSourceZip zip = exporter.exportAllProjectsSourceZip(USER_ID, "all-projects.zip");
+    assertEquals(1, zip.getFileCount());
+    assertEquals(PROJECT_NAME + "\n", zip.getMetadata());
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.getContent()));
+    ZipEntry entry = zis.getNextEntry();
+    assertEquals(PROJECT_NAME + ".aia", entry.getName());
+    ZipInputStream projectZis = new ZipInputStream(zis);
+    int count = 0;
+    while (projectZis.getNextEntry() != null) {
+      count++;
+    }
+    assertEquals(2, count);
+    assertNull(zis.getNextEntry());
+  }
+
+  public void testWriteAllProjectsSourceZipIsRepeatable() throws IOException {
+    String version = exporter.getAllProjectsSourceZipVersion(USER_ID);
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    assertEquals(1, exporter.writeAllProjectsSourceZip(USER_ID, first));
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    exporter.writeAllProjectsSourceZip(USER_ID, second);
+    assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+    assertEquals(version, exporter.getAllProjectsSourceZipVersion(USER_ID));
+
+    storageIo.uploadRawFile(projectId, IMAGE1_NAME, USER_ID, TARGET1_CONTENT);
+    assertFalse(version.equals(exporter.getAllProjectsSourceZipVersion(USER_ID)));
+  }
 }
@@ -0,0 +1,241 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.List;
+
+/**
+ * Tests BuildServerDispatcher class.
+ *
+ */
+public class BuildServerDispatcherTest extends LocalDatastoreTestCase {
+  private static final byte[] ZIP = "zip".getBytes(Charsets.UTF_8);
+
+  /*
+   * A stand-in for a build server, with the given load, that responds to builds with the given
+   * response code.
+   */
+  private static class StandInBuildServer implements HttpHandler {
+    final HttpServer server;
+    final int activeTasks;
+    final int healthCode;
+    int buildResponseCode = 200;
+    boolean dropBuildResponse;
+    final List<byte[]> builds = Lists.newArrayList();
+    int statsRequests;
+
+    StandInBuildServer(int activeTasks, int healthCode) throws IOException {
+      this.activeTasks = activeTasks;
+      this.healthCode = healthCode;
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/buildserver", this);
+      server.start();
+    }
+
+    String getHost() {
+      return "localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String path = exchange.getRequestURI().getPath();
+      byte[] content = ByteStreams.toByteArray(exchange.getRequestBody());
+      if (path.equals("/buildserver/health")) {
+        respond(exchange, healthCode, "ok");
+      } else if (path.equals("/buildserver/vars.json")) {
+        synchronized (this) {
+          statsRequests++;
+        }
+        respond(exchange, 200, "{\"active-build-tasks\":" + activeTasks +
+            ",\"maximum-simultaneous-build-tasks-allowed\":4,\"queued-build-tasks\":0}");
+      } else {
+        synchronized (this) {
+          builds.add(content);
+        }
+        if (dropBuildResponse) {
+          exchange.close();
+          return;
+        }
+        respond(exchange, buildResponseCode, "response from " + getHost());
+      }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+      byte[] bytes = body.getBytes(Charsets.UTF_8);
+      exchange.sendResponseHeaders(code, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+  }
+
+  private final List<StandInBuildServer> servers = Lists.newArrayList();
+
+  @Override
+  public void tearDown() throws Exception {
+    for (StandInBuildServer server : servers) {
+      server.server.stop(0);
+    }
+    super.tearDown();
+  }
+
+  private StandInBuildServer startServer(int activeTasks, int healthCode) throws IOException {
+    StandInBuildServer server = new StandInBuildServer(activeTasks, healthCode);
+    servers.add(server);
+    return server;
+  }
+
+  public void testLeastLoadedServerIsUsed() throws Exception {
+    StandInBuildServer busy = startServer(3, 200);
+    StandInBuildServer idle = startServer(1, 200);
+    BuildServerDispatcher dispatcher =
+        new BuildServerDispatcher(ImmutableList.of(busy.getHost(), idle.getHost()));
+
+    BuildServerDispatcher.Response response = dispatcher.dispatch("/buildserver/build", ZIP);
+    assertEquals(200, response.getResponseCode());
+    assertEquals(idle.getHost(), response.getHost());
+    assertEquals("response from " + idle.getHost(), response.getContent());
+    assertEquals(1, idle.builds.size());
+    assertEquals("zip", new String(idle.builds.get(0), Charsets.UTF_8));
+
+    // Until the load is read again, the builds sent to the idle server are counted.
+    assertEquals(idle.getHost(), dispatcher.dispatch("/buildserver/build", ZIP).getHost());
+    assertEquals(busy.getHost(), dispatcher.dispatch("/buildserver/build", ZIP).getHost());
+  }
+
+  public void testRejectedBuildIsRetried() throws Exception {
+    StandInBuildServer full = startServer(0, 200);
+    full.buildResponseCode = 503;
+    StandInBuildServer other = startServer(2, 200);
+    BuildServerDispatcher dispatcher =
+        new BuildServerDispatcher(ImmutableList.of(full.getHost(), other.getHost()));
+
+    assertEquals(other.getHost(), dispatcher.dispatch("/buildserver/build", ZIP).getHost());
+    assertEquals(1, full.builds.size());
+
+    // The busy server is skipped for a while.
+    assertEquals(other.getHost(), dispatcher.dispatch("/buildserver/build", ZIP).getHost());
+    assertEquals(1, full.builds.size());
+  }
+
+  public void testUnhealthyAndUnreachableServersAreSkipped() throws Exception {
+    StandInBuildServer starting = startServer(0, 503);
+    StandInBuildServer healthy = startServer(3, 200);
+    BuildServerDispatcher dispatcher = new BuildServerDispatcher(
+        ImmutableList.of(unusedHost(), starting.getHost(), healthy.getHost()));
+
+    assertEquals(healthy.getHost(), dispatcher.dispatch("/buildserver/build", ZIP).getHost());
+    assertEquals(0, starting.builds.size());
+  }
+
+  public void testAllServersReject() throws Exception {
+    StandInBuildServer server = startServer(0, 200);
+    server.buildResponseCode = 409;
+    BuildServerDispatcher dispatcher =
+        new BuildServerDispatcher(ImmutableList.of(server.getHost()));
+    assertEquals(409, dispatcher.dispatch("/buildserver/build", ZIP).getResponseCode());
+
+    try {
+      new BuildServerDispatcher(ImmutableList.of(unusedHost()))
+          .dispatch("/buildserver/build", ZIP);
+      fail();
+    } catch (BuildServerDispatcher.UnreachableException e) {
+      // Expected.
+    }
+  }
+
+  public void testContentIsStreamed() throws Exception {
+    StandInBuildServer server = startServer(0, 200);
+    BuildServerDispatcher dispatcher =
+        new BuildServerDispatcher(ImmutableList.of(server.getHost()));
+    final byte[] chunk = new byte[64 * 1024];
+    dispatcher.dispatch("/buildserver/build", new BuildServerDispatcher.ContentWriter() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < 16; i++) {
+          out.write(chunk);
+        }
+      }
+    });
+    assertEquals(16 * chunk.length, server.builds.get(0).length);
+  }
+
+  public void testContentFailureIsNotRetried() throws Exception {
+    StandInBuildServer first = startServer(0, 200);
+    StandInBuildServer second = startServer(1, 200);
+    BuildServerDispatcher dispatcher =
+        new BuildServerDispatcher(ImmutableList.of(first.getHost(), second.getHost()));
+    final IOException failure = new IOException("storage failure");
+    try {
+      dispatcher.dispatch("/buildserver/build", new BuildServerDispatcher.ContentWriter() {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+          out.write(ZIP);
+          throw failure;
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    Thread.sleep(100);
+    assertEquals(0, first.builds.size());
+    assertEquals(0, second.builds.size());
+
+    // The build server is still used.
+    assertEquals(first.getHost(), dispatcher.dispatch("/buildserver/build", ZIP).getHost());
+  }
+
+  public void testReceivedBuildIsNotRetried() throws Exception {
+    StandInBuildServer silent = startServer(0, 200);
+    silent.dropBuildResponse = true;
+    StandInBuildServer other = startServer(2, 200);
+    BuildServerDispatcher dispatcher =
+        new BuildServerDispatcher(ImmutableList.of(silent.getHost(), other.getHost()));
+    try {
+      dispatcher.dispatch("/buildserver/build", ZIP);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    // The build server that received the build may be building it.
+    assertEquals(1, silent.builds.size());
+    assertEquals(0, other.builds.size());
+  }
+
+  public void testLoadIsSharedByInstances() throws Exception {
+    StandInBuildServer server = startServer(0, 200);
+    List<String> hosts = ImmutableList.of(server.getHost());
+    new BuildServerDispatcher(hosts).dispatch("/buildserver/build", ZIP);
+    // Another instance uses the load that the first one read.
+    new BuildServerDispatcher(hosts).dispatch("/buildserver/build", ZIP);
+    assertEquals(2, server.builds.size());
+    assertEquals(1, server.statsRequests);
+  }
+
+  private static String unusedHost() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return "localhost:" + socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests JobRetryBackoff class.
+ *
+ */
+public class JobRetryBackoffTest extends TestCase {
+  /*
+   * Always returns the largest value, so that the delays are the upper bounds.
+   */
+  private static class MaxRandom extends Random {
+    @Override
+    public double nextDouble() {
+      return 0.999999;
+    }
+  }
+
+  public void testDelayGrowsExponentially() {
+    JobRetryBackoff backoff = new JobRetryBackoff(10, 1000, new MaxRandom());
+    assertEquals(10, backoff.conflict(null, 1, 0));
+    assertEquals(20, backoff.conflict(null, 2, 0));
+    assertEquals(40, backoff.conflict(null, 3, 0));
+    assertEquals(1000, backoff.conflict(null, 8, 0));
+    assertEquals(1000, backoff.conflict(null, 100, 0));
+  }
+
+  public void testDelayIsRandomized() {
+    JobRetryBackoff backoff = new JobRetryBackoff(100, 1000, new Random(1));
+    boolean differs = false;
+    long first = backoff.conflict(null, 3, 0);
+    for (int i = 0; i < 10; i++) {
+      long delay = backoff.conflict(null, 3, 0);
+      assertTrue(delay >= 0 && delay <= 400);
+      differs |= delay != first;
+    }
+    assertTrue(differs);
+  }
+
+  public void testContendedGroupWaitsLonger() {
+    JobRetryBackoff backoff = new JobRetryBackoff(10, 1000, new MaxRandom());
+    assertEquals(10, backoff.conflict("project1", 1, 0));
+    assertEquals(20, backoff.conflict("project1", 1, 0));
+    assertEquals(40, backoff.conflict("project1", 1, 0));
+    // Other groups are not affected.
+    assertEquals(10, backoff.conflict("project2", 1, 0));
+
+    // The contention is forgotten over time.
+    assertEquals(3.0, backoff.getConflicts("project1", 0), 0.001);
+    assertEquals(1.5, backoff.getConflicts("project1", 10000), 0.001);
+    assertEquals(10, backoff.conflict("project1", 1, 100000));
+  }
+
+  public void testStatistics() {
+    JobRetryBackoff backoff = new JobRetryBackoff(10, 1000, new Random());
+    backoff.jobFinished(1, 0, true);
+    backoff.jobFinished(3, 50, true);
+    backoff.jobFinished(11, 700, false);
+    assertEquals(3, backoff.getJobs());
+    assertEquals(2, backoff.getRetriedJobs());
+    assertEquals(1, backoff.getFailedJobs());
+    assertEquals(12, backoff.getRetries());
+    assertEquals(750, backoff.getRetryMillis());
+  }
+}
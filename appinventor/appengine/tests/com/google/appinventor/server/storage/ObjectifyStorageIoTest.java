@@ -18,21 +18,33 @@ import com.google.appengine.api.files.LockException;
 import com.google.appengine.api.files.RecordReadChannel;
 import com.google.appengine.api.files.RecordWriteChannel;
 import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.FileData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.server.storage.StoredData.SharedBlobData;
+import com.google.appinventor.server.storage.StoredData.UserData;
+import com.google.appinventor.server.storage.StoredData.UserProjectData;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Tests for {@link ObjectifyStorageIo}.
@@ -121,6 +133,30 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertEquals(USER_EMAIL_NEW, user4.getUserEmail());
   }
 
+  public void testCachedUsers() {
+    final String USER_ID = "510";
+    final String USER_EMAIL = "user510@test.com";
+    final String USER_EMAIL_NEW = "newuser510@test.com";
+
+    User user1 = storage.getUser(USER_ID, USER_EMAIL);
+    // Changes to a returned user don't change the cached user.
+    user1.setIsAdmin(true);
+    user1.setUserEmail(USER_EMAIL_NEW);
+    User user2 = storage.getUser(USER_ID);
+    assertFalse(user2.getIsAdmin());
+    assertEquals(USER_EMAIL, user2.getUserEmail());
+
+    // Changing the email removes the user from the caches.
+    storage.setUserEmail(USER_ID, USER_EMAIL_NEW);
+    assertEquals(USER_EMAIL_NEW, storage.getUser(USER_ID).getUserEmail());
+  }
+
+  public void testCheckWhiteList() {
+    assertFalse(storage.checkWhiteList("User600@test.com"));
+    // The result is cached.
+    assertFalse(storage.checkWhiteList("user600@test.com"));
+  }
+
   public void testSetTosAccepted() {
     final String USER_ID = "100";
     ObjectifyStorageIo.requireTos.setForTest(true);
@@ -151,14 +187,18 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
 
   public void testCreateProjectFailFirst() {
     final String USER_ID = "600";
-    // fail on first job in createProject (2nd job overall)
-    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(2);
+    // fail on the project job in createProject (3rd job overall, after the
+    // job that creates the shared blob of the assets)
+    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(3);
 
     try {
       throwingStorage.getUser(USER_ID);
       throwingStorage.createProject(USER_ID, project, SETTINGS);
     } catch (RuntimeException e) {
       assertEquals(0, throwingStorage.getProjects(USER_ID).size());
+      // No file refers to the shared blob, so it is swept once it is old enough.
+      ageSharedBlob(contentHash(RAW_FILE_CONTENT1));
+      assertEquals(1, throwingStorage.sweepUnreferencedBlobs(10));
       return;
     }
 
@@ -167,14 +207,17 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
 
   public void testCreateProjectFailSecond() {
     final String USER_ID = "700";
-    // fail on second job in createProject (3rd job overall)
-    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(3);
+    // fail on the user job in createProject (4th job overall)
+    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(4);
 
     try {
       throwingStorage.getUser(USER_ID);
       throwingStorage.createProject(USER_ID, project, SETTINGS);
     } catch (RuntimeException e) {
       assertEquals(0, throwingStorage.getProjects(USER_ID).size());
+      // The files were stored, so they still refer to the shared blob.
+      ageSharedBlob(contentHash(RAW_FILE_CONTENT1));
+      assertEquals(0, throwingStorage.sweepUnreferencedBlobs(10));
       return;
     }
 
@@ -183,7 +226,8 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   
   public void testCreateProjectDeletesBlobsOnFileFailure() {
     final String USER_ID = "710";
-    // fail on 3rd blob creation.
+    project.addRawFile(new RawFile(BLOCK_FILE_NAME, BLOCK_FILE_CONTENT));
+    // fail on 3rd blob creation (the shared blob of the assets is the 1st).
     FailingBlobFileService failingFileService = new FailingBlobFileService(3);
     // storage doesn't really fail but we want to count blob deletions.
     FailingJobObjectifyStorageIo storageIo = 
@@ -191,9 +235,12 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     try {
       storageIo.getUser(USER_ID);
       storageIo.createProject(USER_ID, project, SETTINGS);
+      fail();
     } catch (RuntimeException e) {
       assertEquals(3, failingFileService.numBlobsCreated());
-      assertEquals(2, storageIo.numBlobsDeleted());
+      // The shared blob is left for the sweeper.
+      assertEquals(1, storageIo.numBlobsDeleted());
+      assertNotNull(getSharedBlob(contentHash(RAW_FILE_CONTENT1)));
     }
   }
   
@@ -202,25 +249,49 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     // we don't actually want blob creation to fail in this case, but we do
     // want to be able to count created blobs
     FailingBlobFileService failingFileService = new FailingBlobFileService(0);
-    // arrange that the second job in createProject fails. make sure
-    // blobs created in the first job were deleted.
+    // arrange that the user job in createProject (4th job overall) fails.
+    // make sure blobs created in the project job were deleted.
+    project.addRawFile(new RawFile(BLOCK_FILE_NAME, BLOCK_FILE_CONTENT));
     FailingJobObjectifyStorageIo storageIo = 
-        new FailingJobObjectifyStorageIo(3, failingFileService);
+        new FailingJobObjectifyStorageIo(4, failingFileService);
     try {
       storageIo.getUser(USER_ID);
       storageIo.createProject(USER_ID, project, SETTINGS);
+      fail();
     } catch (RuntimeException e) {
       assertEquals(3, failingFileService.numBlobsCreated());
-      assertEquals(3, storageIo.numBlobsDeleted());
+      // The shared blob is kept, since the stored files still refer to it.
+      assertEquals(2, storageIo.numBlobsDeleted());
+      assertNotNull(getSharedBlob(contentHash(RAW_FILE_CONTENT1)));
+    }
+  }
+
+  public void testCreateProjectDeletesSharedBlobOnReferenceFailure() {
+    final String USER_ID = "725";
+    FailingBlobFileService failingFileService = new FailingBlobFileService(0);
+    // the job that creates the shared blob of the assets (2nd job overall)
+    // fails without committing, so nothing refers to the new blob.
+    FailingJobObjectifyStorageIo storageIo =
+        new FailingJobObjectifyStorageIo(2, failingFileService);
+    try {
+      storageIo.getUser(USER_ID);
+      storageIo.createProject(USER_ID, project, SETTINGS);
+      fail();
+    } catch (RuntimeException e) {
+      assertEquals(1, failingFileService.numBlobsCreated());
+      assertEquals(1, storageIo.numBlobsDeleted());
+      assertNull(getSharedBlob(contentHash(RAW_FILE_CONTENT1)));
     }
   }
 
   public void testCreateProjectDeletesBlobsOnRetry() {
     final String USER_ID = "730";
-    // 2nd blob creation fails with ConcurrentModificationException, which
-    // should cause the job to be retried. It should ultimately succeed
-    // and we should have 1 blob that got deleted.
-    FailingBlobFileService failingFileService = new FailingBlobFileService(2,
+    // 3rd blob creation (the 2nd in the project job) fails with
+    // ConcurrentModificationException, which should cause the job to be
+    // retried. It should ultimately succeed and we should have 1 blob that
+    // got deleted.
+    project.addRawFile(new RawFile(BLOCK_FILE_NAME, BLOCK_FILE_CONTENT));
+    FailingBlobFileService failingFileService = new FailingBlobFileService(3,
         new ConcurrentModificationException("this is intentional"));
     // storage doesn't really fail but we want to count deleted blobs
     FailingJobObjectifyStorageIo storageIo = 
@@ -233,6 +304,28 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
     assertEquals(5, failingFileService.numBlobsCreated());
     assertEquals(1, storageIo.numBlobsDeleted());
+    assertNotNull(getSharedBlob(contentHash(RAW_FILE_CONTENT1)));
+  }
+
+  public void testRetriesAreCounted() throws ObjectifyException {
+    final String USER_ID = "750";
+    storage.getUser(USER_ID);
+    final long projectId =
+        createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    final int[] runs = { 0 };
+    long retries = storage.jobRetryBackoff.getRetries();
+    storage.runJobWithRetries(storage.new JobRetryHelper(
+        new Key<ProjectData>(ProjectData.class, projectId)) {
+      @Override
+      public void run(Objectify datastore) {
+        datastore.find(ProjectData.class, projectId);
+        if (++runs[0] < 3) {
+          throw new ConcurrentModificationException("this is intentional");
+        }
+      }
+    });
+    assertEquals(3, runs[0]);
+    assertEquals(retries + 2, storage.jobRetryBackoff.getRetries());
   }
 
   public void testUploadBeforeAdd() {
@@ -353,6 +446,105 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     oldModificationDate = modificationDate;
   }
 
+  public void testUploadRawFiles() throws UnsupportedEncodingException {
+    final String USER_ID = "1250";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1, FILE_NAME2);
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    long oldModificationDate = storage.getProjectDateModified(USER_ID, projectId);
+
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    files.put(FILE_NAME1, FILE_CONTENT1.getBytes(StorageUtil.DEFAULT_CHARSET));
+    files.put(FILE_NAME2, FILE_CONTENT2.getBytes(StorageUtil.DEFAULT_CHARSET));
+    files.put(FILE_NAME_OUTPUT, FILE_CONTENT_OUTPUT);
+    Map<String, Long> modificationDates = storage.uploadRawFiles(projectId, USER_ID, files);
+
+    // All of the files are written with the same modification date.
+    assertEquals(files.keySet(), modificationDates.keySet());
+    long modificationDate = modificationDates.get(FILE_NAME1);
+    assertTrue(oldModificationDate < modificationDate);
+    assertEquals(modificationDate, (long) modificationDates.get(FILE_NAME2));
+    assertEquals(modificationDate, (long) modificationDates.get(FILE_NAME_OUTPUT));
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT)));
+
+    // If any file has not been added, none of the files are written.
+    files.put(FILE_NAME1, FILE_CONTENT2.getBytes(StorageUtil.DEFAULT_CHARSET));
+    files.put(RAW_FILE_NAME2, RAW_FILE_CONTENT2);
+    try {
+      storage.uploadRawFiles(projectId, USER_ID, files);
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+  }
+
+  public void testDownloadRawFileIsCached() {
+    final String USER_ID = "1260";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, RAW_FILE_NAME1);
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, RAW_FILE_CONTENT1);
+
+    byte[] content = storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1, content));
+    // Changes to the returned content don't change the cached content.
+    content[0]++;
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+
+    // A new upload is seen.
+    storage.uploadRawFile(projectId, RAW_FILE_NAME1, USER_ID, RAW_FILE_CONTENT2);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT2,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+  }
+
+  public void testRemovedFileIsNotServedFromCache() {
+    final String USER_ID = "1270";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID, FILE_CONTENT_OUTPUT);
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT)));
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+
+    // Neither removal changes the project's modification date.
+    long modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    storage.removeOutputFilesFromProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    storage.removeSourceFilesFromProject(USER_ID, projectId, false, FILE_NAME1);
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+    try {
+      storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT);
+      fail("Removed output file was downloaded");
+    } catch (RuntimeException ignored) {
+      // The file doesn't exist
+    }
+    try {
+      storage.downloadFile(USER_ID, projectId, FILE_NAME1, StorageUtil.DEFAULT_CHARSET);
+      fail("Removed source file was downloaded");
+    } catch (RuntimeException ignored) {
+      // The file doesn't exist
+    }
+
+    // A file added again has no content until it is uploaded.
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    assertNull(storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT));
+  }
+
   public void testAddRemoveFile() {
     final String USER_ID = "1200";
     storage.getUser(USER_ID);
@@ -488,6 +680,94 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     // TODO(sharon): should test large blob files (e.g., >2MB (chunk size), >4MB (row size));
   }
 
+  public void testSharedAssetBlobs() {
+    final String USER_ID = "1320";
+    storage.getUser(USER_ID);
+    // The two assets of project have the same content as the asset of project2.
+    long projectId1 = storage.createProject(USER_ID, project, SETTINGS);
+    Project project2 = new Project("Project2");
+    project2.setProjectType(FAKE_PROJECT_TYPE);
+    project2.addRawFile(new RawFile(ASSET_FILE_NAME1, ASSET_FILE_CONTENT1));
+    long projectId2 = storage.createProject(USER_ID, project2, SETTINGS);
+
+    FileData file1 = getFileData(projectId1, RAW_FILE_NAME1);
+    assertNotNull(file1.blobHash);
+    assertTrue(file1.isBlob);
+    assertEquals(file1.blobstorePath, getFileData(projectId1, RAW_FILE_NAME2).blobstorePath);
+    assertEquals(file1.blobstorePath, getFileData(projectId2, ASSET_FILE_NAME1).blobstorePath);
+
+    // A copy refers to the same blob.
+    long projectId3 = createProject(USER_ID, "Project3", FAKE_PROJECT_TYPE, FILE_NAME1);
+    storage.copySourceFiles(USER_ID, projectId2, projectId3,
+        Collections.singletonMap(ASSET_FILE_NAME1, RAW_FILE_NAME1));
+    assertEquals(file1.blobstorePath, getFileData(projectId3, RAW_FILE_NAME1).blobstorePath);
+
+    // Deleting a project leaves the blob to the other projects.
+    storage.deleteProject(USER_ID, projectId1);
+    ageSharedBlob(file1.blobHash);
+    assertEquals(0, storage.sweepUnreferencedBlobs(10));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId2, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId3, RAW_FILE_NAME1)));
+
+    // The blob is swept some time after its last file is deleted.
+    storage.deleteProject(USER_ID, projectId2);
+    storage.removeSourceFilesFromProject(USER_ID, projectId3, false, RAW_FILE_NAME1);
+    assertEquals(0, storage.sweepUnreferencedBlobs(10));
+    ageSharedBlob(file1.blobHash);
+    assertEquals(1, storage.sweepUnreferencedBlobs(10));
+    assertNull(getSharedBlob(file1.blobHash));
+  }
+
+  public void testRetriedJobsKeepSharedBlobReferences() {
+    final String USER_ID = "1330";
+    RepeatingJobObjectifyStorageIo storageIo = new RepeatingJobObjectifyStorageIo();
+    storageIo.getUser(USER_ID);
+    // The two assets of project share a blob.
+    long projectId1 = storageIo.createProject(USER_ID, project, SETTINGS);
+    long projectId2 = createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FILE_NAME1);
+    String hash = getFileData(projectId1, RAW_FILE_NAME1).blobHash;
+
+    // Each job commits, seems to fail, and runs again.
+    storageIo.repeatJobs = true;
+    storageIo.copySourceFiles(USER_ID, projectId1, projectId2,
+        Collections.singletonMap(RAW_FILE_NAME1, RAW_FILE_NAME1));
+    storageIo.deleteFile(USER_ID, projectId1, RAW_FILE_NAME1);
+    storageIo.removeSourceFilesFromProject(USER_ID, projectId1, false, RAW_FILE_NAME2);
+    storageIo.repeatJobs = false;
+
+    // The copy still refers to the blob.
+    ageSharedBlob(hash);
+    assertEquals(0, storageIo.sweepUnreferencedBlobs(10));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storageIo.downloadRawFile(USER_ID, projectId2, RAW_FILE_NAME1)));
+
+    storageIo.deleteProject(USER_ID, projectId2);
+    ageSharedBlob(hash);
+    assertEquals(1, storageIo.sweepUnreferencedBlobs(10));
+  }
+
+  private static FileData getFileData(long projectId, String fileName) {
+    return ObjectifyService.begin().find(new Key<FileData>(
+        new Key<ProjectData>(ProjectData.class, projectId), FileData.class, fileName));
+  }
+
+  private static SharedBlobData getSharedBlob(String hash) {
+    return ObjectifyService.begin().find(SharedBlobData.class, hash);
+  }
+
+  // Makes the shared blob old enough to be swept if nothing refers to it.
+  private static void ageSharedBlob(String hash) {
+    SharedBlobData blob = getSharedBlob(hash);
+    blob.dateReferenced -= 2 * 60 * 60 * 1000;
+    ObjectifyService.begin().put(blob);
+  }
+
+  private static String contentHash(byte[] content) {
+    return Hashing.sha1().hashBytes(content).toString();
+  }
+
   public void testOldBlockFilesInDatastoreStillWork() {
     // Create new storage object that forces storage in the datastore
     ObjectifyStorageIo oldStyleStorage = new ObjectifyStorageIo() {
@@ -537,6 +817,67 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertNull(result);
   }
 
+  public void testGetUserProjects() {
+    final String USER_ID = "1510";
+    storage.getUser(USER_ID);
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId1, false, FILE_NAME1);
+    long modificationDate = storage.uploadFile(projectId1, FILE_NAME1, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    storage.deleteProject(USER_ID, projectId2);
+
+    List<UserProject> userProjects = storage.getUserProjects(USER_ID);
+    assertEquals(1, userProjects.size());
+    UserProject userProject = userProjects.get(0);
+    assertEquals(projectId1, userProject.getProjectId());
+    assertEquals(PROJECT_NAME, userProject.getProjectName());
+    assertEquals(FAKE_PROJECT_TYPE, userProject.getProjectType());
+    assertEquals(storage.getProjectDateCreated(USER_ID, projectId1),
+        userProject.getDateCreated());
+    assertEquals(modificationDate, userProject.getDateModified());
+  }
+
+  public void testGetUserProjectsFillsInOldProjects() {
+    final String USER_ID = "1520";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    // Remove the summary, as for a project created before summaries were kept.
+    Objectify datastore = ObjectifyService.begin();
+    Key<UserProjectData> userProjectKey = new Key<UserProjectData>(
+        new Key<UserData>(UserData.class, USER_ID), UserProjectData.class, projectId);
+    UserProjectData upd = datastore.get(userProjectKey);
+    upd.name = null;
+    upd.type = null;
+    upd.dateCreated = 0;
+    datastore.put(upd);
+
+    for (int i = 0; i < 2; i++) {
+      List<UserProject> userProjects = storage.getUserProjects(USER_ID);
+      assertEquals(1, userProjects.size());
+      assertEquals(PROJECT_NAME, userProjects.get(0).getProjectName());
+      assertEquals(FAKE_PROJECT_TYPE, userProjects.get(0).getProjectType());
+      assertEquals(storage.getProjectDateModified(USER_ID, projectId),
+          userProjects.get(0).getDateModified());
+    }
+    // The summary was saved the first time.
+    assertEquals(PROJECT_NAME, datastore.get(userProjectKey).name);
+  }
+
+  public void testGetUserProjectsSkipsMissingProjects() {
+    final String USER_ID = "1530";
+    storage.getUser(USER_ID);
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    // Leave only the summary of the second project.
+    Objectify datastore = ObjectifyService.begin();
+    datastore.delete(new Key<ProjectData>(ProjectData.class, projectId2));
+
+    List<UserProject> userProjects = storage.getUserProjects(USER_ID);
+    assertEquals(1, userProjects.size());
+    assertEquals(projectId1, userProjects.get(0).getProjectId());
+  }
+
   public void testWrongUserThrowsException() throws Exception {
     final String USER_ID = "1600";
     final String USER_ID2 = "1700";
@@ -586,7 +927,7 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
         throw new ObjectifyException("job failed (on purpose)");
       }
     }
-    
+
     @Override
     protected void deleteBlobstoreFile(String blobstorePath) {
       super.deleteBlobstoreFile(blobstorePath);
@@ -598,6 +939,22 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
   }
   
+  /*
+   * Runs each job a second time while repeatJobs is set, as when a job
+   * commits but reports a failure and is retried.
+   */
+  private static class RepeatingJobObjectifyStorageIo extends ObjectifyStorageIo {
+    boolean repeatJobs;
+
+    @Override
+    void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
+      super.runJobWithRetries(job);
+      if (repeatJobs) {
+        super.runJobWithRetries(job);
+      }
+    }
+  }
+
   /* 
    * Fail on Nth blob create, where N is the value of the failingBlobNum
    * argument to the constructor. Also allows counting attempted blob creations.
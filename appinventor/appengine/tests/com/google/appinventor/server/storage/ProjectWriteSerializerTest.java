@@ -0,0 +1,138 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests ProjectWriteSerializer class.
+ *
+ */
+public class ProjectWriteSerializerTest extends TestCase {
+  private static final byte[] CONTENT1 = { 1 };
+  private static final byte[] CONTENT2 = { 2 };
+
+  /*
+   * Records the writes. The first write blocks until it is released.
+   */
+  private static class RecordingWriter implements ProjectWriteSerializer.Writer {
+    final List<Map<String, byte[]>> writes = Lists.newArrayList();
+    final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+
+    @Override
+    public long write(Map<String, byte[]> files) {
+      int n;
+      synchronized (this) {
+        writes.add(files);
+        n = writes.size();
+      }
+      if (n == 1) {
+        firstWriteStarted.countDown();
+        try {
+          releaseFirstWrite.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      if (files.containsKey("bad")) {
+        throw new IllegalStateException();
+      }
+      return n;
+    }
+  }
+
+  /*
+   * Writes files in another thread.
+   */
+  private static class WriteThread extends Thread {
+    final ProjectWriteSerializer serializer;
+    final Map<String, byte[]> files;
+    final ProjectWriteSerializer.Writer writer;
+    long modDate;
+    RuntimeException failure;
+
+    WriteThread(ProjectWriteSerializer serializer, Map<String, byte[]> files,
+        ProjectWriteSerializer.Writer writer) {
+      this.serializer = serializer;
+      this.files = files;
+      this.writer = writer;
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        modDate = serializer.write(1, files, writer);
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+  }
+
+  public void testQueuedWritesAreMerged() throws Exception {
+    ProjectWriteSerializer serializer = new ProjectWriteSerializer();
+    RecordingWriter writer = new RecordingWriter();
+    WriteThread first = new WriteThread(serializer,
+        ImmutableMap.of("a.scm", CONTENT1), writer);
+    assertTrue(writer.firstWriteStarted.await(5, TimeUnit.SECONDS));
+    WriteThread second = new WriteThread(serializer,
+        ImmutableMap.of("a.scm", CONTENT1, "a.bky", CONTENT1), writer);
+    waitUntilQueued(second);
+    WriteThread third = new WriteThread(serializer,
+        ImmutableMap.of("a.scm", CONTENT2), writer);
+    waitUntilQueued(third);
+    writer.releaseFirstWrite.countDown();
+    first.join();
+    second.join();
+    third.join();
+
+    assertEquals(2, writer.writes.size());
+    Map<String, byte[]> merged = writer.writes.get(1);
+    assertEquals(2, merged.size());
+    assertSame(CONTENT2, merged.get("a.scm"));
+    assertSame(CONTENT1, merged.get("a.bky"));
+    assertEquals(1, first.modDate);
+    assertEquals(2, second.modDate);
+    assertEquals(2, third.modDate);
+  }
+
+  public void testFailedMergedWriteIsSplit() throws Exception {
+    ProjectWriteSerializer serializer = new ProjectWriteSerializer();
+    RecordingWriter writer = new RecordingWriter();
+    WriteThread first = new WriteThread(serializer,
+        ImmutableMap.of("a.scm", CONTENT1), writer);
+    assertTrue(writer.firstWriteStarted.await(5, TimeUnit.SECONDS));
+    WriteThread bad = new WriteThread(serializer, ImmutableMap.of("bad", CONTENT1), writer);
+    WriteThread good = new WriteThread(serializer, ImmutableMap.of("a.bky", CONTENT2), writer);
+    waitUntilQueued(bad);
+    waitUntilQueued(good);
+    writer.releaseFirstWrite.countDown();
+    first.join();
+    bad.join();
+    good.join();
+
+    assertNull(first.failure);
+    assertTrue(bad.failure instanceof IllegalStateException);
+    assertNull(good.failure);
+    // The first write, the failed merged write, and the two writes one at a time.
+    assertEquals(4, writer.writes.size());
+  }
+
+  private static void waitUntilQueued(Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+  }
+}
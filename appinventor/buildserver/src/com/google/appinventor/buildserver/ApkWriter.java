@@ -0,0 +1,336 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DEROutputStream;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a signed and aligned APK in a single pass, without running jarsigner or zipalign.
+ *
+ * <p>The SHA-1 digest of each entry is computed while the entry is written. When the APK is
+ * closed, the JAR signature (META-INF/MANIFEST.MF, META-INF/CERT.SF and the PKCS #7 signature
+ * block) is added at the end of the APK.
+ *
+ * <p>The data of each uncompressed entry starts at a multiple of {@link #ALIGNMENT} bytes from
+ * the start of the file, as zipalign would arrange it, so that Android can map it into memory.
+ * Padding is added to the extra field of the entry's local header.
+ */
+final class ApkWriter implements Closeable {
+  // Alignment of the data of uncompressed entries, as in "zipalign 4".
+  static final int ALIGNMENT = 4;
+
+  private static final String META_INF = "META-INF/";
+  private static final String MANIFEST_NAME = META_INF + "MANIFEST.MF";
+  private static final String SIGNATURE_NAME = META_INF + "CERT.SF";
+  private static final String CREATED_BY = "1.0 (App Inventor)";
+
+  // Size of the fixed part of a zip local file header.
+  private static final int LOCAL_HEADER_SIZE = 30;
+
+  private final PrivateKey key;
+  private final X509Certificate certificate;
+  private final CountingOutputStream counter;
+  private final ZipOutputStream zip;
+  private final MessageDigest digest;
+
+  // The sections of the manifest, one per entry.
+  private final ByteArrayOutputStream manifestSections = new ByteArrayOutputStream();
+  // The sections of the signature file, each with the digest of a manifest section.
+  private final ByteArrayOutputStream signatureSections = new ByteArrayOutputStream();
+
+  /**
+   * Creates an ApkWriter.
+   *
+   * @param apk  the APK to write
+   * @param key  the key to sign the APK with, or null to write an unsigned APK
+   * @param certificate  the certificate of the key, or null to write an unsigned APK
+   */
+  ApkWriter(File apk, PrivateKey key, X509Certificate certificate) throws IOException {
+    this.key = key;
+    this.certificate = certificate;
+    try {
+      digest = MessageDigest.getInstance("SHA1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(apk)));
+    zip = new ZipOutputStream(counter);
+    zip.setLevel(Deflater.BEST_COMPRESSION);
+  }
+
+  /**
+   * Loads the key and certificate with the given alias from a JKS keystore, and creates an
+   * ApkWriter that signs with them.
+   *
+   * @param apk  the APK to write
+   * @param keystore  the keystore
+   * @param alias  the alias of the key
+   * @param password  the password of both the keystore and the key
+   */
+  static ApkWriter create(File apk, File keystore, String alias, String password)
+      throws IOException {
+    try {
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      InputStream in = new FileInputStream(keystore);
+      try {
+        keyStore.load(in, password.toCharArray());
+      } finally {
+        in.close();
+      }
+      PrivateKey key = (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+      X509Certificate certificate = (X509Certificate) keyStore.getCertificate(alias);
+      if (key == null || certificate == null) {
+        throw new IOException("No key " + alias + " in " + keystore);
+      }
+      return new ApkWriter(apk, key, certificate);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to load key " + alias + " from " + keystore, e);
+    }
+  }
+
+  /**
+   * Adds the entries of a zip file, such as the resources packaged by aapt. Entries are kept
+   * compressed or uncompressed as they are in the zip file. Directories and any existing JAR
+   * signature are left out.
+   */
+  void addZipFile(File zipFile) throws IOException {
+    ZipFile source = new ZipFile(zipFile);
+    try {
+      Enumeration<? extends ZipEntry> entries = source.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry sourceEntry = entries.nextElement();
+        String name = sourceEntry.getName();
+        if (sourceEntry.isDirectory() || isSignatureFile(name)) {
+          continue;
+        }
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(sourceEntry.getTime());
+        if (sourceEntry.getMethod() == ZipEntry.STORED) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(sourceEntry.getSize());
+          entry.setCompressedSize(sourceEntry.getSize());
+          entry.setCrc(sourceEntry.getCrc());
+        }
+        InputStream in = source.getInputStream(sourceEntry);
+        try {
+          addEntry(entry, in);
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Adds a file as a compressed entry with the given name.
+   */
+  void addFile(File file, String name) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(file.lastModified());
+    InputStream in = new FileInputStream(file);
+    try {
+      addEntry(entry, in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the JAR signature, unless the APK is unsigned, and finishes the APK.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (key == null) {
+        return;
+      }
+      ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+      writeAttribute(manifest, "Manifest-Version", "1.0");
+      writeAttribute(manifest, "Created-By", CREATED_BY);
+      manifest.write('\r');
+      manifest.write('\n');
+      manifestSections.writeTo(manifest);
+      byte[] manifestBytes = manifest.toByteArray();
+
+      ByteArrayOutputStream signature = new ByteArrayOutputStream();
+      writeAttribute(signature, "Signature-Version", "1.0");
+      writeAttribute(signature, "Created-By", CREATED_BY);
+      writeAttribute(signature, "SHA1-Digest-Manifest", base64Digest(manifestBytes));
+      signature.write('\r');
+      signature.write('\n');
+      signatureSections.writeTo(signature);
+      byte[] signatureBytes = signature.toByteArray();
+
+      writeUnsignedEntry(MANIFEST_NAME, manifestBytes);
+      writeUnsignedEntry(SIGNATURE_NAME, signatureBytes);
+      writeUnsignedEntry(META_INF + "CERT." + key.getAlgorithm(), signBlock(signatureBytes));
+    } finally {
+      zip.close();
+    }
+  }
+
+  /*
+   * Adds an entry, recording its digest in the manifest. Uncompressed entries are aligned.
+   */
+  private void addEntry(ZipEntry entry, InputStream in) throws IOException {
+    if (entry.getMethod() == ZipEntry.STORED) {
+      align(entry);
+    }
+    zip.putNextEntry(entry);
+    digest.reset();
+    ByteStreams.copy(in, new DigestOutputStream(zip, digest));
+    zip.closeEntry();
+
+    ByteArrayOutputStream section = new ByteArrayOutputStream();
+    writeAttribute(section, "Name", entry.getName());
+    writeAttribute(section, "SHA1-Digest", new String(Base64.encode(digest.digest()),
+        Charsets.US_ASCII));
+    section.write('\r');
+    section.write('\n');
+    byte[] sectionBytes = section.toByteArray();
+    manifestSections.write(sectionBytes);
+
+    writeAttribute(signatureSections, "Name", entry.getName());
+    writeAttribute(signatureSections, "SHA1-Digest", base64Digest(sectionBytes));
+    signatureSections.write('\r');
+    signatureSections.write('\n');
+  }
+
+  /*
+   * Sets the extra field of an uncompressed entry so that its data starts on an aligned offset.
+   */
+  private void align(ZipEntry entry) {
+    // Everything written so far has reached the counter, since the previous entry was closed.
+    long dataOffset = counter.getCount() + LOCAL_HEADER_SIZE +
+        entry.getName().getBytes(Charsets.UTF_8).length;
+    int padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+    entry.setExtra(padding == 0 ? null : new byte[padding]);
+  }
+
+  private void writeUnsignedEntry(String name, byte[] contents) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(System.currentTimeMillis());
+    zip.putNextEntry(entry);
+    zip.write(contents);
+    zip.closeEntry();
+  }
+
+  /*
+   * Returns the DER encoded PKCS #7 signature block of the signature file.
+   */
+  private byte[] signBlock(byte[] signatureBytes) throws IOException {
+    try {
+      ContentSigner signer = new JcaContentSignerBuilder("SHA1with" + key.getAlgorithm())
+          .build(key);
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(
+          new JcaDigestCalculatorProviderBuilder().build())
+          .setDirectSignature(true)
+          .build(signer, certificate));
+      generator.addCertificates(new JcaCertStore(ImmutableList.of(certificate)));
+      CMSSignedData signedData = generator.generate(
+          new CMSProcessableByteArray(signatureBytes), false);
+
+      ASN1InputStream asn1 = new ASN1InputStream(signedData.getEncoded());
+      try {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DEROutputStream der = new DEROutputStream(block);
+        der.writeObject(asn1.readObject());
+        der.flush();
+        return block.toByteArray();
+      } finally {
+        asn1.close();
+      }
+    } catch (OperatorCreationException e) {
+      throw new IOException("Unable to sign APK", e);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to sign APK", e);
+    } catch (CMSException e) {
+      throw new IOException("Unable to sign APK", e);
+    }
+  }
+
+  private String base64Digest(byte[] bytes) {
+    digest.reset();
+    return new String(Base64.encode(digest.digest(bytes)), Charsets.US_ASCII);
+  }
+
+  private static boolean isSignatureFile(String name) {
+    if (!name.startsWith(META_INF) || name.indexOf('/', META_INF.length()) != -1) {
+      return false;
+    }
+    String upperCaseName = name.toUpperCase();
+    return upperCaseName.equals(MANIFEST_NAME) || upperCaseName.endsWith(".SF") ||
+        upperCaseName.endsWith(".RSA") || upperCaseName.endsWith(".DSA") ||
+        upperCaseName.endsWith(".EC");
+  }
+
+  /*
+   * Writes a manifest attribute, continuing lines longer than 72 bytes on the next line as the
+   * JAR specification requires.
+   */
+  private static void writeAttribute(OutputStream out, String name, String value)
+      throws IOException {
+    String line = name + ": " + value;
+    int lineBytes = 0;
+    for (int i = 0; i < line.length(); ) {
+      int codePoint = line.codePointAt(i);
+      byte[] bytes = new String(Character.toChars(codePoint)).getBytes(Charsets.UTF_8);
+      if (lineBytes + bytes.length > 72) {
+        out.write('\r');
+        out.write('\n');
+        out.write(' ');
+        lineBytes = 1;
+      }
+      out.write(bytes);
+      lineBytes += bytes.length;
+      i += Character.charCount(codePoint);
+    }
+    out.write('\r');
+    out.write('\n');
+  }
+}
@@ -0,0 +1,262 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A bounded on-disk cache of files, keyed by hash.
+ *
+ * <p>Files are written to a temp file and then renamed into place. When the total size of the
+ * cached files exceeds the limit, the least recently used files are deleted.
+ */
+class BoundedFileCache {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BoundedFileCache.class.getName());
+
+  private final File cacheDir;
+  private final long maxSizeBytes;
+  private final String fileExtension;
+
+  // The sizes of the cached files keyed by hash, in least recently used order.
+  // Guarded by this.
+  private final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long sizeBytes;
+
+  private final AtomicInteger hits = new AtomicInteger(0);
+  private final AtomicInteger misses = new AtomicInteger(0);
+
+  /**
+   * Creates a BoundedFileCache, keeping any files already in the cache directory.
+   *
+   * @param cacheDir  the directory containing the cached files
+   * @param maxSizeBytes  the maximum total size of the cached files
+   * @param fileExtension  the extension of the cached files, such as ".zip"
+   */
+  BoundedFileCache(File cacheDir, long maxSizeBytes, final String fileExtension) {
+    this.cacheDir = cacheDir;
+    this.maxSizeBytes = maxSizeBytes;
+    this.fileExtension = fileExtension;
+    cacheDir.mkdirs();
+
+    File[] cachedFiles = cacheDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(fileExtension);
+      }
+    });
+    if (cachedFiles != null) {
+      Arrays.sort(cachedFiles, new Comparator<File>() {
+        @Override
+        public int compare(File f1, File f2) {
+          return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+        }
+      });
+      synchronized (this) {
+        for (File cachedFile : cachedFiles) {
+          entries.put(PathUtil.trimOffExtension(cachedFile.getName()), cachedFile.length());
+          sizeBytes += cachedFile.length();
+        }
+        evict();
+      }
+    }
+  }
+
+  /**
+   * Opens the cached file for the given key. The file can still be read if it is evicted while
+   * the stream is open.
+   *
+   * @return  a stream of the cached file, or null if the file isn't in the cache
+   */
+  InputStream open(String key) {
+    File cachedFile = new File(cacheDir, key + fileExtension);
+    synchronized (this) {
+      if (entries.get(key) != null) {
+        try {
+          InputStream in = new FileInputStream(cachedFile);
+          // Remember the order of use across restarts.
+          cachedFile.setLastModified(System.currentTimeMillis());
+          hits.incrementAndGet();
+          return in;
+        } catch (FileNotFoundException e) {
+          // The file was deleted behind our back.
+        }
+      }
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Copies the cached file for the given key to the given file.
+   *
+   * @return  {@code true} if the file was in the cache, {@code false} otherwise
+   */
+  boolean get(String key, File destination) throws IOException {
+    InputStream in = open(key);
+    if (in == null) {
+      return false;
+    }
+    try {
+      OutputStream out = new FileOutputStream(destination);
+      try {
+        ByteStreams.copy(in, out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    return true;
+  }
+
+  /**
+   * Adds a copy of the given file to the cache.
+   */
+  void put(String key, File source) throws IOException {
+    PendingFile pendingFile = startPut(key);
+    try {
+      Files.copy(source, pendingFile);
+      pendingFile.commit();
+    } finally {
+      pendingFile.close();
+    }
+  }
+
+  /**
+   * Starts adding a file to the cache. What is written to the returned stream is added to the
+   * cache when {@link PendingFile#commit} is called, and discarded if the stream is closed
+   * without being committed.
+   */
+  PendingFile startPut(String key) throws IOException {
+    return new PendingFile(key, File.createTempFile(key, ".tmp", cacheDir));
+  }
+
+  /**
+   * A file being written to the cache.
+   */
+  final class PendingFile extends OutputStream {
+    private final String key;
+    private final File tmpFile;
+    private final OutputStream out;
+    private boolean closed;
+
+    private PendingFile(String key, File tmpFile) throws IOException {
+      this.key = key;
+      this.tmpFile = tmpFile;
+      out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    /**
+     * Adds what was written to the cache and closes the stream.
+     */
+    void commit() throws IOException {
+      closed = true;
+      try {
+        out.close();
+        add(key, tmpFile);
+      } finally {
+        tmpFile.delete();
+      }
+    }
+
+    /**
+     * Discards what was written, unless the stream was committed.
+     */
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        try {
+          out.close();
+        } finally {
+          tmpFile.delete();
+        }
+      }
+    }
+  }
+
+  /*
+   * Renames a complete temp file in the cache directory to the cached file for the given key.
+   */
+  private synchronized void add(String key, File tmpFile) throws IOException {
+    File cachedFile = new File(cacheDir, key + fileExtension);
+    if (!tmpFile.renameTo(cachedFile)) {
+      throw new IOException("Unable to add " + cachedFile + " to " + cacheDir);
+    }
+    Long previousSize = entries.put(key, cachedFile.length());
+    if (previousSize != null) {
+      sizeBytes -= previousSize;
+    }
+    sizeBytes += cachedFile.length();
+    evict();
+  }
+
+  /*
+   * Deletes the least recently used files until the cache is within its size limit.
+   * Must be called while holding the lock on this.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      new File(cacheDir, entry.getKey() + fileExtension).delete();
+      sizeBytes -= entry.getValue();
+      iterator.remove();
+      LOG.info("Evicted " + entry.getKey() + " from " + cacheDir);
+    }
+  }
+
+  int getHitCount() {
+    return hits.get();
+  }
+
+  int getMissCount() {
+    return misses.get();
+  }
+
+  synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+}
@@ -0,0 +1,251 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of one build: how far along it is, which stages are running, and the output of
+ * the compiler so far.
+ *
+ * <p>Every change is recorded as an event with a sequence number, so that a client can ask for
+ * the events after the last one it has seen, and wait for new ones instead of polling. Only the
+ * most recent events are kept.
+ *
+ * <p>The builds being tracked are registered by their build ID. A finished build stays
+ * registered for a while, so that clients can still read its last events.
+ */
+final class BuildProgress {
+  // The maximum number of events kept for a build.
+  private static final int MAX_EVENTS = 1000;
+
+  // How long a finished build stays registered.
+  private static final long FINISHED_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final ConcurrentMap<String, BuildProgress> builds =
+      new ConcurrentHashMap<String, BuildProgress>();
+
+  private final String buildId;
+
+  // The following fields are guarded by this.
+  private int percent;
+  private final Set<String> runningStages = Sets.newLinkedHashSet();
+  private final LinkedList<JSONObject> events = Lists.newLinkedList();
+  private long nextSequence;
+  private boolean done;
+  private int result;
+  private long finishedMillis;
+
+  /**
+   * Creates a BuildProgress that isn't registered.
+   *
+   * @param buildId  the ID of the build
+   */
+  BuildProgress(String buildId) {
+    this.buildId = buildId;
+  }
+
+  /**
+   * Creates a BuildProgress and registers it under the given build ID, replacing the progress of
+   * any earlier build with that ID.
+   *
+   * @param buildId  the ID of the build
+   */
+  static BuildProgress start(String buildId) {
+    removeExpired();
+    BuildProgress progress = new BuildProgress(buildId);
+    builds.put(buildId, progress);
+    return progress;
+  }
+
+  /**
+   * Returns the progress of the build with the given ID, or null if there is no such build.
+   */
+  static BuildProgress get(String buildId) {
+    return builds.get(buildId);
+  }
+
+  static int getRegisteredCount() {
+    return builds.size();
+  }
+
+  private static void removeExpired() {
+    long now = System.currentTimeMillis();
+    for (Iterator<BuildProgress> iterator = builds.values().iterator(); iterator.hasNext(); ) {
+      BuildProgress progress = iterator.next();
+      synchronized (progress) {
+        if (progress.done && now - progress.finishedMillis > FINISHED_RETENTION_MILLIS) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  String getBuildId() {
+    return buildId;
+  }
+
+  synchronized int getPercent() {
+    return percent;
+  }
+
+  synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Records how far along the build is. Stages that run at the same time report their progress
+   * in any order, so the percentage never goes down.
+   *
+   * @param percent  the percentage of the build that is done
+   */
+  synchronized void setPercent(int percent) {
+    if (percent > this.percent) {
+      this.percent = percent;
+      addEvent("progress", "percent", percent);
+    }
+  }
+
+  synchronized void stageStarted(String stage) {
+    runningStages.add(stage);
+    addEvent("stage-started", "stage", stage);
+  }
+
+  synchronized void stageFinished(String stage, boolean succeeded) {
+    runningStages.remove(stage);
+    addEvent("stage-finished", "stage", stage, "succeeded", succeeded);
+  }
+
+  /**
+   * Records a line of compiler output.
+   */
+  synchronized void output(String line) {
+    addEvent("output", "text", line);
+  }
+
+  /**
+   * Records that the build has finished, and wakes up the clients waiting for events.
+   *
+   * @param result  the result code of the build, as in {@link Result}
+   */
+  synchronized void finish(int result) {
+    if (done) {
+      return;
+    }
+    this.result = result;
+    done = true;
+    finishedMillis = System.currentTimeMillis();
+    runningStages.clear();
+    addEvent("finished", "result", result);
+  }
+
+  /**
+   * Returns a stream that records each line written to it as compiler output.
+   */
+  OutputStream newOutputStream() {
+    return new OutputStream() {
+      private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+      @Override
+      public synchronized void write(int b) {
+        if (b == '\n') {
+          flushLine();
+        } else if (b != '\r') {
+          line.write(b);
+        }
+      }
+
+      @Override
+      public synchronized void close() {
+        if (line.size() > 0) {
+          flushLine();
+        }
+      }
+
+      private void flushLine() {
+        output(new String(line.toByteArray(), Charsets.UTF_8));
+        line.reset();
+      }
+    };
+  }
+
+  /**
+   * Returns the state of the build and the events after the given sequence number, waiting up to
+   * the given time for such events if there aren't any yet and the build hasn't finished.
+   *
+   * @param since  the sequence number of the last event the client has seen, or -1
+   * @param timeoutMillis  how long to wait for new events
+   */
+  synchronized JSONObject await(long since, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remainingMillis = timeoutMillis;
+    while (nextSequence <= since + 1 && !done && remainingMillis > 0) {
+      wait(remainingMillis);
+      remainingMillis = deadline - System.currentTimeMillis();
+    }
+
+    JSONArray newEvents = new JSONArray();
+    for (JSONObject event : events) {
+      if (event.optLong("seq") > since) {
+        newEvents.put(event);
+      }
+    }
+    try {
+      JSONObject state = new JSONObject();
+      state.put("buildId", buildId);
+      state.put("percent", percent);
+      state.put("stages", new JSONArray(runningStages));
+      state.put("done", done);
+      if (done) {
+        state.put("result", result);
+      }
+      // Events that were dropped before the client read them are lost.
+      state.put("missed", !events.isEmpty() && events.getFirst().optLong("seq") > since + 1);
+      state.put("last", nextSequence - 1);
+      state.put("events", newEvents);
+      return state;
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /*
+   * Records an event with the given type and properties, and wakes up the clients waiting for
+   * events. Must be called while holding the lock on this.
+   */
+  private void addEvent(String type, Object... namesAndValues) {
+    JSONObject event = new JSONObject();
+    try {
+      event.put("seq", nextSequence++);
+      event.put("type", type);
+      for (int i = 0; i < namesAndValues.length; i += 2) {
+        event.put((String) namesAndValues[i], namesAndValues[i + 1]);
+      }
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+    events.add(event);
+    if (events.size() > MAX_EVENTS) {
+      events.removeFirst();
+    }
+    notifyAll();
+  }
+}
@@ -0,0 +1,339 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for executing builds, each in its own thread.
+ *
+ * <p>This Executor allows only a certain number of simultaneous tasks. Additional tasks wait in a
+ * bounded queue, and are rejected only when the queue is full. Tasks that wait longer than the
+ * deadline are dropped.</p>
+ *
+ * <p>When a task finishes, the waiting task with the highest {@link Priority} runs next. Among
+ * tasks of the same priority, the task of the user with the fewest running tasks goes first, so
+ * that one user can't take over the build server by asking for many builds. Remaining ties go to
+ * the task that has waited the longest.</p>
+ */
+final class BuildQueue implements Executor {
+  /**
+   * The priority of a build, highest first.
+   */
+  enum Priority {
+    // A build of the companion app, which a user needs before they can test their app live.
+    COMPANION,
+    // A build that a user asked for and is waiting on.
+    INTERACTIVE,
+    // A build that nobody is waiting on, such as one of many projects built together.
+    BATCH;
+
+    /**
+     * Returns the priority with the given name, ignoring case. A missing or unknown name means
+     * {@link #INTERACTIVE}.
+     */
+    static Priority fromString(String name) {
+      if (name != null && !name.isEmpty()) {
+        for (Priority priority : values()) {
+          if (priority.name().equalsIgnoreCase(name)) {
+            return priority;
+          }
+        }
+      }
+      return INTERACTIVE;
+    }
+  }
+
+  // Until a build has finished, wait time estimates assume that a build takes this long.
+  private static final long DEFAULT_TASK_MILLIS = 60 * 1000;
+
+  // How often waiting tasks are checked against the deadline.
+  private static final long DEADLINE_CHECK_MILLIS = 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildQueue.class.getName());
+
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of waiting tasks.
+  private final int maxQueuedTasks;
+
+  // How long a task may wait before it is dropped, in milliseconds. 0 means forever.
+  private final long deadlineMillis;
+
+  // The waiting tasks, in arrival order. Guarded by this.
+  private final List<QueuedTask> queue = Lists.newLinkedList();
+
+  // The number of active tasks of each user. Guarded by this.
+  private final Map<String, Integer> activeTasksPerUser = Maps.newHashMap();
+
+  // Guarded by this.
+  private int activeTaskCount;
+  private int maxQueuedTaskCount;
+
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger expiredTaskCount = new AtomicInteger(0);
+
+  private final LatencySamples waitTimes = new LatencySamples();
+  private final LatencySamples runTimes = new LatencySamples();
+
+  private static class QueuedTask {
+    final String userName;
+    final Priority priority;
+    final Runnable runnable;
+    final Runnable onExpired;
+    final long queuedAt = System.currentTimeMillis();
+
+    QueuedTask(String userName, Priority priority, Runnable runnable, Runnable onExpired) {
+      this.userName = (userName == null) ? "" : userName;
+      this.priority = priority;
+      this.runnable = runnable;
+      this.onExpired = onExpired;
+    }
+  }
+
+  /**
+   * Creates a BuildQueue.
+   *
+   * @param maxActiveTasks  the maximum number of active tasks, or 0 for unlimited
+   * @param maxQueuedTasks  the maximum number of waiting tasks
+   * @param deadlineMillis  how long a task may wait before it is dropped, or 0 for forever
+   */
+  BuildQueue(int maxActiveTasks, int maxQueuedTasks, long deadlineMillis) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.deadlineMillis = deadlineMillis;
+    if (deadlineMillis > 0) {
+      new Timer("BuildQueue deadline", true).schedule(new TimerTask() {
+        @Override
+        public void run() {
+          List<QueuedTask> expired;
+          synchronized (BuildQueue.this) {
+            expired = removeExpiredTasks();
+          }
+          runExpiredHandlers(expired);
+        }
+      }, DEADLINE_CHECK_MILLIS, DEADLINE_CHECK_MILLIS);
+    }
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    submit(null, Priority.INTERACTIVE, runnable, null);
+  }
+
+  /**
+   * Runs the given task now, or queues it if the maximum number of tasks are active.
+   *
+   * @param userName  the user who asked for the task
+   * @param priority  the priority of the task
+   * @param runnable  the task
+   * @param onExpired  run instead of the task if the task waits longer than the deadline; may be
+   *     null
+   * @return  the estimated time until the task starts, in milliseconds
+   * @throws RejectedExecutionException  if the queue is full
+   */
+  long submit(String userName, Priority priority, Runnable runnable, Runnable onExpired) {
+    QueuedTask task = new QueuedTask(userName, priority, runnable, onExpired);
+    List<QueuedTask> expired;
+    long estimatedWaitMillis;
+    boolean rejected = false;
+    synchronized (this) {
+      expired = removeExpiredTasks();
+      if (hasIdleSlot()) {
+        start(task);
+        estimatedWaitMillis = 0;
+      } else if (queue.size() < maxQueuedTasks) {
+        estimatedWaitMillis = getEstimatedWaitMillis(priority);
+        queue.add(task);
+        maxQueuedTaskCount = Math.max(maxQueuedTaskCount, queue.size());
+        LOG.info("Queued " + priority + " build for " + task.userName + ", " + queue.size() +
+            " builds waiting, estimated wait " + estimatedWaitMillis + " ms");
+      } else {
+        estimatedWaitMillis = getEstimatedWaitMillis(priority);
+        rejected = true;
+      }
+    }
+    runExpiredHandlers(expired);
+    if (rejected) {
+      throw new RejectedExecutionException();
+    }
+    return estimatedWaitMillis;
+  }
+
+  /**
+   * Returns the estimated time until a task with the given priority would start if it were
+   * submitted now, in milliseconds.
+   */
+  synchronized long getEstimatedWaitMillis(Priority priority) {
+    if (hasIdleSlot()) {
+      return 0;
+    }
+    int tasksAhead = 0;
+    for (QueuedTask queuedTask : queue) {
+      if (queuedTask.priority.compareTo(priority) <= 0) {
+        tasksAhead++;
+      }
+    }
+    long taskMillis =
+        (runTimes.getCount() == 0) ? DEFAULT_TASK_MILLIS : runTimes.getAverageMillis();
+    return (tasksAhead / maxActiveTasks + 1) * taskMillis;
+  }
+
+  /*
+   * Must be called while holding the lock on this.
+   */
+  private boolean hasIdleSlot() {
+    return maxActiveTasks == 0 || activeTaskCount < maxActiveTasks;
+  }
+
+  /*
+   * Starts a thread for the given task.
+   * Must be called while holding the lock on this.
+   */
+  private void start(final QueuedTask task) {
+    final long startedAt = System.currentTimeMillis();
+    waitTimes.add(startedAt - task.queuedAt);
+    activeTaskCount++;
+    Integer userTasks = activeTasksPerUser.get(task.userName);
+    activeTasksPerUser.put(task.userName, (userTasks == null) ? 1 : userTasks + 1);
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.runnable.run();
+        } finally {
+          finished(task, System.currentTimeMillis() - startedAt);
+        }
+      }
+    });
+    thread.start();
+  }
+
+  private void finished(QueuedTask task, long runMillis) {
+    runTimes.add(runMillis);
+    completedTaskCount.incrementAndGet();
+    List<QueuedTask> expired;
+    synchronized (this) {
+      activeTaskCount--;
+      int userTasks = activeTasksPerUser.get(task.userName) - 1;
+      if (userTasks == 0) {
+        activeTasksPerUser.remove(task.userName);
+      } else {
+        activeTasksPerUser.put(task.userName, userTasks);
+      }
+
+      expired = removeExpiredTasks();
+      while (hasIdleSlot() && !queue.isEmpty()) {
+        start(removeNextTask());
+      }
+    }
+    runExpiredHandlers(expired);
+  }
+
+  /*
+   * Removes the task that should run next from the queue.
+   * Must be called while holding the lock on this.
+   */
+  private QueuedTask removeNextTask() {
+    QueuedTask next = null;
+    for (QueuedTask task : queue) {
+      if (next == null || task.priority.compareTo(next.priority) < 0 ||
+          (task.priority == next.priority &&
+           getActiveTaskCount(task.userName) < getActiveTaskCount(next.userName))) {
+        next = task;
+      }
+    }
+    queue.remove(next);
+    return next;
+  }
+
+  private int getActiveTaskCount(String userName) {
+    Integer userTasks = activeTasksPerUser.get(userName);
+    return (userTasks == null) ? 0 : userTasks;
+  }
+
+  /*
+   * Removes the tasks that have waited longer than the deadline from the queue.
+   * Must be called while holding the lock on this.
+   */
+  private List<QueuedTask> removeExpiredTasks() {
+    List<QueuedTask> expired = Lists.newArrayList();
+    if (deadlineMillis > 0) {
+      long now = System.currentTimeMillis();
+      for (Iterator<QueuedTask> iterator = queue.iterator(); iterator.hasNext(); ) {
+        QueuedTask task = iterator.next();
+        if (now - task.queuedAt > deadlineMillis) {
+          iterator.remove();
+          expired.add(task);
+        }
+      }
+    }
+    return expired;
+  }
+
+  /*
+   * Runs the expired handlers of the given tasks, each in its own thread.
+   * Must not be called while holding the lock on this.
+   */
+  private void runExpiredHandlers(List<QueuedTask> expired) {
+    for (QueuedTask task : expired) {
+      LOG.warning("Dropped " + task.priority + " build for " + task.userName + " after waiting " +
+          (System.currentTimeMillis() - task.queuedAt) + " ms");
+      expiredTaskCount.incrementAndGet();
+      if (task.onExpired != null) {
+        new Thread(task.onExpired).start();
+      }
+    }
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public synchronized int getActiveTaskCount() {
+    return activeTaskCount;
+  }
+
+  public synchronized int getQueuedTaskCount() {
+    return queue.size();
+  }
+
+  public synchronized int getMaxQueuedTaskCount() {
+    return maxQueuedTaskCount;
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public int getExpiredTaskCount() {
+    return expiredTaskCount.get();
+  }
+
+  /**
+   * Returns the times that tasks waited in the queue before they started.
+   */
+  LatencySamples getWaitTimes() {
+    return waitTimes;
+  }
+}
@@ -0,0 +1,143 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A bounded on-disk cache of build results, keyed by a hash of the build input.
+ *
+ * <p>Students often ask for the same project to be packaged again without changing it. The
+ * result of such a build only depends on the project sources, the keystore used to sign the APK
+ * and the version of the build server, so a previous result can be sent back instead.
+ *
+ * <p>Builds whose input doesn't contain a keystore aren't cached, since they generate a new
+ * keystore for the user and must not hand out someone else's.
+ *
+ * <p>When the total size of the cached results exceeds the limit, the least recently used
+ * results are deleted.
+ */
+final class BuildResultCache extends BoundedFileCache {
+  private static final HashFunction HASH_FUNCTION = Hashing.sha1();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildResultCache.class.getName());
+
+  private static String buildServerFingerprint;
+
+  /**
+   * Creates a BuildResultCache, keeping any results already in the cache directory.
+   *
+   * @param cacheDir  the directory containing the cached results
+   * @param maxSizeBytes  the maximum total size of the cached results
+   */
+  BuildResultCache(File cacheDir, long maxSizeBytes) {
+    super(cacheDir, maxSizeBytes, ".zip");
+  }
+
+  /**
+   * Returns the key of the given build input, or null if builds of the input must not be cached.
+   *
+   * @param inputZip  the zip file representing the App Inventor source code
+   * @param keystoreEntryName  the name of the keystore entry in the zip
+   * @param buildServerVersion  identifies the build server binary, see
+   *     {@link #getBuildServerFingerprint}
+   */
+  static String computeKey(ZipFile inputZip, String keystoreEntryName, String buildServerVersion)
+      throws IOException {
+    if (inputZip.getEntry(keystoreEntryName) == null) {
+      return null;
+    }
+
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    hasher.putString(buildServerVersion, Charsets.UTF_8);
+    putZipEntries(hasher, inputZip, null);
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns a string identifying the build server binary, for the keys of the caches whose
+   * entries depend on it. It is a hash of the build server jar, since the git version is "none"
+   * for untagged builds and a rebuilt build server must not use the results of the previous one.
+   * If the build server classes aren't in a jar, the git fingerprint is used instead.
+   */
+  static synchronized String getBuildServerFingerprint() {
+    if (buildServerFingerprint == null) {
+      buildServerFingerprint = GitBuildId.getFingerprint();
+      try {
+        File codeSource = new File(BuildResultCache.class.getProtectionDomain().getCodeSource()
+            .getLocation().toURI());
+        if (codeSource.isFile()) {
+          buildServerFingerprint = Files.hash(codeSource, HASH_FUNCTION).toString();
+        }
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unable to hash the build server jar", e);
+      }
+    }
+    return buildServerFingerprint;
+  }
+
+  /**
+   * Adds the names and contents of the entries of a zip file to a hash.
+   *
+   * @param hasher  the hash
+   * @param inputZip  the zip file
+   * @param excludedEntryName  the name of an entry to leave out, or null
+   */
+  static void putZipEntries(Hasher hasher, ZipFile inputZip, String excludedEntryName)
+      throws IOException {
+    // Hash the entries in name order, so that the key doesn't depend on how the zip was written.
+    List<ZipEntry> zipEntries = Lists.newArrayList();
+    Enumeration<? extends ZipEntry> enumeration = inputZip.entries();
+    while (enumeration.hasMoreElements()) {
+      ZipEntry zipEntry = enumeration.nextElement();
+      if (!zipEntry.isDirectory() && !zipEntry.getName().equals(excludedEntryName)) {
+        zipEntries.add(zipEntry);
+      }
+    }
+    Collections.sort(zipEntries, new Comparator<ZipEntry>() {
+      @Override
+      public int compare(ZipEntry e1, ZipEntry e2) {
+        return e1.getName().compareTo(e2.getName());
+      }
+    });
+
+    byte[] buffer = new byte[8192];
+    for (ZipEntry zipEntry : zipEntries) {
+      hasher.putString(zipEntry.getName(), Charsets.UTF_8);
+      long length = 0;
+      InputStream inputStream = inputZip.getInputStream(zipEntry);
+      try {
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, count);
+          length += count;
+        }
+      } finally {
+        inputStream.close();
+      }
+      hasher.putLong(length);
+    }
+  }
+}
@@ -5,13 +5,19 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.sun.grizzly.http.SelectorThread;
 import com.sun.jersey.api.container.grizzly.GrizzlyServerFactory;
 
+import org.apache.commons.io.output.TeeOutputStream;
+import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
@@ -19,12 +25,13 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -36,22 +43,34 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 /**
  * Top level class for exposing the building of App Inventor APK files as a RESTful web service.
@@ -70,10 +89,25 @@ public class BuildServer {
       usage = "Maximum ram that can be used by a child processes, in MB.")
     int childProcessRamMb = 2048;
 
+    @Option(name = "--childProcessRamBudgetMb",
+      usage = "Total ram that the warm Kawa compiler processes and the Kawa and DX processes of " +
+      "simultaneous builds can use, in MB. 0 means that only one Kawa or DX process runs at a " +
+      "time, besides the warm Kawa compiler processes.")
+    int childProcessRamBudgetMb = 0;
+
     @Option(name = "--maxSimultaneousBuilds",
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for one of the simultaneous builds to finish. " +
+      "0 means that builds are rejected when the maximum number of simultaneous builds are running.")
+    int maxQueuedBuilds = 100;
+
+    @Option(name = "--queuedBuildDeadlineSeconds",
+      usage = "How long a build can wait before it is dropped, in seconds. 0 means forever.")
+    int queuedBuildDeadlineSeconds = 600;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -87,6 +121,72 @@ public class BuildServer {
       usage = "Turn on debugging, which enables the non-async calls of the buildserver.")
     boolean debug = false;
 
+    @Option(name = "--kawaCompilerProcesses",
+      usage = "Number of warm Kawa compiler processes to keep running. 0 means fork Kawa for each build.")
+    int kawaCompilerProcesses = 1;
+
+    @Option(name = "--yailGenerators",
+      usage = "Number of screens whose YAIL can be generated at the same time, inside the build " +
+      "server. 0 means run YailGenerator.jar for each screen.")
+    int yailGenerators = 2;
+
+    @Option(name = "--keystorePoolSize",
+      usage = "Number of key pairs to keep ready for the keystores of new users. 0 means generate " +
+      "the key pair when the keystore is needed.")
+    int keystorePoolSize = 20;
+
+    @Option(name = "--keystorePoolLowWaterMark",
+      usage = "The keystore pool is filled again when it has fewer key pairs than this.")
+    int keystorePoolLowWaterMark = 5;
+
+    @Option(name = "--dexCacheDir",
+      usage = "Directory in which to cache dexed libraries. If not specified, a directory under java.io.tmpdir is used.")
+    String dexCacheDir = null;
+
+    @Option(name = "--dexCacheMb",
+      usage = "Maximum size of the cache of dexed libraries, in MB. 0 disables the cache, so that all the libraries are dexed on every build.")
+    int dexCacheMb = 256;
+
+    @Option(name = "--buildResultCacheDir",
+      usage = "Directory in which to cache build results. If not specified, a directory under java.io.tmpdir is used.")
+    String buildResultCacheDir = null;
+
+    @Option(name = "--buildResultCacheMb",
+      usage = "Maximum size of the build result cache, in MB. 0 disables the cache.")
+    int buildResultCacheMb = 1024;
+
+    @Option(name = "--classFileCacheDir",
+      usage = "Directory in which to cache the classes compiled from each screen. If not specified, a directory under java.io.tmpdir is used.")
+    String classFileCacheDir = null;
+
+    @Option(name = "--classFileCacheMb",
+      usage = "Maximum size of the class file cache, in MB. 0 disables the cache.")
+    int classFileCacheMb = 512;
+
+    @Option(name = "--companionApkCacheDir",
+      usage = "Directory in which to cache unsigned companion apks. If not specified, a directory under java.io.tmpdir is used.")
+    String companionApkCacheDir = null;
+
+    @Option(name = "--companionApkCacheMb",
+      usage = "Maximum size of the companion apk cache, in MB. 0 disables the cache.")
+    int companionApkCacheMb = 256;
+
+    @Option(name = "--workspaceDir",
+      usage = "Directory in which projects are extracted and built, e.g. a tmpfs such as /dev/shm. If not specified, java.io.tmpdir is used.")
+    String workspaceDir = null;
+
+    @Option(name = "--maxProjectSizeMb",
+      usage = "Maximum total size of the files of a project, in MB. 0 means no limit.")
+    int maxProjectSizeMb = 0;
+
+    @Option(name = "--resourceDir",
+      usage = "Directory in which the runtime jars, sdk tools and component files are extracted. If not specified, a directory under java.io.tmpdir is used.")
+    String resourceDir = null;
+
+    @Option(name = "--maxBatchProjects",
+      usage = "Maximum number of projects in a batch build request.")
+    int maxBatchProjects = 1000;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -101,6 +201,22 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // The name of the entry of a batch output zip that summarizes the builds.
+  private static final String BATCH_SUMMARY_FILE_NAME = "summary.json";
+
+  // How long a batch waits before submitting its next build again when the build executor is
+  // full of other requests.
+  private static final long BATCH_RETRY_MILLIS = 1000;
+
+  // The longest a client may wait for the progress of a build to change, in seconds.
+  private static final int MAX_PROGRESS_WAIT_SECONDS = 60;
+
+  // A waiting progress request holds one of the few Grizzly worker threads, which also serve the
+  // build requests, so only this many progress requests may wait at the same time. The others
+  // return right away.
+  private static final int MAX_PROGRESS_WAITERS = 2;
+  private static final Semaphore progressWaiters = new Semaphore(MAX_PROGRESS_WAITERS);
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -109,6 +225,9 @@ public class BuildServer {
   // The number of rejected build requests for this server run
   private static final AtomicInteger rejectedAsyncBuildRequests = new AtomicInteger(0);
 
+  // The number of batch build requests for this server run
+  private static final AtomicInteger batchBuildRequests = new AtomicInteger(0);
+
   //The number of successful build requests for this server run
   private static final AtomicInteger successfulBuildRequests = new AtomicInteger(0);
 
@@ -118,11 +237,14 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
+  // The build executor used to limit the number of simultaneous builds and queue the others.
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildQueue buildExecutor;
+
+  // The cache of previous build results, or null if build results aren't cached.
+  private static BuildResultCache buildResultCache;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -136,13 +258,28 @@ public class BuildServer {
   // The android.keystore file generated by this build request, if necessary.
   private File outputKeystore;
 
-  // The zip file where we put all the build results for this request.
-  private File outputZip;
+  // The result of the build, written to the output zip by writeOutputZip.
+  private Result buildResult;
+
+  // The key of the build in the build result cache, or null if its result isn't cached.
+  private String cacheKey;
+
+  // The output zip from the build result cache, if the project was built before. It will be
+  // closed in cleanUp.
+  private InputStream cachedOutputZip;
+
+  // The progress of the build for this request. The build is recorded as finished in cleanUp.
+  private BuildProgress progress;
 
   @GET
   @Path("health")
   @Produces(MediaType.TEXT_PLAIN)
   public Response health() throws IOException {
+    // Until the resources are extracted, builds would have to wait for them.
+    if (!Compiler.getResourceDirectory().isReady()) {
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("starting").build();
+    }
     return Response.ok("ok", MediaType.TEXT_PLAIN_TYPE).build();
   }
 
@@ -150,6 +287,85 @@ public class BuildServer {
   @Path("vars")
   @Produces(MediaType.TEXT_HTML)
   public Response var() throws IOException {
+    StringBuilder html = new StringBuilder();
+    html.append("<html><body><tt>");
+    for (Map.Entry<String, String> variable : getVariables().entrySet()) {
+      html.append("<b>").append(variable.getKey()).append("</b> ")
+        .append(variable.getValue()).append("<br>");
+    }
+    html.append("</tt></body></html>");
+    return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
+  }
+
+  /**
+   * Returns the progress of a build as JSON: its percentage, the stages that are running, whether
+   * it is done and its result, and the events (progress, stage transitions and compiler output)
+   * after the given sequence number. If there are no such events yet, the response waits until
+   * there are, or until the build finishes or the timeout expires, so that clients can follow a
+   * build with one request at a time instead of polling. The "last" value of the response is the
+   * sequence number to pass as since in the next request.
+   *
+   * @param buildId  the build ID returned in the X-Build-Id header when the build was requested
+   * @param since  the sequence number of the last event the client has seen, or -1
+   * @param timeoutSeconds  how long to wait for new events, at most 60 seconds. If too many
+   *     requests are already waiting, the response doesn't wait.
+   * @return an "OK" {@link Response}, or NOT_FOUND (404) if there is no build with the given ID
+   */
+  @GET
+  @Path("progress/{buildId}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(@PathParam("buildId") String buildId,
+    @QueryParam("since") @DefaultValue("-1") long since,
+    @QueryParam("timeout") @DefaultValue("30") int timeoutSeconds) throws InterruptedException {
+    BuildProgress buildProgress = BuildProgress.get(buildId);
+    if (buildProgress == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("Unknown build " + buildId).build();
+    }
+    long timeoutMillis =
+      TimeUnit.SECONDS.toMillis(Math.max(0, Math.min(timeoutSeconds, MAX_PROGRESS_WAIT_SECONDS)));
+    if (timeoutMillis == 0 || !progressWaiters.tryAcquire()) {
+      return Response.ok(buildProgress.await(since, 0).toString(),
+        MediaType.APPLICATION_JSON_TYPE).build();
+    }
+    try {
+      return Response.ok(buildProgress.await(since, timeoutMillis).toString(),
+        MediaType.APPLICATION_JSON_TYPE).build();
+    } finally {
+      progressWaiters.release();
+    }
+  }
+
+  /**
+   * Returns the same values as {@link #var()}, as a JSON object. Values that are numbers are
+   * JSON numbers.
+   */
+  @GET
+  @Path("vars.json")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response varJson() throws IOException, JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, String> variable : getVariables().entrySet()) {
+      String value = variable.getValue();
+      Object jsonValue = value;
+      try {
+        jsonValue = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        try {
+          double number = Double.parseDouble(value);
+          if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+            jsonValue = number;
+          }
+        } catch (NumberFormatException e2) {
+          // Not a number.
+        }
+      }
+      json.put(variable.getKey(), jsonValue);
+    }
+    return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  private static Map<String, String> getVariables() {
     Map<String, String> variables = new LinkedHashMap<String, String>();
 
     // Runtime
@@ -187,6 +403,8 @@ public class BuildServer {
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
+    variables.put("count-batch-build-requests", batchBuildRequests.get() + "");
+    variables.put("builds-with-progress", BuildProgress.getRegisteredCount() + "");
 
     // Build tasks
     int max = buildExecutor.getMaxActiveTasks();
@@ -200,14 +418,112 @@ public class BuildServer {
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
 
-    StringBuilder html = new StringBuilder();
-    html.append("<html><body><tt>");
-    for (Map.Entry<String, String> variable : variables.entrySet()) {
-      html.append("<b>").append(variable.getKey()).append("</b> ")
-        .append(variable.getValue()).append("<br>");
+    // Build queue
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-occurred", buildExecutor.getMaxQueuedTaskCount() + "");
+    variables.put("expired-build-tasks", buildExecutor.getExpiredTaskCount() + "");
+    LatencySamples waitTimes = buildExecutor.getWaitTimes();
+    variables.put("build-queue-wait-ms-p50", waitTimes.getPercentile(50) + "");
+    variables.put("build-queue-wait-ms-p95", waitTimes.getPercentile(95) + "");
+    variables.put("build-queue-wait-ms-p99", waitTimes.getPercentile(99) + "");
+    variables.put("build-queue-wait-ms-max", waitTimes.getMaxMillis() + "");
+    variables.put("estimated-build-queue-wait-ms",
+      buildExecutor.getEstimatedWaitMillis(BuildQueue.Priority.INTERACTIVE) + "");
+
+    // Kawa and DX processes
+    ChildProcessScheduler scheduler = Compiler.getChildProcessScheduler();
+    variables.put("child-process-ram-budget-mb", scheduler.getBudgetMb() + "");
+    variables.put("child-process-ram-available-mb", scheduler.getAvailableMb() + "");
+    variables.put("child-processes-running", scheduler.getRunningCount() + "");
+    variables.put("child-processes-waiting", scheduler.getWaitingCount() + "");
+    long admitted = scheduler.getAdmittedCount();
+    variables.put("child-processes-admitted", admitted + "");
+    variables.put("child-process-average-wait-ms",
+      (admitted == 0 ? 0 : scheduler.getTotalWaitMillis() / admitted) + "");
+    variables.put("child-process-maximum-wait-ms", scheduler.getMaxWaitMillis() + "");
+
+    // Build result cache
+    if (buildResultCache != null) {
+      variables.put("build-result-cache-hits", buildResultCache.getHitCount() + "");
+      variables.put("build-result-cache-misses", buildResultCache.getMissCount() + "");
+      variables.put("build-result-cache-entries", buildResultCache.getEntryCount() + "");
+      variables.put("build-result-cache-size", buildResultCache.getSizeBytes() + "");
     }
-    html.append("</tt></body></html>");
-    return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
+
+    // Dex cache
+    DexCache dexCache = Compiler.getDexCache();
+    if (dexCache != null) {
+      variables.put("dex-cache-hits", dexCache.getHitCount() + "");
+      variables.put("dex-cache-misses", dexCache.getMissCount() + "");
+    }
+
+    // Resource directory
+    ResourceDirectory resourceDirectory = Compiler.getResourceDirectory();
+    variables.put("resource-dir", resourceDirectory.getDirectory().getAbsolutePath());
+    variables.put("resources-ready", resourceDirectory.isReady() + "");
+    variables.put("resources-extracted", resourceDirectory.getExtractedCount() + "");
+    variables.put("resources-reused", resourceDirectory.getReusedCount() + "");
+    variables.put("resources-prewarm-ms", resourceDirectory.getPrewarmMillis() + "");
+
+    // Class file cache
+    ClassFileCache classFileCache = Compiler.getClassFileCache();
+    if (classFileCache != null) {
+      variables.put("class-file-cache-hits", classFileCache.getHitCount() + "");
+      variables.put("class-file-cache-misses", classFileCache.getMissCount() + "");
+      variables.put("class-file-cache-entries", classFileCache.getEntryCount() + "");
+      variables.put("class-file-cache-size", classFileCache.getSizeBytes() + "");
+    }
+
+    // Companion apk cache
+    CompanionApkCache companionApkCache = ProjectBuilder.getCompanionApkCache();
+    if (companionApkCache != null) {
+      variables.put("companion-apk-cache-hits", companionApkCache.getHitCount() + "");
+      variables.put("companion-apk-cache-misses", companionApkCache.getMissCount() + "");
+      variables.put("companion-apk-cache-entries", companionApkCache.getEntryCount() + "");
+      variables.put("companion-apk-cache-size", companionApkCache.getSizeBytes() + "");
+    }
+
+    // YAIL generators
+    YailGeneratorPool yailGeneratorPool = ProjectBuilder.getYailGeneratorPool();
+    if (yailGeneratorPool != null) {
+      variables.put("yail-generators-loaded", yailGeneratorPool.getLoadedGeneratorCount() + "");
+      variables.put("yail-generator-jobs-completed", yailGeneratorPool.getCompletedJobCount() + "");
+    }
+
+    // Keystores of new users
+    KeystorePool keystorePool = ProjectBuilder.getKeystorePool();
+    variables.put("keystore-pool-capacity", keystorePool.getCapacity() + "");
+    variables.put("keystore-pool-low-water-mark", keystorePool.getLowWaterMark() + "");
+    variables.put("keystore-pool-available", keystorePool.getAvailableCount() + "");
+    variables.put("keystores-from-pool", keystorePool.getKeystoresFromPoolCount() + "");
+    variables.put("keystores-generated-on-demand",
+      keystorePool.getKeystoresGeneratedOnDemandCount() + "");
+    variables.put("key-pairs-generated", keystorePool.getKeyPairsGeneratedCount() + "");
+    variables.put("key-pair-average-generation-ms",
+      keystorePool.getAverageGenerationMillis() + "");
+
+    // Kawa compiler processes
+    KawaCompilerPool kawaCompilerPool = Compiler.getKawaCompilerPool();
+    if (kawaCompilerPool != null) {
+      variables.put("kawa-compiler-processes-started", kawaCompilerPool.getStartedWorkerCount() + "");
+      variables.put("kawa-compiler-processes-idle", kawaCompilerPool.getIdleWorkerCount() + "");
+      variables.put("kawa-compiler-jobs-completed", kawaCompilerPool.getCompletedJobCount() + "");
+      variables.put("kawa-compiler-jobs-forked", kawaCompilerPool.getUnavailableJobCount() + "");
+    }
+
+    // Build stage times
+    for (BuildStageTimes.Stage stage : BuildStageTimes.Stage.values()) {
+      LatencySamples stageTimes = BuildStageTimes.get(stage);
+      String prefix = "stage-" + stage.getName();
+      variables.put(prefix + "-count", stageTimes.getCount() + "");
+      variables.put(prefix + "-ms-p50", stageTimes.getPercentile(50) + "");
+      variables.put(prefix + "-ms-p95", stageTimes.getPercentile(95) + "");
+      variables.put(prefix + "-ms-p99", stageTimes.getPercentile(99) + "");
+      variables.put(prefix + "-ms-max", stageTimes.getMaxMillis() + "");
+    }
+
+    return variables;
   }
 
   /**
@@ -278,17 +594,28 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      buildAndCreateZip(userName, inputZipFile);
-      String attachedFilename = outputZip.getName();
-      FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
-      // Set the outputZip field to null so that it won't be deleted in cleanUp().
-      outputZip = null;
-      return Response.ok(outputZipDeleteOnClose)
-        .header("Content-Disposition", "attachment; filename=\"" + attachedFilename + "\"")
-        .build();
-    } finally {
+      buildForOutputZip(userName, inputZipFile);
+    } catch (IOException e) {
       cleanUp();
+      throw e;
     }
+    // The output zip is written straight to the response. The build's files are deleted once it
+    // has been written.
+    StreamingOutput outputZip = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        try {
+          writeOutputZip(out);
+        } catch (JSONException e) {
+          throw new IOException(e);
+        } finally {
+          cleanUp();
+        }
+      }
+    };
+    return Response.ok(outputZip)
+      .header("Content-Disposition", "attachment; filename=\"" + inputZipFile.getName() + ".zip\"")
+      .build();
   }
 
   /**
@@ -308,13 +635,26 @@ public class BuildServer {
    * the same version of the code that loads the .blk and .scm files, the same version of
    * runtime.scm, and the same version of the App Inventor component classes.
    *
+   * If the maximum number of builds are running, the build waits in a queue. Builds with a higher
+   * priority leave the queue first. A build that waits longer than the deadline is dropped and a
+   * failure is sent to the callbackUrl. If the queue is full, the request is rejected.
+   *
    * The status code returned here will be seen by the server in YoungAndroidProjectService.build
-   * as connection.getResponseCode().
+   * as connection.getResponseCode(). The estimated time until the build starts, in seconds, is
+   * returned in the X-Estimated-Wait header, or in the Retry-After header if the request was
+   * rejected.
+   *
+   * The build's progress can be followed with the progress endpoint, using the build ID returned in
+   * the X-Build-Id header. A request with an empty zip file returns the percentage of the build
+   * with the given build ID that is done.
    *
    * @param userName  The user name to be used in making the CN entry in the generated keystore.
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param priority  One of "companion", "interactive" (the default) or "batch".
+   * @param buildId  The ID under which the build's progress is recorded. Anyone who knows it can
+   *     read the progress, so it must be random. If it isn't given, a random ID is created.
    * @param inputZipFile  The zip file representing the App Inventor source code.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
@@ -325,6 +665,8 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("priority") final String priority,
+    @QueryParam("buildId") String buildId,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
@@ -382,35 +724,8 @@ public class BuildServer {
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
-              }
+              buildForOutputZip(userName, inputZipFile);
+              postOutputZip(callbackUrlStr);
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
@@ -421,11 +736,30 @@ public class BuildServer {
             }
           }
         };
+      Runnable expiredTask = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              buildResult = new Result(Result.GENERAL_FAILURE, "",
+                "The build server was too busy to build this project. Please try again later.");
+              postOutputZip(callbackUrlStr);
+            } catch (Exception e) {
+              LOG.severe("Exception: " + e.getMessage());
+            } finally {
+              cleanUp();
+            }
+          }
+        };
+      progress = BuildProgress.start(
+        (buildId != null && !buildId.isEmpty()) ? buildId : UUID.randomUUID().toString());
+      BuildQueue.Priority buildPriority = BuildQueue.Priority.fromString(priority);
+      long estimatedWaitMillis;
       try {
-        buildExecutor.execute(buildTask);
+        estimatedWaitMillis =
+          buildExecutor.submit(userName, buildPriority, buildTask, expiredTask);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
@@ -434,40 +768,315 @@ public class BuildServer {
         // overloading or maintenance of the server. The implication
         // is that this is a temporary condition which will be
         // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+          .header("Retry-After", toSeconds(buildExecutor.getEstimatedWaitMillis(buildPriority)))
+          .entity("The build server is currently at maximum capacity.").build();
       }
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .header("X-Estimated-Wait", toSeconds(estimatedWaitMillis))
+        .header("X-Build-Id", progress.getBuildId())
+        .entity("0").build();
     }
+    BuildProgress buildProgress = (buildId != null) ? BuildProgress.get(buildId) : null;
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .entity("" + ((buildProgress != null) ? buildProgress.getPercent() : 0)).build();
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
+  /**
+   * Builds every project in a batch, e.g. all of the projects of a class. The input zip contains
+   * the source zip of each project, as an entry whose name ends with ".aia" or ".zip".
+   *
+   * The projects are built by the same build executor as the async builds, with batch priority,
+   * so they share the running compilers and caches with the other builds and interactive builds
+   * go first. Only as many projects as can be built at the same time are submitted at once, so a
+   * batch doesn't fill the queue.
+   *
+   * We'll respond with a zip file containing, for each project, the zip file that
+   * build-all-from-zip would have returned, named after the project's entry with ".zip" appended.
+   * The entries are written as the builds finish. The last entry, summary.json, has the result and
+   * timings of each build.
+   *
+   * @param userName  The user name to be used in making the CN entry in the generated keystores.
+   * @param gitBuildVersion  The value of GitBuildId.getVersion() that the projects were saved
+   *     with, if known.
+   * @param batchZipFile  The zip file containing the source zips of the projects.
+   * @return an "OK" {@link Response}, or BAD_REQUEST (400) if the batch can't be built.
+   */
+  @POST
+  @Path("build-batch-from-zip")
+  @Produces("application/zip;charset=utf-8")
+  public Response buildBatchFromZipFile(
+    @QueryParam("uname") final String userName,
+    @QueryParam("gitBuildVersion") String gitBuildVersion,
+    File batchZipFile) throws IOException {
+    // Set the inputZip field so we can delete the input zip file later in cleanUp.
+    inputZip = batchZipFile;
+    inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
+
+    if (gitBuildVersion != null && !gitBuildVersion.isEmpty() &&
+        !gitBuildVersion.equals(GitBuildId.getVersion())) {
+      cleanUp();
+      return Response.status(Response.Status.CONFLICT).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("Build server version " + GitBuildId.getVersion() +
+          " is not compatible with App Inventor version " + gitBuildVersion + ".").build();
+    }
+
+    final ZipFile batchZip;
+    try {
+      batchZip = new ZipFile(batchZipFile);
+    } catch (ZipException e) {
+      cleanUp();
+      return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("The batch is not a zip file.").build();
+    }
+    final List<ZipEntry> projectEntries = Lists.newArrayList();
+    Enumeration<? extends ZipEntry> entries = batchZip.entries();
+    while (entries.hasMoreElements()) {
+      ZipEntry entry = entries.nextElement();
+      String name = entry.getName();
+      if (!entry.isDirectory() && (name.endsWith(".aia") || name.endsWith(".zip"))) {
+        projectEntries.add(entry);
+      }
+    }
+    String error = null;
+    if (projectEntries.isEmpty()) {
+      error = "The batch does not contain any projects.";
+    } else if (projectEntries.size() > commandLineOptions.maxBatchProjects) {
+      error = "The batch contains more than " + commandLineOptions.maxBatchProjects + " projects.";
+    }
+    if (error != null) {
+      batchZip.close();
+      cleanUp();
+      return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity(error).build();
+    }
+
+    batchBuildRequests.incrementAndGet();
+    LOG.info("Building a batch of " + projectEntries.size() + " projects for " + userName);
+    StreamingOutput outputZip = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        try {
+          writeBatchOutputZip(userName, batchZip, projectEntries, out);
+        } catch (JSONException e) {
+          throw new IOException(e);
+        } finally {
+          batchZip.close();
+          cleanUp();
+        }
+      }
+    };
+    return Response.ok(outputZip)
+      .header("Content-Disposition", "attachment; filename=\"" + batchZipFile.getName() + ".zip\"")
+      .build();
+  }
+
+  /*
+   * Builds the projects of a batch, writing their output zips to the given stream as they finish,
+   * followed by the summary.
+   */
+  private static void writeBatchOutputZip(String userName, ZipFile batchZip,
+    List<ZipEntry> projectEntries, OutputStream out) throws IOException, JSONException {
+    long batchStart = System.currentTimeMillis();
+    int maxBuildsInFlight = (buildExecutor.getMaxActiveTasks() > 0)
+      ? buildExecutor.getMaxActiveTasks()
+      : Runtime.getRuntime().availableProcessors();
+    BlockingQueue<BatchProject> finished = new LinkedBlockingQueue<BatchProject>();
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+    ZipOutputStream zipOutputStream = new ZipOutputStream(out);
+    JSONArray projectSummaries = new JSONArray();
+    int succeeded = 0;
+    int submitted = 0;
+    int buildsInFlight = 0;
+    BatchProject unsubmitted = null;
+    IOException writeFailure = null;
+
+    while (projectSummaries.length() < projectEntries.size()) {
+      while (submitted < projectEntries.size() && buildsInFlight < maxBuildsInFlight) {
+        BatchProject project = (unsubmitted != null)
+          ? unsubmitted
+          : new BatchProject(batchZip, projectEntries.get(submitted));
+        if (!project.submit(userName, finished, cancelled)) {
+          unsubmitted = project;
+          break;
+        }
+        unsubmitted = null;
+        submitted++;
+        buildsInFlight++;
+      }
+      if (buildsInFlight == 0) {
+        // Other requests have taken every build slot and queue entry.
+        Uninterruptibles.sleepUninterruptibly(BATCH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        continue;
+      }
+
+      BatchProject project = Uninterruptibles.takeUninterruptibly(finished);
+      buildsInFlight--;
+      // The outcome must be read before cleanUp releases the cached output zip.
+      if (project.succeeded()) {
+        succeeded++;
+      }
+      projectSummaries.put(project.getSummary());
+      try {
+        if (writeFailure == null) {
+          zipOutputStream.putNextEntry(new ZipEntry(project.name + ".zip"));
+          project.server.writeOutputZip(zipOutputStream);
+          zipOutputStream.closeEntry();
+          zipOutputStream.flush();
+        }
+      } catch (IOException e) {
+        // The client has gone away. The builds that haven't started yet are skipped.
+        writeFailure = e;
+        cancelled.set(true);
+      } catch (JSONException e) {
+        writeFailure = new IOException(e);
+        cancelled.set(true);
+      } finally {
+        project.server.cleanUp();
+      }
+    }
+    if (writeFailure != null) {
+      throw writeFailure;
+    }
+
+    JSONObject summary = new JSONObject();
+    summary.put("projects", projectSummaries);
+    summary.put("succeeded", succeeded);
+    summary.put("failed", projectEntries.size() - succeeded);
+    summary.put("totalMillis", System.currentTimeMillis() - batchStart);
+    zipOutputStream.putNextEntry(new ZipEntry(BATCH_SUMMARY_FILE_NAME));
+    zipOutputStream.write(summary.toString().getBytes(Charsets.UTF_8));
+    zipOutputStream.closeEntry();
+    zipOutputStream.finish();
+    LOG.info("Built a batch of " + projectEntries.size() + " projects, " + succeeded +
+      " succeeded, in " + (System.currentTimeMillis() - batchStart) + " ms");
+  }
+
+  private static long toSeconds(long millis) {
+    return (millis + 999) / 1000;
+  }
+
+  /*
+   * Sends the output zip to the callbackUrl.
+   */
+  private void postOutputZip(String callbackUrlStr) throws IOException, JSONException {
+    // Send zip back to the callbackUrl
+    LOG.info("CallbackURL: " + callbackUrlStr);
+    URL callbackUrl = new URL(callbackUrlStr);
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    // Make sure we aren't misinterpreted as
+    // form-url-encoded
+    connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    // Without a streaming mode, HttpURLConnection buffers the whole body in memory to compute its
+    // Content-Length. The zip is written to a file in the workspace first, so that it can be
+    // streamed with a fixed length, since App Engine doesn't accept chunked requests.
+    File outputZip = File.createTempFile("output", ".zip", ProjectBuilder.getWorkspace());
+    try {
+      BufferedOutputStream bufferedOutputStream =
+          new BufferedOutputStream(new FileOutputStream(outputZip));
+      try {
+        writeOutputZip(bufferedOutputStream);
+      } finally {
+        bufferedOutputStream.close();
+      }
+      checkMemory();
+      connection.setFixedLengthStreamingMode(outputZip.length());
+      OutputStream out = connection.getOutputStream();
+      try {
+        Files.copy(outputZip, out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      outputZip.delete();
+    }
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
+      // TODO(user) Maybe do some retries
+    }
+  }
+
+  /*
+   * Builds the project, unless this exact input has been built before, in which case the previous
+   * output zip is sent back. The output zip is then written by writeOutputZip.
+   */
+  private void buildForOutputZip(String userName, File inputZipFile) throws IOException {
+    if (buildResultCache != null) {
+      ZipFile zipFile = new ZipFile(inputZipFile);
+      try {
+        cacheKey = BuildResultCache.computeKey(zipFile,
+          YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION, BuildResultCache.getBuildServerFingerprint());
+      } finally {
+        zipFile.close();
+      }
+      if (cacheKey != null) {
+        cachedOutputZip = buildResultCache.open(cacheKey);
+        if (cachedOutputZip != null) {
+          LOG.info("Build " + buildCount.get() + " served from the build result cache");
+          successfulBuildRequests.getAndIncrement();
+          return;
+        }
+      }
+    }
+
+    buildResult = build(userName, inputZipFile);
+    if (buildResult.succeeded()) {
+      successfulBuildRequests.getAndIncrement();
+    } else {
+      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
+      failedBuildRequests.getAndIncrement();
+    }
+  }
+
+  /*
+   * Writes the output zip to the given stream, without closing it. A successful build's output
+   * zip is added to the build result cache as it is written.
+   */
+  private void writeOutputZip(OutputStream out) throws IOException, JSONException {
+    if (cachedOutputZip != null) {
+      ByteStreams.copy(cachedOutputZip, out);
+      return;
+    }
+
+    long zipStart = System.currentTimeMillis();
+    if (buildResult.succeeded() && cacheKey != null) {
+      BoundedFileCache.PendingFile cachedZip = buildResultCache.startPut(cacheKey);
+      try {
+        writeOutputZip(buildResult, new TeeOutputStream(out, cachedZip));
+        cachedZip.commit();
+      } finally {
+        cachedZip.close();
+      }
+    } else {
+      writeOutputZip(buildResult, out);
+    }
+    BuildStageTimes.record(BuildStageTimes.Stage.ZIP_OUTPUT, zipStart);
+  }
+
+  /*
+   * Writes the build results as a zip to the given stream: the keystore and APK if the build
+   * succeeded, and the build.out file.
+   */
+  private void writeOutputZip(Result buildResult, OutputStream out)
     throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
-    outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
-    outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
-    if (buildSucceeded) {
+    ZipOutputStream zipOutputStream = new ZipOutputStream(out);
+    if (buildResult.succeeded()) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
         Files.copy(outputKeystore, zipOutputStream);
       }
       zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
       Files.copy(outputApk, zipOutputStream);
-      successfulBuildRequests.getAndIncrement();
-    } else {
-      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
-      failedBuildRequests.getAndIncrement();
     }
     zipOutputStream.putNextEntry(new ZipEntry("build.out"));
     String buildOutputJson = genBuildOutput(buildResult);
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
-    zipOutputStream.flush();
-    zipOutputStream.close();
+    zipOutputStream.finish();
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -488,8 +1097,12 @@ public class BuildServer {
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
+    if (progress == null) {
+      // Only the progress of async builds can be followed.
+      progress = new BuildProgress(UUID.randomUUID().toString());
+    }
     Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false, false,
-      commandLineOptions.childProcessRamMb);
+      commandLineOptions.childProcessRamMb, progress);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -507,6 +1120,17 @@ public class BuildServer {
   }
 
   private void cleanUp() {
+    if (progress != null) {
+      int result;
+      if (cachedOutputZip != null) {
+        result = Result.SUCCESS;
+      } else if (buildResult != null) {
+        result = buildResult.getResult();
+      } else {
+        result = Result.GENERAL_FAILURE;
+      }
+      progress.finish(result);
+    }
     if (inputZip != null) {
       inputZip.delete();
     }
@@ -516,8 +1140,13 @@ public class BuildServer {
     if (outputApk != null) {
       outputApk.delete();
     }
-    if (outputZip != null) {
-      outputZip.delete();
+    if (cachedOutputZip != null) {
+      try {
+        cachedOutputZip.close();
+      } catch (IOException e) {
+        // Nothing more to do.
+      }
+      cachedOutputZip = null;
     }
     if (outputDir != null) {
       outputDir.delete();
@@ -531,6 +1160,16 @@ public class BuildServer {
       + mBean.getHeapMemoryUsage().getUsed() + " bytes");
   }
 
+  /*
+   * Sets the build executor and the build result cache, which main() creates from the command
+   * line options.
+   */
+  @VisibleForTesting
+  static void setBuildExecutorAndCache(BuildQueue executor, BuildResultCache resultCache) {
+    buildExecutor = executor;
+    buildResultCache = resultCache;
+  }
+
   public static void main(String[] args) throws IOException {
     // TODO(markf): Eventually we'll figure out how to appropriately start and stop the server when
     // it's run in a production environment.   For now, just kill the process
@@ -545,7 +1184,109 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new BuildQueue(commandLineOptions.maxSimultaneousBuilds,
+      commandLineOptions.maxQueuedBuilds, commandLineOptions.queuedBuildDeadlineSeconds * 1000L);
+
+    if (commandLineOptions.childProcessRamBudgetMb > 0) {
+      // The warm Kawa compiler processes hold their RAM all the time, in addition to the
+      // processes that builds fork.
+      int forkedBudgetMb = commandLineOptions.childProcessRamBudgetMb -
+        commandLineOptions.kawaCompilerProcesses * commandLineOptions.childProcessRamMb;
+      if (forkedBudgetMb < commandLineOptions.childProcessRamMb) {
+        LOG.warning("The warm Kawa compiler processes leave less than " +
+          commandLineOptions.childProcessRamMb + " MB of ram, so only one Kawa or DX process " +
+          "runs at a time");
+        forkedBudgetMb = Math.max(1, forkedBudgetMb);
+      }
+      Compiler.setChildProcessRamBudget(forkedBudgetMb);
+      LOG.info("Kawa and DX processes can use " + forkedBudgetMb +
+        " MB of ram, " + commandLineOptions.childProcessRamMb + " MB each");
+    }
+
+    if (commandLineOptions.buildResultCacheMb > 0) {
+      File buildResultCacheDir = (commandLineOptions.buildResultCacheDir != null)
+        ? new File(commandLineOptions.buildResultCacheDir)
+        : new File(System.getProperty("java.io.tmpdir"), "appinventor-build-result-cache");
+      buildResultCache = new BuildResultCache(buildResultCacheDir,
+        commandLineOptions.buildResultCacheMb * 1024L * 1024L);
+      LOG.info("Caching build results in " + buildResultCacheDir.getAbsolutePath());
+    }
+
+    if (commandLineOptions.dexCacheMb > 0) {
+      File dexCacheDir = (commandLineOptions.dexCacheDir != null)
+        ? new File(commandLineOptions.dexCacheDir)
+        : new File(System.getProperty("java.io.tmpdir"), "appinventor-dex-cache");
+      Compiler.setDexCacheDirectory(dexCacheDir, commandLineOptions.dexCacheMb * 1024L * 1024L);
+      LOG.info("Caching dexed libraries in " + dexCacheDir.getAbsolutePath());
+    }
+
+    if (commandLineOptions.classFileCacheMb > 0) {
+      File classFileCacheDir = (commandLineOptions.classFileCacheDir != null)
+        ? new File(commandLineOptions.classFileCacheDir)
+        : new File(System.getProperty("java.io.tmpdir"), "appinventor-class-file-cache");
+      Compiler.setClassFileCacheDirectory(classFileCacheDir,
+        commandLineOptions.classFileCacheMb * 1024L * 1024L);
+      LOG.info("Caching compiled classes in " + classFileCacheDir.getAbsolutePath());
+    }
+
+    if (commandLineOptions.companionApkCacheMb > 0) {
+      File companionApkCacheDir = (commandLineOptions.companionApkCacheDir != null)
+        ? new File(commandLineOptions.companionApkCacheDir)
+        : new File(System.getProperty("java.io.tmpdir"), "appinventor-companion-apk-cache");
+      ProjectBuilder.setCompanionApkCacheDirectory(companionApkCacheDir,
+        commandLineOptions.companionApkCacheMb * 1024L * 1024L);
+      LOG.info("Caching companion apks in " + companionApkCacheDir.getAbsolutePath());
+    }
+
+    if (commandLineOptions.workspaceDir != null || commandLineOptions.maxProjectSizeMb > 0) {
+      File workspaceDir = (commandLineOptions.workspaceDir != null)
+        ? new File(commandLineOptions.workspaceDir)
+        : new File(System.getProperty("java.io.tmpdir"));
+      ProjectBuilder.setWorkspace(workspaceDir, commandLineOptions.maxProjectSizeMb * 1024L * 1024L);
+      LOG.info("Building projects in " + workspaceDir.getAbsolutePath());
+    }
+
+    if (commandLineOptions.keystorePoolSize > 0) {
+      ProjectBuilder.startKeystorePool(commandLineOptions.keystorePoolSize,
+        Math.min(commandLineOptions.keystorePoolLowWaterMark,
+          commandLineOptions.keystorePoolSize));
+      LOG.info("Keeping " + commandLineOptions.keystorePoolSize + " key pairs ready for new users");
+    }
+
+    if (commandLineOptions.resourceDir != null) {
+      Compiler.setResourceDirectory(new File(commandLineOptions.resourceDir));
+    }
+    try {
+      Compiler.startPrewarmingResources();
+    } catch (IOException e) {
+      // Builds will extract the resources they need.
+      LOG.severe("Unable to list the resources to extract: " + e.getMessage());
+    } catch (JSONException e) {
+      // Builds will extract the resources they need.
+      LOG.severe("Unable to list the resources to extract: " + e.getMessage());
+    }
+
+    if (commandLineOptions.yailGenerators > 0) {
+      try {
+        ProjectBuilder.startYailGeneratorPool(commandLineOptions.yailGenerators);
+      } catch (IOException e) {
+        // Builds will run YailGenerator.jar instead.
+        LOG.severe("Unable to load the YAIL generator: " + e.getMessage());
+      }
+    }
+
+    if (commandLineOptions.kawaCompilerProcesses > 0) {
+      try {
+        Compiler.startKawaCompilerPool(commandLineOptions.kawaCompilerProcesses,
+          commandLineOptions.childProcessRamMb);
+      } catch (IOException e) {
+        // Builds will fork the Kawa compiler instead.
+        LOG.severe("Unable to start the Kawa compiler processes: " + e.getMessage());
+      } catch (JSONException e) {
+        // Builds will fork the Kawa compiler instead.
+        LOG.severe("Unable to start the Kawa compiler processes: " + e.getMessage());
+      }
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -557,14 +1298,121 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds);
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/vars for server values");
+    LOG.info("Visit: http://" + hostAddress + ":" + port +
+      "/buildserver/vars.json for server values in JSON");
     LOG.info("Server running");
   }
 
+  /*
+   * One project of a batch build. Each project has its own BuildServer, which holds the files of
+   * its build until its output zip has been written.
+   */
+  private static final class BatchProject {
+    private final String name;
+    private final BuildServer server = new BuildServer();
+    private long submitMillis;
+    private long startMillis;
+    private long finishMillis;
+
+    /*
+     * Extracts the project's source zip from the batch. If it can't be extracted, the project
+     * fails without being built.
+     */
+    BatchProject(ZipFile batchZip, ZipEntry entry) {
+      name = entry.getName();
+      try {
+        server.inputZip = File.createTempFile("batch", ".zip");
+        server.inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
+        InputStream in = batchZip.getInputStream(entry);
+        try {
+          OutputStream projectZip = new FileOutputStream(server.inputZip);
+          try {
+            ByteStreams.copy(in, projectZip);
+          } finally {
+            projectZip.close();
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOG.warning("Unable to extract " + name + " from the batch: " + e.getMessage());
+        server.buildResult = Result.createFailingResult("", "Unable to read the project.");
+      }
+    }
+
+    /*
+     * Submits the build to the build executor. Returns false if the build executor is full, in
+     * which case the build should be submitted again later. The project is added to the finished
+     * queue when it has been built, or when it fails without being built.
+     */
+    boolean submit(final String userName, final BlockingQueue<BatchProject> finished,
+      final AtomicBoolean cancelled) {
+      submitMillis = System.currentTimeMillis();
+      if (server.buildResult != null) {
+        finished.add(this);
+        return true;
+      }
+      Runnable buildTask = new Runnable() {
+        @Override
+        public void run() {
+          startMillis = System.currentTimeMillis();
+          int count = buildCount.incrementAndGet();
+          try {
+            if (cancelled.get()) {
+              server.buildResult = Result.createFailingResult("", "The batch was cancelled.");
+            } else {
+              LOG.info("START NEW BUILD " + count + " (" + name + ")");
+              server.buildForOutputZip(userName, server.inputZip);
+            }
+          } catch (Exception e) {
+            LOG.severe("Exception: " + e.getMessage());
+            server.buildResult = Result.createFailingResult("", "The build failed.");
+          } finally {
+            finishMillis = System.currentTimeMillis();
+            finished.add(BatchProject.this);
+            LOG.info("BUILD " + count + " FINISHED");
+          }
+        }
+      };
+      Runnable expiredTask = new Runnable() {
+        @Override
+        public void run() {
+          server.buildResult = new Result(Result.GENERAL_FAILURE, "",
+            "The build server was too busy to build this project. Please try again later.");
+          finished.add(BatchProject.this);
+        }
+      };
+      try {
+        buildExecutor.submit(userName, BuildQueue.Priority.BATCH, buildTask, expiredTask);
+        return true;
+      } catch (RejectedExecutionException e) {
+        return false;
+      }
+    }
+
+    boolean succeeded() {
+      return server.cachedOutputZip != null || server.buildResult.succeeded();
+    }
+
+    JSONObject getSummary() throws JSONException {
+      JSONObject summary = new JSONObject();
+      summary.put("name", name);
+      summary.put("result", succeeded() ? Result.SUCCESS : server.buildResult.getResult());
+      summary.put("cached", server.cachedOutputZip != null);
+      if (startMillis != 0) {
+        summary.put("waitMillis", startMillis - submitMillis);
+        summary.put("buildMillis", finishMillis - startMillis);
+      }
+      return summary;
+    }
+  }
+
   private static class DeleteFileOnCloseFileInputStream extends FileInputStream {
     private final File file;
 
@@ -0,0 +1,243 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the stages of a build, each as soon as the stages it depends on have finished, so that
+ * stages that don't depend on each other run at the same time.
+ *
+ * <p>A stage reports a problem by returning false, after writing a message for the user to the
+ * user errors stream. A stage that throws an exception is reported the same way, with a generic
+ * message. Once a stage has failed, no more stages are started, and the graph waits for the
+ * running stages to finish.
+ *
+ * <p>A stage may only depend on stages that were added before it, so the stages can't form a
+ * cycle.
+ *
+ * <p>What a stage writes to a stream returned by {@link #bufferStageOutput} is written out when
+ * the stage finishes, so that the messages of stages running at the same time aren't interleaved.
+ */
+final class BuildStageGraph {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildStageGraph.class.getName());
+
+  private final PrintStream userErrors;
+  private final String errorInStageFormat;
+  private final BuildProgress progress;
+
+  // The stages, in the order they were added.
+  private final Map<String, Stage> stages = Maps.newLinkedHashMap();
+
+  // The streams whose output is buffered while a stage runs.
+  private final List<StageOutputStream> outputStreams = Lists.newArrayList();
+
+  private static class Stage {
+    final String name;
+    final Callable<Boolean> body;
+    final Set<String> dependencies;
+    volatile boolean succeeded;
+
+    Stage(String name, Callable<Boolean> body, Set<String> dependencies) {
+      this.name = name;
+      this.body = body;
+      this.dependencies = dependencies;
+    }
+  }
+
+  /**
+   * Creates a BuildStageGraph.
+   *
+   * @param userErrors  stream to write user-visible error messages
+   * @param errorInStageFormat  format of the message written when a stage throws an exception;
+   *     the name of the stage is its argument
+   * @param progress  records when each stage starts and finishes
+   */
+  BuildStageGraph(PrintStream userErrors, String errorInStageFormat, BuildProgress progress) {
+    this.userErrors = userErrors;
+    this.errorInStageFormat = errorInStageFormat;
+    this.progress = progress;
+  }
+
+  /**
+   * Returns a stream that writes to the given stream. What a stage writes to it is buffered, and
+   * written to the given stream when the stage finishes. Writes from other threads aren't
+   * buffered.
+   */
+  PrintStream bufferStageOutput(OutputStream out) {
+    StageOutputStream stageOutput = new StageOutputStream(out);
+    outputStreams.add(stageOutput);
+    return new PrintStream(stageOutput, true);
+  }
+
+  /**
+   * Adds a stage.
+   *
+   * @param name  the name of the stage, used in error messages
+   * @param body  runs the stage and returns whether it succeeded
+   * @param dependencies  the names of the stages that must finish before this one starts
+   */
+  void add(String name, Callable<Boolean> body, String... dependencies) {
+    Preconditions.checkArgument(!stages.containsKey(name), "Duplicate stage %s", name);
+    for (String dependency : dependencies) {
+      Preconditions.checkArgument(stages.containsKey(dependency),
+          "Stage %s depends on unknown stage %s", name, dependency);
+    }
+    stages.put(name, new Stage(name, body, Sets.newHashSet(dependencies)));
+  }
+
+  /**
+   * Runs the stages on the given executor and waits for them to finish.
+   *
+   * @return  {@code true} if every stage succeeded, {@code false} otherwise
+   */
+  boolean run(Executor executor) throws InterruptedException {
+    List<Stage> waiting = Lists.newArrayList(stages.values());
+    Set<String> finished = Sets.newHashSet();
+    BlockingQueue<Stage> done = new LinkedBlockingQueue<Stage>();
+    int running = 0;
+    boolean failed = false;
+
+    running += startReadyStages(waiting, finished, done, executor);
+    while (running > 0) {
+      Stage stage = done.take();
+      running--;
+      if (stage.succeeded) {
+        finished.add(stage.name);
+      } else {
+        failed = true;
+      }
+      if (!failed) {
+        running += startReadyStages(waiting, finished, done, executor);
+      }
+    }
+    return !failed && waiting.isEmpty();
+  }
+
+  /*
+   * Starts the waiting stages whose dependencies have all finished, and returns how many were
+   * started.
+   */
+  private int startReadyStages(List<Stage> waiting, Set<String> finished,
+      final BlockingQueue<Stage> done, Executor executor) {
+    int started = 0;
+    for (Iterator<Stage> iterator = waiting.iterator(); iterator.hasNext(); ) {
+      final Stage stage = iterator.next();
+      if (finished.containsAll(stage.dependencies)) {
+        iterator.remove();
+        started++;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            progress.stageStarted(stage.name);
+            for (StageOutputStream stageOutput : outputStreams) {
+              stageOutput.startStage();
+            }
+            try {
+              stage.succeeded = stage.body.call();
+            } catch (Throwable e) {
+              LOG.log(Level.SEVERE, "Build stage " + stage.name + " failed", e);
+              userErrors.print(String.format(errorInStageFormat, stage.name));
+              stage.succeeded = false;
+            } finally {
+              for (StageOutputStream stageOutput : outputStreams) {
+                try {
+                  stageOutput.finishStage();
+                } catch (IOException e) {
+                  LOG.log(Level.WARNING, "Unable to write the output of " + stage.name, e);
+                }
+              }
+              progress.stageFinished(stage.name, stage.succeeded);
+              done.add(stage);
+            }
+          }
+        });
+      }
+    }
+    return started;
+  }
+
+  /*
+   * A stream that buffers what each stage writes to it until the stage finishes.
+   */
+  private static class StageOutputStream extends OutputStream {
+    private final OutputStream out;
+
+    // The output of the stage running on each thread. Writes from threads that aren't running a
+    // stage go straight to out.
+    private final ThreadLocal<ByteArrayOutputStream> stageBuffer =
+        new ThreadLocal<ByteArrayOutputStream>();
+
+    StageOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ByteArrayOutputStream buffer = stageBuffer.get();
+      if (buffer != null) {
+        buffer.write(b);
+      } else {
+        synchronized (this) {
+          out.write(b);
+        }
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteArrayOutputStream buffer = stageBuffer.get();
+      if (buffer != null) {
+        buffer.write(b, off, len);
+      } else {
+        synchronized (this) {
+          out.write(b, off, len);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (stageBuffer.get() == null) {
+        synchronized (this) {
+          out.flush();
+        }
+      }
+    }
+
+    void startStage() {
+      stageBuffer.set(new ByteArrayOutputStream());
+    }
+
+    void finishStage() throws IOException {
+      ByteArrayOutputStream buffer = stageBuffer.get();
+      stageBuffer.remove();
+      synchronized (this) {
+        buffer.writeTo(out);
+        out.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Collects how long each stage of a build takes, across all the builds done by this process.
+ *
+ * <p>Only stages that succeed are recorded, so that builds that stop early because of an error
+ * don't make a stage look faster than it is.
+ */
+final class BuildStageTimes {
+  /**
+   * The stages of a build, in the order they run.
+   */
+  enum Stage {
+    YAIL("yail"),
+    ICON("icon"),
+    MANIFEST("manifest"),
+    KAWA("kawa"),
+    DX("dx"),
+    AAPT("aapt"),
+    // Writing the signed and aligned apk.
+    APK_BUILDER("apkbuilder"),
+    ZIP_OUTPUT("zip-output"),
+    // The whole compilation, from the icon to the signed apk.
+    COMPILE("compile");
+
+    private final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Returns the name used for the stage in the build server vars.
+     */
+    String getName() {
+      return name;
+    }
+  }
+
+  // Created up front and never changed, so it can be read without locking.
+  private static final Map<Stage, LatencySamples> stageTimes =
+      new EnumMap<Stage, LatencySamples>(Stage.class);
+  static {
+    for (Stage stage : Stage.values()) {
+      stageTimes.put(stage, new LatencySamples());
+    }
+  }
+
+  private BuildStageTimes() {
+  }
+
+  /**
+   * Records that the given stage finished successfully.
+   *
+   * @param stage  the stage
+   * @param startMillis  the value of {@link System#currentTimeMillis()} when the stage started
+   */
+  static void record(Stage stage, long startMillis) {
+    stageTimes.get(stage).add(System.currentTimeMillis() - startMillis);
+  }
+
+  /**
+   * Returns the recorded times of the given stage.
+   */
+  static LatencySamples get(Stage stage) {
+    return stageTimes.get(stage);
+  }
+}
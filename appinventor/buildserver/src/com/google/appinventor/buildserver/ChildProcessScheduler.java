@@ -0,0 +1,112 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Admits memory hungry child processes, such as Kawa and DX, against a RAM budget.
+ *
+ * <p>Each process asks for the RAM it may use before it starts and gives it back when it
+ * finishes. Processes are admitted in the order they asked, so a process that needs a lot of RAM
+ * isn't starved by smaller ones. A request for more than the whole budget waits until nothing
+ * else is running and then runs alone.
+ */
+final class ChildProcessScheduler {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ChildProcessScheduler.class.getName());
+
+  private final int budgetMb;
+  private final Semaphore budget;
+
+  private final AtomicInteger runningCount = new AtomicInteger(0);
+  private final AtomicLong admittedCount = new AtomicLong(0);
+  private final AtomicLong totalWaitMillis = new AtomicLong(0);
+  private final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+  /**
+   * Creates a ChildProcessScheduler.
+   *
+   * @param budgetMb  the total RAM that running child processes may use, in MB
+   */
+  ChildProcessScheduler(int budgetMb) {
+    if (budgetMb <= 0) {
+      throw new IllegalArgumentException("budgetMb must be positive");
+    }
+    this.budgetMb = budgetMb;
+    budget = new Semaphore(budgetMb, true);
+  }
+
+  /**
+   * Waits until a child process that uses the given RAM may start.
+   * Every call must be followed by a call to {@link #release(int)} with the same argument.
+   *
+   * @param ramMb  maximum RAM used by the child process, in MB
+   */
+  void acquire(int ramMb) {
+    long start = System.currentTimeMillis();
+    budget.acquireUninterruptibly(permits(ramMb));
+    runningCount.incrementAndGet();
+    admittedCount.incrementAndGet();
+
+    long waitMillis = System.currentTimeMillis() - start;
+    totalWaitMillis.addAndGet(waitMillis);
+    long max;
+    while (waitMillis > (max = maxWaitMillis.get())) {
+      if (maxWaitMillis.compareAndSet(max, waitMillis)) {
+        break;
+      }
+    }
+    if (waitMillis > 0) {
+      LOG.info("Child process waited " + waitMillis + " ms for " + ramMb + " MB of RAM");
+    }
+  }
+
+  /**
+   * Gives back the RAM of a child process that has finished.
+   *
+   * @param ramMb  the value that was passed to {@link #acquire(int)}
+   */
+  void release(int ramMb) {
+    runningCount.decrementAndGet();
+    budget.release(permits(ramMb));
+  }
+
+  private int permits(int ramMb) {
+    return Math.max(1, Math.min(ramMb, budgetMb));
+  }
+
+  int getBudgetMb() {
+    return budgetMb;
+  }
+
+  int getAvailableMb() {
+    return budget.availablePermits();
+  }
+
+  int getWaitingCount() {
+    return budget.getQueueLength();
+  }
+
+  int getRunningCount() {
+    return runningCount.get();
+  }
+
+  long getAdmittedCount() {
+    return admittedCount.get();
+  }
+
+  long getTotalWaitMillis() {
+    return totalWaitMillis.get();
+  }
+
+  long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+}
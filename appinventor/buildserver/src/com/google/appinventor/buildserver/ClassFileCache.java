@@ -0,0 +1,223 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A bounded on-disk cache of the class files that Kawa generates for a source file.
+ *
+ * <p>Kawa compiles each source file of a project into its own module, so a screen that hasn't
+ * changed since the last build compiles to the same classes. The classes of a source file are
+ * kept in a jar, keyed by a hash of the file's contents, the name of its module, the YAIL runtime
+ * and the build server binary.
+ *
+ * <p>A screen's module is named after the file, in the project's package. A file that declares
+ * its own module name, like runtime.scm does, is compiled to that name in every project, so its
+ * classes are shared by all projects.
+ */
+final class ClassFileCache {
+  private static final String FILE_EXTENSION = ".jar";
+
+  private static final String MODULE_NAME_DECLARATION = "(module-name ";
+
+  private final BoundedFileCache files;
+
+  /**
+   * Creates a ClassFileCache, keeping any classes already in the cache directory.
+   *
+   * @param cacheDir  the directory containing the cached classes
+   * @param maxSizeBytes  the maximum total size of the cached classes
+   */
+  ClassFileCache(File cacheDir, long maxSizeBytes) {
+    files = new BoundedFileCache(cacheDir, maxSizeBytes, FILE_EXTENSION);
+  }
+
+  /**
+   * Returns the qualified name of the module that Kawa compiles the given source file into: the
+   * name given by a top level module-name declaration, or else the package prefix followed by the
+   * name of the file.
+   *
+   * @param sourceFile  a .yail or .scm file
+   * @param packagePrefix  prefix of the generated class names
+   */
+  static String getModuleName(File sourceFile, String packagePrefix) throws IOException {
+    for (String line : Files.readLines(sourceFile, Charsets.UTF_8)) {
+      if (line.startsWith(MODULE_NAME_DECLARATION)) {
+        int end = line.indexOf(')', MODULE_NAME_DECLARATION.length());
+        if (end != -1) {
+          return line.substring(MODULE_NAME_DECLARATION.length(), end).trim();
+        }
+      }
+    }
+    return packagePrefix + Files.getNameWithoutExtension(sourceFile.getName());
+  }
+
+  /**
+   * Returns the key of the classes compiled from the given source file.
+   *
+   * @param sourceFile  a .yail or .scm file
+   * @param moduleName  the name returned by {@link #getModuleName}
+   * @param yailRuntime  runtime.scm, which Kawa loads before compiling
+   * @param buildServerVersion  identifies the build server binary, see
+   *     {@link BuildResultCache#getBuildServerFingerprint}
+   */
+  static String computeKey(File sourceFile, String moduleName, File yailRuntime,
+      String buildServerVersion) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(buildServerVersion, Charsets.UTF_8);
+    hasher.putString(moduleName, Charsets.UTF_8);
+    hasher.putBytes(Files.toByteArray(yailRuntime));
+    hasher.putBytes(Files.toByteArray(sourceFile));
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the paths, relative to the classes directory, of the class files that Kawa generated
+   * for the module with the given qualified name.
+   */
+  static List<String> getClassFiles(File classesDir, String moduleName) {
+    String packagePath = Signatures.getPackageName(moduleName).replace('.', '/');
+    if (!packagePath.isEmpty()) {
+      packagePath += "/";
+    }
+    String className = Signatures.getClassName(moduleName);
+    File[] packageFiles = new File(classesDir, packagePath).listFiles();
+    List<String> classFiles = Lists.newArrayList();
+    if (packageFiles != null) {
+      for (File file : packageFiles) {
+        String name = file.getName();
+        if (name.equals(className + ".class") ||
+            (name.startsWith(className + "$") && name.endsWith(".class"))) {
+          classFiles.add(packagePath + name);
+        }
+      }
+    }
+    return classFiles;
+  }
+
+  /**
+   * Returns the paths, relative to the given directory, of all the files under it.
+   */
+  static Set<String> listFiles(File dir) {
+    Set<String> paths = Sets.newHashSet();
+    addFiles(dir, "", paths);
+    return paths;
+  }
+
+  private static void addFiles(File dir, String prefix, Set<String> paths) {
+    File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        if (child.isDirectory()) {
+          addFiles(child, prefix + child.getName() + "/", paths);
+        } else {
+          paths.add(prefix + child.getName());
+        }
+      }
+    }
+  }
+
+  /**
+   * Extracts the cached classes for the given key into the classes directory.
+   *
+   * @return  {@code true} if the classes were in the cache, {@code false} otherwise
+   */
+  boolean restore(String key, File classesDir) throws IOException {
+    File zip = File.createTempFile(key, FILE_EXTENSION);
+    try {
+      if (!files.get(key, zip)) {
+        return false;
+      }
+      ZipFile zipFile = new ZipFile(zip);
+      try {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          File classFile = new File(classesDir, entry.getName());
+          Files.createParentDirs(classFile);
+          InputStream in = zipFile.getInputStream(entry);
+          try {
+            OutputStream out = new FileOutputStream(classFile);
+            try {
+              ByteStreams.copy(in, out);
+            } finally {
+              out.close();
+            }
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        zipFile.close();
+      }
+      return true;
+    } finally {
+      zip.delete();
+    }
+  }
+
+  /**
+   * Adds the given class files to the cache.
+   *
+   * @param key  the key returned by {@link #computeKey}
+   * @param classesDir  the classes directory
+   * @param classFiles  paths of the class files, relative to the classes directory
+   */
+  void store(String key, File classesDir, List<String> classFiles) throws IOException {
+    File zip = File.createTempFile(key, FILE_EXTENSION);
+    try {
+      ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+          new FileOutputStream(zip)));
+      try {
+        for (String classFile : classFiles) {
+          out.putNextEntry(new ZipEntry(classFile));
+          Files.copy(new File(classesDir, classFile), out);
+        }
+      } finally {
+        out.close();
+      }
+      files.put(key, zip);
+    } finally {
+      zip.delete();
+    }
+  }
+
+  int getHitCount() {
+    return files.getHitCount();
+  }
+
+  int getMissCount() {
+    return files.getMissCount();
+  }
+
+  int getEntryCount() {
+    return files.getEntryCount();
+  }
+
+  long getSizeBytes() {
+    return files.getSizeBytes();
+  }
+}
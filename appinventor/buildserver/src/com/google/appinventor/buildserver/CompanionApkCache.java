@@ -0,0 +1,104 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.ZipFile;
+
+/**
+ * A bounded on-disk cache of unsigned companion (REPL) APKs.
+ *
+ * <p>The companion is compiled with every component, so the APK only differs from user to user
+ * in its signature. An unsigned copy of the first APK built for some companion sources is kept,
+ * and later builds of the same sources just sign that copy with the user's keystore.
+ */
+final class CompanionApkCache extends BoundedFileCache {
+  /**
+   * Creates a CompanionApkCache, keeping any APKs already in the cache directory.
+   *
+   * @param cacheDir  the directory containing the cached APKs
+   * @param maxSizeBytes  the maximum total size of the cached APKs
+   */
+  CompanionApkCache(File cacheDir, long maxSizeBytes) {
+    super(cacheDir, maxSizeBytes, ".apk");
+  }
+
+  /**
+   * Returns the key of the companion built from the given input. The keystore is left out, since
+   * the cached APK is unsigned.
+   *
+   * @param inputZip  the zip file representing the App Inventor source code
+   * @param keystoreEntryName  the name of the keystore entry in the zip
+   * @param isForRepl  whether the build is for the REPL app
+   * @param isForWireless  whether the build is for the wireless REPL app
+   * @param buildServerVersion  identifies the build server binary, see
+   *     {@link BuildResultCache#getBuildServerFingerprint}
+   */
+  static String computeKey(ZipFile inputZip, String keystoreEntryName, boolean isForRepl,
+      boolean isForWireless, String buildServerVersion) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(buildServerVersion, Charsets.UTF_8);
+    hasher.putBoolean(isForRepl);
+    hasher.putBoolean(isForWireless);
+    BuildResultCache.putZipEntries(hasher, inputZip, keystoreEntryName);
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Adds an unsigned copy of the given APK to the cache.
+   *
+   * @param key  the key returned by {@link #computeKey}
+   * @param apk  the signed APK
+   * @param tempDir  the directory in which to write the unsigned APK before it is cached
+   */
+  void putUnsigned(String key, File apk, File tempDir) throws IOException {
+    File unsignedApk = File.createTempFile(key, ".apk", tempDir);
+    try {
+      ApkWriter apkWriter = new ApkWriter(unsignedApk, null, null);
+      try {
+        apkWriter.addZipFile(apk);
+      } finally {
+        apkWriter.close();
+      }
+      put(key, unsignedApk);
+    } finally {
+      unsignedApk.delete();
+    }
+  }
+
+  /**
+   * Signs the cached APK for the given key with the key in the given keystore.
+   *
+   * @param key  the key returned by {@link #computeKey}
+   * @param keystore  the user's keystore
+   * @param apk  the signed APK to write
+   * @param tempDir  the directory in which to copy the unsigned APK out of the cache
+   * @return  {@code true} if the APK was in the cache, {@code false} otherwise
+   */
+  boolean getSigned(String key, File keystore, File apk, File tempDir) throws IOException {
+    File unsignedApk = File.createTempFile(key, ".apk", tempDir);
+    try {
+      if (!get(key, unsignedApk)) {
+        return false;
+      }
+      ApkWriter apkWriter = ApkWriter.create(apk, keystore, KeystorePool.KEY_ALIAS,
+          KeystorePool.KEYSTORE_PASSWORD);
+      try {
+        apkWriter.addZipFile(unsignedApk);
+      } finally {
+        apkWriter.close();
+      }
+      return true;
+    } finally {
+      unsignedApk.delete();
+    }
+  }
+}
@@ -12,8 +12,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
-
-import com.android.sdklib.build.ApkBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -23,8 +22,6 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -36,8 +33,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,10 +52,26 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  public static int currentProgress = 10;
+  // Kawa and DX processes can use a lot of memory. They are only launched when the RAM they may
+  // use fits in the budget of the scheduler. By default, only one Kawa or DX process runs at a
+  // time.
+  private static volatile ChildProcessScheduler childProcessScheduler =
+      new ChildProcessScheduler(1);
+
+  // Warm Kawa compiler processes. If null, the Kawa compiler is forked for every build.
+  private static volatile KawaCompilerPool kawaCompilerPool;
+
+  // Dexed libraries. If null, DX processes the libraries on every build.
+  private static volatile DexCache dexCache;
+
+  // Classes that Kawa generated for source files in previous builds. If null, Kawa compiles every
+  // source file on every build.
+  private static volatile ClassFileCache classFileCache;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // Runs the stages of all the builds. Each build waits for its own stages, so the number of
+  // threads is bounded by the number of stages that can run at the same time.
+  private static final Executor stageExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("BuildStage-%d").setDaemon(true).build());
 
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
@@ -120,12 +136,6 @@ public final class Compiler {
   @VisibleForTesting
   static final String YAIL_RUNTIME =
       RUNTIME_FILES_DIR + "runtime.scm";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
@@ -143,13 +153,12 @@ public final class Compiler {
     new ConcurrentHashMap<String, Set<String>>();
 
   /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
+   * The directory holding the resources that we've written out as files.
+   * Don't use it directly. Please call getResource() with one of the
+   * constants above to get the path to a resource.
    */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
+  private static volatile ResourceDirectory resourceDirectory = new ResourceDirectory(
+      new File(System.getProperty("java.io.tmpdir"), "appinventor-resources"));
 
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String ERROR_IN_STAGE =
@@ -171,6 +180,7 @@ public final class Compiler {
   private final boolean isForWireless;
   // Maximum ram that can be used by a child processes, in MB.
   private final int childProcessRamMb;
+  private final BuildProgress progress;
   private Set<String> librariesNeeded; // Set of component libraries
   private Set<String> nativeLibrariesNeeded; // Set of component native libraries
   private Set<String> assetsNeeded; // Set of component assets
@@ -481,136 +491,196 @@ public final class Compiler {
    *
    * @param project  project to build
    * @param componentTypes component types used in the project
-   * @param out  stdout stream for compiler messages
-   * @param err  stderr stream for compiler messages
+   * @param compilerOut  stdout stream for compiler messages
+   * @param compilerErr  stderr stream for compiler messages
    * @param userErrors stream to write user-visible error messages
    * @param isForRepl {@code true}, if this compilation is for the special REPL app
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param progress  records the progress of the build
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
    */
   public static boolean compile(Project project, Set<String> componentTypes,
-                                PrintStream out, PrintStream err, PrintStream userErrors,
-                                boolean isForRepl, boolean isForWireless, String keystoreFilePath,
-                                int childProcessRam) throws IOException, JSONException {
+                                PrintStream compilerOut, PrintStream compilerErr,
+                                PrintStream userErrors, boolean isForRepl, boolean isForWireless,
+                                final String keystoreFilePath,
+                                int childProcessRam, final BuildProgress progress)
+      throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
+    // The stages that prepare resources, the manifest and assets don't depend on the compiled
+    // classes, so they run while Kawa compiles the sources. aapt only needs the resources, the
+    // manifest and the assets, so it runs while DX runs. The messages of each stage are written
+    // out when it finishes, so that the messages of concurrent stages aren't interleaved.
+    BuildStageGraph stages = new BuildStageGraph(userErrors, ERROR_IN_STAGE, progress);
+    final PrintStream out = stages.bufferStageOutput(compilerOut);
+    PrintStream err = (compilerErr == compilerOut) ? out : stages.bufferStageOutput(compilerErr);
+
     // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForRepl, isForWireless,
-                                     childProcessRam);
+    final Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors,
+                                           isForRepl, isForWireless, childProcessRam, progress);
 
     // Get names of component-required libraries and assets.
     compiler.generateLibraryNames();
     compiler.generateNativeLibraryNames();
     compiler.generateAssets();
 
-    // Create build directory.
-    File buildDir = createDirectory(project.getBuildDirectory());
+    // Create build directories.
+    final File buildDir = createDirectory(project.getBuildDirectory());
+    final File resDir = createDirectory(buildDir, "res");
+    final File classesDir = createDirectory(buildDir, "classes");
+    final File tmpDir = createDirectory(buildDir, "tmp");
+    final File deployDir = createDirectory(buildDir, "deploy");
+    final File manifestFile = new File(buildDir, "AndroidManifest.xml");
+    final String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
+    final String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
+        project.getProjectName() + ".ap_";
+    final String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
+        project.getProjectName() + ".apk";
 
     // Prepare application icon.
-    out.println("________Preparing application icon");
-    File resDir = createDirectory(buildDir, "res");
-    File drawableDir = createDirectory(resDir, "drawable");
-    if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
-      return false;
-    }
-    setProgress(10);
+    stages.add("Icon", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Preparing application icon");
+        long stageStart = System.currentTimeMillis();
+        File drawableDir = createDirectory(resDir, "drawable");
+        if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
+          return false;
+        }
+        BuildStageTimes.record(BuildStageTimes.Stage.ICON, stageStart);
+        progress.setPercent(10);
+        return true;
+      }
+    });
 
     // Create anim directory and animation xml files
-    out.println("________Creating animation xml");
-    File animDir = createDirectory(resDir, "anim");
-    if (!compiler.createAnimationXml(animDir)) {
-      return false;
-    }
-
-    // Determine android permissions.
-    out.println("________Determining permissions");
-    Set<String> permissionsNeeded = compiler.generatePermissions();
-    if (permissionsNeeded == null) {
-      return false;
-    }
-    setProgress(15);
+    stages.add("Animation", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Creating animation xml");
+        File animDir = createDirectory(resDir, "anim");
+        return compiler.createAnimationXml(animDir);
+      }
+    });
+
+    // Determine android permissions and generate AndroidManifest.xml
+    stages.add("Manifest", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Determining permissions");
+        long stageStart = System.currentTimeMillis();
+        Set<String> permissionsNeeded = compiler.generatePermissions();
+        if (permissionsNeeded == null) {
+          return false;
+        }
+        progress.setPercent(15);
 
-    // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
-      return false;
-    }
-    setProgress(20);
+        out.println("________Generating manifest file");
+        if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
+          return false;
+        }
+        BuildStageTimes.record(BuildStageTimes.Stage.MANIFEST, stageStart);
+        progress.setPercent(20);
+        return true;
+      }
+    });
 
     // Insert native libraries
-    out.println("________Attaching native libraries");
-    if (!compiler.insertNativeLibraries(buildDir)) {
-      return false;
-    }
+    stages.add("Native Libraries", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Attaching native libraries");
+        return compiler.insertNativeLibraries(buildDir);
+      }
+    });
 
     // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
-    if (!compiler.attachComponentAssets()) {
-      return false;
-    }
+    stages.add("Assets", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Attaching component assets");
+        return compiler.attachComponentAssets();
+      }
+    });
 
     // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDirectory(buildDir, "classes");
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
-    setProgress(35);
+    stages.add("Compile", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Compiling source files");
+        long stageStart = System.currentTimeMillis();
+        if (!compiler.generateClasses(classesDir)) {
+          return false;
+        }
+        BuildStageTimes.record(BuildStageTimes.Stage.KAWA, stageStart);
+        progress.setPercent(35);
+        return true;
+      }
+    });
 
     // Invoke dx on class files
-    out.println("________Invoking DX");
-    // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
-    // overhead for subsequent runs).  I think it's because of the need to dx the entire
-    // kawa runtime every time.  We should probably only do that once and then copy all the
-    // kawa runtime dx files into the generated classes.dex (which would only contain the
-    // files compiled for this project).
-    // Aargh.  It turns out that there's no way to manipulate .dex files to do the above.  An
-    // Android guy suggested an alternate approach of shipping the kawa runtime .dex file as
-    // data with the application and then creating a new DexClassLoader using that .dex file
-    // and with the original app class loader as the parent of the new one.
-    File tmpDir = createDirectory(buildDir, "tmp");
-    String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
-    if (!compiler.runDx(classesDir, dexedClasses)) {
-      return false;
-    }
-    setProgress(85);
+    stages.add("DX", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Invoking DX");
+        // Running DX on everything is pretty slow (~25 sec overhead the first time and ~15 sec
+        // overhead for subsequent runs), because of the need to dx the entire kawa runtime every
+        // time. When the dex cache is enabled, the libraries are only dexed once and their dex
+        // files are merged with the dex file of the classes compiled for this project.
+        long stageStart = System.currentTimeMillis();
+        if (!compiler.runDx(classesDir, dexedClasses)) {
+          return false;
+        }
+        BuildStageTimes.record(BuildStageTimes.Stage.DX, stageStart);
+        progress.setPercent(85);
+        return true;
+      }
+    }, "Compile");
 
     // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDirectory(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".ap_";
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
-      return false;
-    }
-    setProgress(90);
-
-    // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
-    String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses)) {
-      return false;
-    }
-    setProgress(95);
-
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
-    }
+    stages.add("AAPT", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Invoking AAPT");
+        long stageStart = System.currentTimeMillis();
+        if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
+          return false;
+        }
+        BuildStageTimes.record(BuildStageTimes.Stage.AAPT, stageStart);
+        return true;
+      }
+    }, "Icon", "Animation", "Manifest", "Assets");
+
+    // Write the signed and aligned apk
+    stages.add("ApkBuilder", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        out.println("________Writing the signed apk");
+        long stageStart = System.currentTimeMillis();
+        if (!compiler.writeSignedApk(apkAbsolutePath, tmpPackageName, dexedClasses,
+            keystoreFilePath)) {
+          return false;
+        }
+        BuildStageTimes.record(BuildStageTimes.Stage.APK_BUILDER, stageStart);
+        progress.setPercent(95);
+        return true;
+      }
+    }, "DX", "AAPT", "Native Libraries");
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
-      return false;
+    try {
+      if (!stages.run(stageExecutor)) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while building " + project.getProjectName());
     }
 
-    setProgress(100);
+    progress.setPercent(100);
+    BuildStageTimes.record(BuildStageTimes.Stage.COMPILE, start);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -667,20 +737,27 @@ public final class Compiler {
   }
 
   /*
-   * Runs ApkBuilder by using the API instead of calling its main method because the main method
-   * can call System.exit(1), which will bring down our server.
+   * Writes the apk from the resources packaged by aapt and the dexed classes, signing it with the
+   * key in the given keystore and aligning its uncompressed entries.
    */
-  private boolean runApkBuilder(String apkAbsolutePath, String zipArchive, String dexedClasses) {
+  private boolean writeSignedApk(String apkAbsolutePath, String zipArchive, String dexedClasses,
+      String keystoreAbsolutePath) {
     try {
-      ApkBuilder apkBuilder =
-          new ApkBuilder(apkAbsolutePath, zipArchive, dexedClasses, null, System.out);
-      apkBuilder.sealApk();
+      ApkWriter apkWriter = ApkWriter.create(new File(apkAbsolutePath),
+          new File(keystoreAbsolutePath), KeystorePool.KEY_ALIAS,
+          KeystorePool.KEYSTORE_PASSWORD);
+      try {
+        apkWriter.addZipFile(new File(zipArchive));
+        apkWriter.addFile(new File(dexedClasses), "classes.dex");
+      } finally {
+        apkWriter.close();
+      }
       return true;
-    } catch (Exception e) {
+    } catch (IOException e) {
       // This is fatal.
       e.printStackTrace();
-      LOG.warning("YAIL compiler - ApkBuilder failed.");
-      err.println("YAIL compiler - ApkBuilder failed.");
+      LOG.warning("YAIL compiler - writing the signed apk failed.");
+      err.println("YAIL compiler - writing the signed apk failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "ApkBuilder"));
       return false;
     }
@@ -696,11 +773,12 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param isForRepl {@code true}, if this compilation is for the special REPL app
    * @param childProcessMaxRam  maximum RAM for child processes, in MBs.
+   * @param progress  records the progress of the build
    */
   @VisibleForTesting
   Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
            PrintStream userErrors, boolean isForRepl, boolean isForWireless,
-           int childProcessMaxRam) {
+           int childProcessMaxRam, BuildProgress progress) {
     this.project = project;
     this.componentTypes = componentTypes;
     this.out = out;
@@ -709,6 +787,7 @@ public final class Compiler {
     this.isForRepl = isForRepl;
     this.isForWireless = isForWireless;
     this.childProcessRamMb = childProcessMaxRam;
+    this.progress = progress;
   }
 
   /*
@@ -760,23 +839,41 @@ public final class Compiler {
       }
 
       // Construct the class path including component libraries (jars)
-      String classpath =
-        getResource(KAWA_RUNTIME) + File.pathSeparator +
-        getResource(ACRA_RUNTIME) + File.pathSeparator +
-        getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator;
-
-      // Add component library names to classpath
       System.out.println("Libraries Classpath, n " + librariesNeeded.size());
-      for (String library : librariesNeeded) {
-        classpath += getResource(RUNTIME_FILES_DIR + library) + File.pathSeparator;
-      }
-
-      classpath +=
-        getResource(ANDROID_RUNTIME);
-
+      String classpath = getKawaClasspath(librariesNeeded);
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
+
+      // Restore the classes of the source files that haven't changed since an earlier build, and
+      // only compile the others. The runtime declares its own module name, so its classes are
+      // cached under that name rather than in the project's package.
+      List<String> allFileNames = Lists.newArrayList(sourceFileNames);
+      allFileNames.add(yailRuntime);
+      List<String> fileNamesToCompile = Lists.newArrayList();
+      Map<String, String> moduleNames = new HashMap<String, String>();
+      Map<String, String> cacheKeys = new HashMap<String, String>();
+      ClassFileCache cache = classFileCache;
+      for (String fileName : allFileNames) {
+        if (cache != null) {
+          String moduleName = ClassFileCache.getModuleName(new File(fileName), packagePrefix);
+          moduleNames.put(fileName, moduleName);
+          String cacheKey = ClassFileCache.computeKey(new File(fileName), moduleName,
+              new File(yailRuntime), BuildResultCache.getBuildServerFingerprint());
+          if (cache.restore(cacheKey, classesDir)) {
+            LOG.info("Reusing cached classes for " + fileName);
+            continue;
+          }
+          cacheKeys.put(fileName, cacheKey);
+        }
+        fileNamesToCompile.add(fileName);
+      }
+      if (fileNamesToCompile.isEmpty()) {
+        out.println("Kawa compile skipped: all classes were cached");
+        return true;
+      }
+
       List<String> kawaCommandArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
       Collections.addAll(kawaCommandArgs,
@@ -786,15 +883,14 @@ public final class Compiler {
           "kawa.repl",
           "-f", yailRuntime,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packagePrefix,
           "-C");
       // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
       // source file names. The resulting .class files contain references to the source file names,
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
+      kawaCommandArgs.addAll(fileNamesToCompile);
       String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
       long start = System.currentTimeMillis();
@@ -803,10 +899,28 @@ public final class Compiler {
       // YoungAndroidProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
+      // The pool's daemons are always running, so compiles they serve don't count against the
+      // child process budget. Only a forked Kawa compiler does.
+      KawaCompilerPool.Outcome outcome = KawaCompilerPool.Outcome.UNAVAILABLE;
+      KawaCompilerPool pool = kawaCompilerPool;
+      if (pool != null) {
+        outcome = pool.compile(classesDir, packagePrefix, fileNamesToCompile,
             System.out, new PrintStream(kawaOutputStream));
       }
+      if (outcome == KawaCompilerPool.Outcome.UNAVAILABLE) {
+        // Fall back to forking the Kawa compiler.
+        kawaOutputStream.reset();
+        ChildProcessScheduler scheduler = childProcessScheduler;
+        scheduler.acquire(childProcessRamMb);
+        try {
+          kawaSuccess = Execution.execute(null, kawaCommandLine,
+              System.out, new PrintStream(kawaOutputStream));
+        } finally {
+          scheduler.release(childProcessRamMb);
+        }
+      } else {
+        kawaSuccess = outcome == KawaCompilerPool.Outcome.SUCCEEDED;
+      }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
       }
@@ -829,6 +943,10 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (cache != null) {
+        storeCompiledClasses(cache, cacheKeys, classesDir, moduleNames);
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
@@ -838,95 +956,80 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + File.separator + "bin" +
-        File.separator + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + File.separator + ".." + File.separator + "bin" +
-          File.separator + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + File.separator + ".." + File.separator + "bin" +
-            File.separator + "jarsigner.exe");
-      }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-        return false;
+  /*
+   * Adds the classes of the files that were just compiled to the class file cache. Nothing is
+   * stored if some class file can't be attributed to a source file, since restoring the classes of
+   * a source file must not leave any of them out.
+   */
+  private static void storeCompiledClasses(ClassFileCache cache, Map<String, String> cacheKeys,
+      File classesDir, Map<String, String> moduleNames) {
+    Map<String, List<String>> classFilesBySource = new HashMap<String, List<String>>();
+    Set<String> unattributed = ClassFileCache.listFiles(classesDir);
+    for (Map.Entry<String, String> entry : moduleNames.entrySet()) {
+      List<String> classFiles = ClassFileCache.getClassFiles(classesDir, entry.getValue());
+      classFilesBySource.put(entry.getKey(), classFiles);
+      unattributed.removeAll(classFiles);
+    }
+    if (!unattributed.isEmpty()) {
+      LOG.warning("Not caching classes, unexpected class files: " + unattributed);
+      return;
+    }
+    for (Map.Entry<String, String> entry : cacheKeys.entrySet()) {
+      List<String> classFiles = classFilesBySource.get(entry.getKey());
+      if (!classFiles.isEmpty()) {
+        try {
+          cache.store(entry.getValue(), classesDir, classFiles);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to cache classes of " + entry.getKey(), e);
+        }
       }
     }
+  }
 
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+  /*
+   * Returns the class path used to run the Kawa compiler with the given component libraries.
+   */
+  private static String getKawaClasspath(Set<String> libraries) {
+    String classpath =
+      getResource(KAWA_RUNTIME) + File.pathSeparator +
+      getResource(ACRA_RUNTIME) + File.pathSeparator +
+      getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator;
+
+    // Add component library names to classpath
+    for (String library : libraries) {
+      classpath += getResource(RUNTIME_FILES_DIR + library) + File.pathSeparator;
     }
 
-    return true;
+    classpath +=
+      getResource(ANDROID_RUNTIME);
+    return classpath;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDirectory(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
-    }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + File.separator + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startAapt = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
-    }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+  /**
+   * Starts a pool of warm Kawa compiler processes, which will be used by all subsequent builds
+   * instead of forking the Kawa compiler. The processes are started in the background.
+   *
+   * @param size  the number of Kawa compiler processes
+   * @param childProcessRamMb  maximum RAM for each process, in MB
+   */
+  static void startKawaCompilerPool(int size, int childProcessRamMb)
+      throws IOException, JSONException {
+    // The processes are shared by all projects, so their class path has every component library.
+    Set<String> allLibraries = Sets.newHashSet();
+    JSONArray componentsArray = new JSONArray(Resources.toString(
+        Compiler.class.getResource(COMPONENT_BUILD_INFO), Charsets.UTF_8));
+    for (int i = 0; i < componentsArray.length(); i++) {
+      JSONArray libraries = componentsArray.getJSONObject(i).getJSONArray(LIBRARIES_TARGET);
+      for (int j = 0; j < libraries.length(); j++) {
+        allLibraries.add(libraries.getString(j));
+      }
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startAapt) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
-    return true;
+    kawaCompilerPool = new KawaCompilerPool(size, getKawaClasspath(allLibraries),
+        getResource(YAIL_RUNTIME), childProcessRamMb);
+  }
+
+  static KawaCompilerPool getKawaCompilerPool() {
+    return kawaCompilerPool;
   }
 
   /*
@@ -966,39 +1069,55 @@ public final class Compiler {
   private boolean runDx(File classesDir, String dexedClasses) {
     int mx = childProcessRamMb - 200;
 
-    List<String> commandLineList = new ArrayList<String>();
-    commandLineList.add(System.getProperty("java.home") + "/bin/java");
-    commandLineList.add("-mx" + mx + "M");
-    commandLineList.add("-jar");
-    commandLineList.add(getResource(DX_JAR));
-    commandLineList.add("--dex");
-    commandLineList.add("--positions=lines");
-    commandLineList.add("--output=" + dexedClasses);
-    commandLineList.add(classesDir.getAbsolutePath());
-    commandLineList.add(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
-    commandLineList.add(getResource(KAWA_RUNTIME));
-    commandLineList.add(getResource(ACRA_RUNTIME));
+    List<String> dxCommandPrefix = new ArrayList<String>();
+    dxCommandPrefix.add(System.getProperty("java.home") + "/bin/java");
+    dxCommandPrefix.add("-mx" + mx + "M");
+    dxCommandPrefix.add("-jar");
+    dxCommandPrefix.add(getResource(DX_JAR));
+    dxCommandPrefix.add("--dex");
+    dxCommandPrefix.add("--positions=lines");
+
+    List<String> libraries = new ArrayList<String>();
+    libraries.add(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+    libraries.add(getResource(KAWA_RUNTIME));
+    libraries.add(getResource(ACRA_RUNTIME));
 
     // Add libraries to command line arguments
     System.out.println("Libraries needed command line n = " + librariesNeeded.size());
     for (String library : librariesNeeded) {
-      commandLineList.add(getResource(RUNTIME_FILES_DIR + library));
+      libraries.add(getResource(RUNTIME_FILES_DIR + library));
     }
 
-    System.out.println("Libraries command line = " + commandLineList);
-
-    // Convert command line to an array
-    String[] dxCommandLine = new String[commandLineList.size()];
-    commandLineList.toArray(dxCommandLine);
-
    long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
-      setProgress(75);
+    boolean dxSuccess = false;
+    ChildProcessScheduler scheduler = childProcessScheduler;
+    scheduler.acquire(childProcessRamMb);
+    try {
+      progress.setPercent(50);
+      DexCache cache = dexCache;
+      if (cache != null) {
+        dxSuccess = runDxWithCache(cache, dxCommandPrefix, classesDir, libraries, dexedClasses);
+        if (!dxSuccess) {
+          LOG.warning("YAIL compiler - DX with cached libraries failed, dexing everything.");
+        }
+      }
+      if (!dxSuccess) {
+        List<String> commandLineList = new ArrayList<String>(dxCommandPrefix);
+        commandLineList.add("--output=" + dexedClasses);
+        commandLineList.add(classesDir.getAbsolutePath());
+        commandLineList.addAll(libraries);
+        System.out.println("Libraries command line = " + commandLineList);
+
+        // Convert command line to an array
+        String[] dxCommandLine = new String[commandLineList.size()];
+        commandLineList.toArray(dxCommandLine);
+        dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
+      }
+      progress.setPercent(75);
+    } finally {
+      scheduler.release(childProcessRamMb);
     }
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
@@ -1014,18 +1133,91 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Dexes only the project's classes and merges them with the cached dex files of the libraries.
+   * Returns false if any step fails.
+   */
+  private boolean runDxWithCache(DexCache cache, List<String> dxCommandPrefix, File classesDir,
+      List<String> libraries, String dexedClasses) {
+    try {
+      // The project's classes come first, so that they win if a library has a class with the
+      // same name.
+      List<File> dexFiles = new ArrayList<File>();
+      File projectDex = new File(new File(dexedClasses).getParentFile(), "project.dex");
+      List<String> commandLineList = new ArrayList<String>(dxCommandPrefix);
+      commandLineList.add("--output=" + projectDex.getAbsolutePath());
+      commandLineList.add(classesDir.getAbsolutePath());
+      String[] dxCommandLine = new String[commandLineList.size()];
+      commandLineList.toArray(dxCommandLine);
+      if (!Execution.execute(null, dxCommandLine, System.out, System.err)) {
+        return false;
+      }
+      dexFiles.add(projectDex);
+
+      for (String library : libraries) {
+        File libraryDex =
+            new File(projectDex.getParentFile(), "library" + dexFiles.size() + ".dex");
+        if (!cache.getDexFile(library, dxCommandPrefix, libraryDex, System.out, System.err)) {
+          return false;
+        }
+        dexFiles.add(libraryDex);
+      }
+
+      DexCache.mergeDexFiles(getResource(DX_JAR), new File(dexedClasses), dexFiles);
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Sets the total RAM that Kawa and DX processes of concurrent builds may use.
+   *
+   * @param budgetMb  the RAM budget, in MB
+   */
+  static void setChildProcessRamBudget(int budgetMb) {
+    childProcessScheduler = new ChildProcessScheduler(budgetMb);
+  }
+
+  static ChildProcessScheduler getChildProcessScheduler() {
+    return childProcessScheduler;
+  }
+
+  /**
+   * Enables the cache of dexed libraries for all subsequent builds.
+   *
+   * @param cacheDir  the directory containing the cached dex files
+   * @param maxSizeBytes  the maximum total size of the cached dex files
+   */
+  static void setDexCacheDirectory(File cacheDir, long maxSizeBytes) {
+    dexCache = new DexCache(cacheDir, maxSizeBytes, BuildResultCache.getBuildServerFingerprint());
+  }
+
+  static DexCache getDexCache() {
+    return dexCache;
+  }
+
+  /**
+   * Enables the cache of Kawa generated classes for all subsequent builds.
+   *
+   * @param cacheDir  the directory containing the cached classes
+   * @param maxSizeBytes  the maximum total size of the cached classes
+   */
+  static void setClassFileCacheDirectory(File cacheDir, long maxSizeBytes) {
+    classFileCache = new ClassFileCache(cacheDir, maxSizeBytes);
+  }
+
+  static ClassFileCache getClassFileCache() {
+    return classFileCache;
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDirectory(project.getAssetsDirectory());
-    String aaptTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      aaptTool = MAC_AAPT_TOOL;
-    } else if (osName.equals("Linux")) {
-      aaptTool = LINUX_AAPT_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      aaptTool = WINDOWS_AAPT_TOOL;
-    } else {
+    String aaptTool = getAaptTool();
+    if (aaptTool == null) {
+      String osName = System.getProperty("os.name");
       LOG.warning("YAIL compiler - cannot run AAPT on OS " + osName);
       err.println("YAIL compiler - cannot run AAPT on OS " + osName);
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -1108,42 +1300,97 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Returns the resource path of the aapt tool for this OS, or null if there isn't one.
+   */
+  private static String getAaptTool() {
+    String osName = System.getProperty("os.name");
+    if (osName.equals("Mac OS X")) {
+      return MAC_AAPT_TOOL;
+    } else if (osName.equals("Linux")) {
+      return LINUX_AAPT_TOOL;
+    } else if (osName.startsWith("Windows")) {
+      return WINDOWS_AAPT_TOOL;
+    }
+    return null;
+  }
+
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Writes out the given resource as a file, unless it has been written out
+   * already, and returns the absolute path.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
     try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
+      return resourceDirectory.get(resourcePath).getAbsolutePath();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Sets the directory in which resources are written out. Resources written
+   * out by an earlier build server are reused if they haven't changed.
+   *
+   * @param dir  the resource directory
+   */
+  static void setResourceDirectory(File dir) {
+    resourceDirectory = new ResourceDirectory(dir);
+  }
+
+  static ResourceDirectory getResourceDirectory() {
+    return resourceDirectory;
+  }
+
+  /**
+   * Starts writing out, in the background, the resources that builds use: the
+   * runtime jars, the sdk tools, and the libraries and assets of every
+   * component.
+   */
+  static void startPrewarmingResources() throws IOException, JSONException {
+    Set<String> resourcePaths = Sets.newLinkedHashSet();
+    resourcePaths.add(SIMPLE_ANDROID_RUNTIME_JAR);
+    resourcePaths.add(ANDROID_RUNTIME);
+    resourcePaths.add(KAWA_RUNTIME);
+    resourcePaths.add(ACRA_RUNTIME);
+    resourcePaths.add(DX_JAR);
+    resourcePaths.add(YAIL_RUNTIME);
+    resourcePaths.add(RUNTIME_FILES_DIR + "YailGenerator.jar");
+    String aaptTool = getAaptTool();
+    if (aaptTool != null) {
+      resourcePaths.add(aaptTool);
+    }
+
+    JSONArray componentsArray = new JSONArray(Resources.toString(
+        Compiler.class.getResource(COMPONENT_BUILD_INFO), Charsets.UTF_8));
+    for (int i = 0; i < componentsArray.length(); i++) {
+      JSONObject componentObject = componentsArray.getJSONObject(i);
+      for (String library : getStrings(componentObject, LIBRARIES_TARGET)) {
+        resourcePaths.add(RUNTIME_FILES_DIR + library);
+      }
+      for (String library : getStrings(componentObject, NATIVE_TARGET)) {
+        if (library.endsWith(ARMEABI_V7A_SUFFIX)) {
+          library = library.substring(0, library.length() - ARMEABI_V7A_SUFFIX.length());
+          resourcePaths.add(RUNTIME_FILES_DIR + ARMEABI_V7A_DIRECTORY + File.separator + library);
         } else {
-          prefix = basename;
-          suffix = "";
+          resourcePaths.add(RUNTIME_FILES_DIR + library);
         }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
       }
-      return file.getAbsolutePath();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+      for (String asset : getStrings(componentObject, ASSETS_TARGET)) {
+        resourcePaths.add(RUNTIME_FILES_DIR + asset);
+      }
+    }
+    resourceDirectory.startPrewarming(resourcePaths);
+  }
+
+  private static List<String> getStrings(JSONObject object, String name) throws JSONException {
+    List<String> strings = Lists.newArrayList();
+    JSONArray array = object.getJSONArray(name);
+    for (int i = 0; i < array.length(); i++) {
+      strings.add(array.getString(i));
     }
+    return strings;
   }
 
   /*
@@ -1177,32 +1424,6 @@ public final class Compiler {
     }
   }
 
-  /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
-   */
-  private static Boolean copyFile(String srcPath, String dstPath) {
-    try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
-    return true;
-  }
-
   /**
    * Creates a new directory (if it doesn't exist already).
    *
@@ -1230,20 +1451,4 @@ public final class Compiler {
     }
     return dir;
   }
-
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
-  }
-
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
-    }
-  }
 }
@@ -0,0 +1,154 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk cache of dexed libraries.
+ *
+ * <p>Most of the time DX spends on a build goes into dexing the Kawa runtime, the App Inventor
+ * component runtime and the component libraries, which are the same for every build. This cache
+ * keeps the dex file of each library, so that a build only needs to dex the project's own classes
+ * and merge the result with the cached dex files. The key is a hash of the library's contents,
+ * the build server fingerprint and the DX command line, since a new dx.jar or different DX
+ * options produce a different dex file.
+ *
+ * <p>Dex files are written to a temp file and then renamed into place, so that several build
+ * servers may share the same cache directory.
+ */
+final class DexCache extends BoundedFileCache {
+  private static final String DEX_BUFFER_CLASS = "com.android.dx.io.DexBuffer";
+  private static final String DEX_MERGER_CLASS = "com.android.dx.merge.DexMerger";
+  private static final String COLLISION_POLICY_CLASS = "com.android.dx.merge.CollisionPolicy";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(DexCache.class.getName());
+
+  private final String buildServerFingerprint;
+
+  // The hashes of the libraries we've seen, keyed by path. The libraries are extracted from the
+  // build server jar, so their contents can't change while the build server is running.
+  private final ConcurrentMap<String, String> libraryHashes =
+      new ConcurrentHashMap<String, String>();
+
+  /**
+   * Creates a DexCache, keeping any dex files already in the cache directory.
+   *
+   * @param cacheDir  the directory containing the cached dex files
+   * @param maxSizeBytes  the maximum total size of the cached dex files
+   * @param buildServerFingerprint  the result of
+   *     {@link BuildResultCache#getBuildServerFingerprint}
+   */
+  DexCache(File cacheDir, long maxSizeBytes, String buildServerFingerprint) {
+    super(cacheDir, maxSizeBytes, ".dex");
+    this.buildServerFingerprint = buildServerFingerprint;
+  }
+
+  /**
+   * Writes the dex file for the given library, running DX on the library if it isn't cached.
+   *
+   * @param library  absolute path to a jar file
+   * @param dxCommandPrefix  the command line used to run DX, without input and output arguments
+   * @param dexFile  the file to write the dex file to
+   * @param out  stdout stream for DX output
+   * @param err  stderr stream for DX output
+   * @return  {@code true} if the dex file was written, {@code false} if DX failed
+   */
+  boolean getDexFile(String library, List<String> dxCommandPrefix, File dexFile,
+      PrintStream out, PrintStream err) throws IOException {
+    String key = computeKey(library, dxCommandPrefix);
+    // The cached file is copied rather than used in place, since it may be evicted while the
+    // build is still merging it.
+    if (get(key, dexFile)) {
+      return true;
+    }
+
+    String[] dxCommandLine = new String[dxCommandPrefix.size() + 2];
+    dxCommandPrefix.toArray(dxCommandLine);
+    dxCommandLine[dxCommandLine.length - 2] = "--output=" + dexFile.getAbsolutePath();
+    dxCommandLine[dxCommandLine.length - 1] = library;
+    LOG.info("Dexing " + library + " into the dex cache");
+    if (!Execution.execute(null, dxCommandLine, out, err)) {
+      return false;
+    }
+    put(key, dexFile);
+    return true;
+  }
+
+  private String computeKey(String library, List<String> dxCommandPrefix) throws IOException {
+    String libraryHash = libraryHashes.get(library);
+    if (libraryHash == null) {
+      libraryHash = Files.hash(new File(library), Hashing.sha1()).toString();
+      libraryHashes.put(library, libraryHash);
+    }
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(buildServerFingerprint, Charsets.UTF_8);
+    for (String argument : dxCommandPrefix) {
+      // The separator keeps ["a", "bc"] and ["ab", "c"] apart.
+      hasher.putString(argument, Charsets.UTF_8).putByte((byte) 0);
+    }
+    hasher.putString(libraryHash, Charsets.UTF_8);
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Merges dex files into one. If more than one input defines a class, the first one wins.
+   *
+   * <p>The merge runs in this process, using the classes in dx.jar. DexMerger's main method only
+   * accepts two inputs, and running it once per library would start a JVM and write a file for
+   * every library.
+   *
+   * @param dxJar  absolute path to dx.jar
+   * @param output  the merged dex file
+   * @param inputs  the dex files to merge
+   */
+  static void mergeDexFiles(String dxJar, File output, List<File> inputs) throws IOException {
+    URLClassLoader dxLoader = new URLClassLoader(new URL[] { new File(dxJar).toURI().toURL() },
+        DexCache.class.getClassLoader());
+    try {
+      Class<?> dexBufferClass = dxLoader.loadClass(DEX_BUFFER_CLASS);
+      Class<?> collisionPolicyClass = dxLoader.loadClass(COLLISION_POLICY_CLASS);
+      Class<?> dexMergerClass = dxLoader.loadClass(DEX_MERGER_CLASS);
+      Constructor<?> newDexBuffer = dexBufferClass.getConstructor(File.class);
+      Constructor<?> newDexMerger = dexMergerClass.getConstructor(
+          dexBufferClass, dexBufferClass, collisionPolicyClass);
+      Method merge = dexMergerClass.getMethod("merge");
+      Method writeTo = dexBufferClass.getMethod("writeTo", File.class);
+      Object keepFirst = collisionPolicyClass.getField("KEEP_FIRST").get(null);
+
+      Object merged = newDexBuffer.newInstance(inputs.get(0));
+      for (File input : inputs.subList(1, inputs.size())) {
+        Object dexMerger = newDexMerger.newInstance(
+            merged, newDexBuffer.newInstance(input), keepFirst);
+        merged = merge.invoke(dexMerger);
+      }
+      writeTo.invoke(merged, output);
+    } catch (InvocationTargetException e) {
+      throw new IOException("Unable to merge dex files", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unable to load DexMerger from " + dxJar, e);
+    } finally {
+      dxLoader.close();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Main class of a long-lived Kawa compiler process.
+ *
+ * <p>The daemon loads the YAIL runtime once at startup and then reads compile jobs, one per line,
+ * from its standard input. Each job line is a tab separated list whose first two entries are the
+ * files that receive the standard output and standard error of the job; the remaining entries
+ * are passed unchanged to the Kawa command line processor. After each job the daemon writes a
+ * line starting with {@link #REPLY_PREFIX} to its standard output.
+ *
+ * <p>Kawa calls {@code System.exit} when a source file fails to compile, so a job that fails
+ * because of an error in the user's program terminates the daemon with Kawa's exit code.
+ * {@link KawaCompilerPool} treats that as the result of the job and starts a new daemon.
+ *
+ * <p>This class runs in the child process and must not depend on anything other than the JDK,
+ * since its class path only contains the Kawa runtime, the component libraries and the build
+ * server classes. Kawa itself is accessed by reflection.
+ *
+ * @see KawaCompilerPool
+ */
+public final class KawaCompilerDaemon {
+  // Prefix of the lines written to stdout in reply to the pool. Kawa may write its own output to
+  // the process's stdout, so the pool ignores any line that doesn't start with this prefix.
+  static final String REPLY_PREFIX = "@@kawa-daemon@@ ";
+  static final String READY = "READY";
+  static final String OK = "OK";
+  static final String ERROR = "ERROR";
+
+  static final String FIELD_SEPARATOR = "\t";
+
+  private KawaCompilerDaemon() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of the YAIL runtime
+   */
+  public static void main(String[] args) throws Exception {
+    PrintStream replies = System.out;
+    PrintStream log = System.err;
+
+    Class<?> replClass = Class.forName("kawa.repl");
+    Method processArgs =
+        replClass.getMethod("processArgs", String[].class, int.class, int.class);
+    Class<?> moduleManagerClass = Class.forName("gnu.expr.ModuleManager");
+    Object moduleManager = moduleManagerClass.getMethod("getInstance").invoke(null);
+    Method clearModules = moduleManagerClass.getMethod("clear");
+
+    // Load the YAIL runtime. This is the expensive part of every Kawa compile, and the reason
+    // this process exists.
+    String[] loadRuntime = { "-f", args[0] };
+    processArgs.invoke(null, loadRuntime, 0, loadRuntime.length);
+    replies.println(REPLY_PREFIX + READY);
+    replies.flush();
+
+    BufferedReader jobs = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String job;
+    while ((job = jobs.readLine()) != null) {
+      String[] fields = job.split(FIELD_SEPARATOR);
+      PrintStream jobOut = new PrintStream(new FileOutputStream(fields[0]), true);
+      PrintStream jobErr = new PrintStream(new FileOutputStream(fields[1]), true);
+      String reply;
+      System.setOut(jobOut);
+      System.setErr(jobErr);
+      try {
+        // Forget the modules compiled by the previous job so that every job writes all of its
+        // class files, including the runtime, into its own output directory.
+        clearModules.invoke(moduleManager);
+        String[] kawaArgs = Arrays.copyOfRange(fields, 2, fields.length);
+        processArgs.invoke(null, kawaArgs, 0, kawaArgs.length);
+        reply = OK;
+      } catch (InvocationTargetException e) {
+        e.getCause().printStackTrace(log);
+        reply = ERROR;
+      } finally {
+        System.setOut(replies);
+        System.setErr(log);
+        jobOut.close();
+        jobErr.close();
+      }
+      replies.println(REPLY_PREFIX + reply);
+      replies.flush();
+    }
+  }
+}
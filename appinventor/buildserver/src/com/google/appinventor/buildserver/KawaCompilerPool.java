@@ -0,0 +1,390 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of pre-warmed Kawa compiler processes.
+ *
+ * <p>Forking {@code java kawa.repl -f runtime.scm -C ...} for every build pays for JVM startup,
+ * loading the Kawa runtime and the component libraries, and evaluating runtime.scm, which
+ * together take several seconds. The pool keeps a number of {@link KawaCompilerDaemon} child
+ * processes that have already done that work and hands compile jobs to them.
+ *
+ * <p>A daemon is replaced when it dies, when it reports an unexpected error and after it has
+ * compiled {@link #MAX_JOBS_PER_WORKER} jobs, so that state accumulated by Kawa can't grow
+ * without bound. A daemon that fails to start is retried with exponential backoff, at most
+ * {@link #MAX_START_ATTEMPTS} times; after that the pool runs with fewer daemons.
+ */
+final class KawaCompilerPool {
+
+  /**
+   * The result of a compile job.
+   */
+  enum Outcome {
+    // Kawa compiled every source file.
+    SUCCEEDED,
+    // Kawa reported an error in the sources. The error messages were written to the job's
+    // error stream.
+    FAILED,
+    // The job couldn't be run by a daemon. The caller should compile the sources some other way.
+    UNAVAILABLE
+  }
+
+  // Kawa's exit codes when a source file can't be compiled.
+  private static final int KAWA_EXIT_SOURCE_ERROR = 1;
+  private static final int KAWA_EXIT_SOURCE_ERROR_FATAL = 255;
+
+  private static final int MAX_JOBS_PER_WORKER = 50;
+
+  // How often, and how patiently, a daemon that fails to start is retried. A failure most likely
+  // means the machine is out of memory.
+  private static final int MAX_START_ATTEMPTS = 8;
+  private static final long FIRST_START_RETRY_MILLIS = 10000;
+  private static final long MAX_START_RETRY_MILLIS = 5 * 60 * 1000;
+
+  // How long a job waits for an idle daemon before the caller compiles it some other way.
+  private static final long DEFAULT_WORKER_WAIT_MILLIS = 30000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  private final String classpath;
+  private final String yailRuntime;
+  private final int childProcessRamMb;
+  private final long workerWaitMillis;
+  private final BlockingQueue<Worker> idleWorkers;
+  private final Set<Thread> starters =
+      Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+  private volatile boolean shutDown;
+  private final AtomicInteger startedWorkers = new AtomicInteger(0);
+  private final AtomicInteger completedJobs = new AtomicInteger(0);
+  private final AtomicInteger unavailableJobs = new AtomicInteger(0);
+
+  /**
+   * Creates a KawaCompilerPool and starts its workers in the background.
+   *
+   * @param size  the number of daemons to keep running
+   * @param classpath  class path of the daemons; must contain the Kawa runtime and every
+   *     component library a project may need
+   * @param yailRuntime  path to runtime.scm
+   * @param childProcessRamMb  maximum RAM for each daemon, in MB
+   */
+  KawaCompilerPool(int size, String classpath, String yailRuntime, int childProcessRamMb) {
+    this(size, classpath, yailRuntime, childProcessRamMb, DEFAULT_WORKER_WAIT_MILLIS);
+  }
+
+  /**
+   * Creates a KawaCompilerPool and starts its workers in the background.
+   *
+   * @param size  the number of daemons to keep running
+   * @param classpath  class path of the daemons; must contain the Kawa runtime and every
+   *     component library a project may need
+   * @param yailRuntime  path to runtime.scm
+   * @param childProcessRamMb  maximum RAM for each daemon, in MB
+   * @param workerWaitMillis  how long a job waits for an idle daemon, in milliseconds
+   */
+  KawaCompilerPool(int size, String classpath, String yailRuntime, int childProcessRamMb,
+      long workerWaitMillis) {
+    this.classpath = classpath + File.pathSeparator + getDaemonClasspath();
+    this.yailRuntime = yailRuntime;
+    this.childProcessRamMb = childProcessRamMb;
+    this.workerWaitMillis = workerWaitMillis;
+    idleWorkers = new LinkedBlockingQueue<Worker>();
+    for (int i = 0; i < size; i++) {
+      startWorkerInBackground();
+    }
+  }
+
+  /**
+   * Compiles the given YAIL files with a warm daemon. Waits for a daemon to become idle, and
+   * returns {@link Outcome#UNAVAILABLE} if none does in time, for instance because no daemon
+   * could be started.
+   *
+   * @param classesDir  directory to write the class files to
+   * @param packagePrefix  prefix of the generated class names
+   * @param sourceFileNames  the files to compile, including runtime.scm if its classes are
+   *     needed
+   * @param out  receives Kawa's standard output
+   * @param err  receives Kawa's standard error, which contains the compiler messages
+   * @return  the outcome of the job
+   */
+  Outcome compile(File classesDir, String packagePrefix, List<String> sourceFileNames,
+      PrintStream out, PrintStream err) {
+    Worker worker;
+    try {
+      worker = idleWorkers.poll(workerWaitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      worker = null;
+    }
+    if (worker == null) {
+      LOG.warning("No Kawa compiler daemon became idle in " + workerWaitMillis + " ms");
+      unavailableJobs.incrementAndGet();
+      return Outcome.UNAVAILABLE;
+    }
+
+    List<String> kawaArgs = Lists.newArrayList();
+    Collections.addAll(kawaArgs,
+        "-d", classesDir.getAbsolutePath(),
+        "-P", packagePrefix,
+        "-C");
+    kawaArgs.addAll(sourceFileNames);
+
+    Outcome outcome = worker.run(kawaArgs, out, err);
+    if (outcome == Outcome.UNAVAILABLE) {
+      unavailableJobs.incrementAndGet();
+    } else {
+      completedJobs.incrementAndGet();
+    }
+    if (worker.isReusable() && !shutDown) {
+      idleWorkers.add(worker);
+    } else {
+      worker.destroy();
+      startWorkerInBackground();
+    }
+    return outcome;
+  }
+
+  /**
+   * Stops the daemons and stops starting new ones. Jobs that are running finish, and later jobs
+   * are {@link Outcome#UNAVAILABLE}.
+   */
+  void shutDown() {
+    shutDown = true;
+    for (Thread starter : starters) {
+      starter.interrupt();
+    }
+    Worker worker;
+    while ((worker = idleWorkers.poll()) != null) {
+      worker.destroy();
+    }
+  }
+
+  int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  int getStartedWorkerCount() {
+    return startedWorkers.get();
+  }
+
+  int getCompletedJobCount() {
+    return completedJobs.get();
+  }
+
+  int getUnavailableJobCount() {
+    return unavailableJobs.get();
+  }
+
+  int getStartingWorkerCount() {
+    return starters.size();
+  }
+
+  private void startWorkerInBackground() {
+    if (shutDown) {
+      return;
+    }
+    Thread starter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          long retryMillis = FIRST_START_RETRY_MILLIS;
+          for (int attempt = 1; !shutDown; attempt++) {
+            try {
+              Worker worker = new Worker();
+              startedWorkers.incrementAndGet();
+              idleWorkers.add(worker);
+              if (shutDown && idleWorkers.remove(worker)) {
+                worker.destroy();
+              }
+              return;
+            } catch (IOException e) {
+              LOG.log(Level.WARNING, "Unable to start a Kawa compiler daemon", e);
+            }
+            if (attempt == MAX_START_ATTEMPTS) {
+              LOG.severe("Gave up starting a Kawa compiler daemon after " + attempt + " attempts");
+              return;
+            }
+            Thread.sleep(retryMillis);
+            retryMillis = Math.min(retryMillis * 2, MAX_START_RETRY_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          // The pool has been shut down.
+        } finally {
+          starters.remove(Thread.currentThread());
+        }
+      }
+    }, "KawaCompilerPool starter");
+    starter.setDaemon(true);
+    starters.add(starter);
+    starter.start();
+  }
+
+  /*
+   * Returns the class path entry containing KawaCompilerDaemon, which is the build server jar.
+   */
+  private static String getDaemonClasspath() {
+    try {
+      return new File(KawaCompilerDaemon.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (Exception e) {
+      throw new IllegalStateException("Can't locate the KawaCompilerDaemon class", e);
+    }
+  }
+
+  /*
+   * A single KawaCompilerDaemon child process.
+   */
+  private class Worker {
+    private final Process process;
+    private final BufferedReader replies;
+    private final Writer jobs;
+    private int jobCount;
+    private boolean reusable = true;
+
+    Worker() throws IOException {
+      String[] command = {
+          System.getProperty("java.home") + "/bin/java",
+          "-mx" + (childProcessRamMb - 200) + "M",
+          "-cp", classpath,
+          KawaCompilerDaemon.class.getName(),
+          yailRuntime
+      };
+      process = Runtime.getRuntime().exec(command);
+      replies = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+      jobs = new OutputStreamWriter(process.getOutputStream(), Charsets.UTF_8);
+      drainToLog(process);
+      String reply = readReply();
+      if (!KawaCompilerDaemon.READY.equals(reply)) {
+        process.destroy();
+        throw new IOException("Kawa compiler daemon failed to load " + yailRuntime);
+      }
+      LOG.info("Kawa compiler daemon is ready");
+    }
+
+    Outcome run(List<String> kawaArgs, PrintStream out, PrintStream err) {
+      File outFile = null;
+      File errFile = null;
+      try {
+        outFile = File.createTempFile("kawa", ".out");
+        errFile = File.createTempFile("kawa", ".err");
+        jobCount++;
+        jobs.write(outFile.getAbsolutePath() + KawaCompilerDaemon.FIELD_SEPARATOR +
+            errFile.getAbsolutePath() + KawaCompilerDaemon.FIELD_SEPARATOR +
+            Joiner.on(KawaCompilerDaemon.FIELD_SEPARATOR).join(kawaArgs) + "\n");
+        jobs.flush();
+        String reply = readReply();
+
+        Outcome outcome;
+        if (KawaCompilerDaemon.OK.equals(reply)) {
+          outcome = Outcome.SUCCEEDED;
+        } else if (reply == null && isSourceErrorExit()) {
+          // Kawa exited because of an error in the user's program.
+          reusable = false;
+          outcome = Outcome.FAILED;
+        } else {
+          LOG.warning("Kawa compiler daemon failed, reply was " + reply);
+          reusable = false;
+          return Outcome.UNAVAILABLE;
+        }
+        Files.copy(outFile, out);
+        Files.copy(errFile, err);
+        if (jobCount >= MAX_JOBS_PER_WORKER) {
+          reusable = false;
+        }
+        return outcome;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Kawa compiler daemon failed", e);
+        reusable = false;
+        return Outcome.UNAVAILABLE;
+      } finally {
+        if (outFile != null) {
+          outFile.delete();
+        }
+        if (errFile != null) {
+          errFile.delete();
+        }
+      }
+    }
+
+    boolean isReusable() {
+      return reusable;
+    }
+
+    void destroy() {
+      process.destroy();
+    }
+
+    /*
+     * Returns the next reply from the daemon, or null if the daemon has exited.
+     */
+    private String readReply() throws IOException {
+      String line;
+      while ((line = replies.readLine()) != null) {
+        if (line.startsWith(KawaCompilerDaemon.REPLY_PREFIX)) {
+          return line.substring(KawaCompilerDaemon.REPLY_PREFIX.length());
+        }
+      }
+      return null;
+    }
+
+    private boolean isSourceErrorExit() {
+      try {
+        int exitValue = process.waitFor();
+        return exitValue == KAWA_EXIT_SOURCE_ERROR || exitValue == KAWA_EXIT_SOURCE_ERROR_FATAL;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /*
+   * Copies the daemon's own standard error, which isn't part of any job, to the log.
+   */
+  private static void drainToLog(final Process process) {
+    Thread drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(
+              new InputStreamReader(process.getErrorStream(), Charsets.UTF_8));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            LOG.info("Kawa compiler daemon: " + line);
+          }
+        } catch (IOException e) {
+          // The daemon has exited.
+        }
+      }
+    }, "KawaCompilerPool log");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+}
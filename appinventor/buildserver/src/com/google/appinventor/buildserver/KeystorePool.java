@@ -0,0 +1,243 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Creates the keystores that sign the apps of new users, without running keytool.
+ *
+ * <p>Generating the RSA key is the slow part of creating a keystore, so the pool keeps up to
+ * {@code capacity} key pairs generated in the background. When a keystore is created, a key pair
+ * is taken from the pool and the user's certificate is issued for it, which is fast. Whenever the
+ * pool drops below its low-water mark, it is filled again. If the pool is empty, the key pair is
+ * generated by the build, as keytool did.
+ */
+final class KeystorePool {
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String KEYSTORE_PASSWORD = "android";
+
+  // The same key and certificate that "keytool -genkey -keyalg RSA -validity 10000" creates.
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 as the number of days of validity.
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  private static final long VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(10000);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeystorePool.class.getName());
+
+  private final int capacity;
+  private final int lowWaterMark;
+  private final BlockingQueue<KeyPair> keyPairs;
+  private final ExecutorService filler;
+  private final AtomicBoolean filling = new AtomicBoolean(false);
+  private final SecureRandom random = new SecureRandom();
+
+  private final AtomicInteger keystoresFromPool = new AtomicInteger(0);
+  private final AtomicInteger keystoresGeneratedOnDemand = new AtomicInteger(0);
+  private final AtomicInteger keyPairsGenerated = new AtomicInteger(0);
+  private final AtomicLong totalGenerationMillis = new AtomicLong(0);
+
+  /**
+   * Creates a KeystorePool and starts filling it in the background.
+   *
+   * @param capacity  the number of key pairs to keep ready; 0 generates every key pair on demand
+   * @param lowWaterMark  the pool is filled again when it has fewer key pairs than this
+   */
+  KeystorePool(int capacity, int lowWaterMark) {
+    Preconditions.checkArgument(capacity >= 0, "capacity must not be negative");
+    Preconditions.checkArgument(lowWaterMark <= capacity,
+        "lowWaterMark must not be greater than capacity");
+    this.capacity = capacity;
+    this.lowWaterMark = lowWaterMark;
+    keyPairs = new LinkedBlockingQueue<KeyPair>();
+    filler = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("KeystorePool-%d").setDaemon(true).build());
+    startFilling();
+  }
+
+  /**
+   * Writes a new keystore for the given user. The keystore contains a key with alias
+   * {@link #KEY_ALIAS}, and both the keystore and the key have password
+   * {@link #KEYSTORE_PASSWORD}.
+   *
+   * @param userName  the user's name, which becomes the common name of the certificate
+   * @param keystoreFile  the keystore file to write
+   */
+  void createKeystore(String userName, File keystoreFile) throws IOException {
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair != null) {
+      keystoresFromPool.incrementAndGet();
+    } else {
+      keyPair = generateKeyPair();
+      keystoresGeneratedOnDemand.incrementAndGet();
+    }
+    if (keyPairs.size() < lowWaterMark) {
+      startFilling();
+    }
+
+    try {
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      keyStore.load(null, null);
+      keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), KEYSTORE_PASSWORD.toCharArray(),
+          new Certificate[] { createCertificate(keyPair, userName) });
+      OutputStream out = new FileOutputStream(keystoreFile);
+      try {
+        keyStore.store(out, KEYSTORE_PASSWORD.toCharArray());
+      } finally {
+        out.close();
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to create keystore for " + userName, e);
+    }
+  }
+
+  /*
+   * Issues a self-signed certificate for the key pair, with the same distinguished name that was
+   * given to keytool.
+   */
+  private X509Certificate createCertificate(KeyPair keyPair, String userName)
+      throws GeneralSecurityException {
+    X500Principal name = new X500Principal("CN=" + quotifyUserName(userName) +
+        ", O=AppInventor for Android, C=US");
+    long now = System.currentTimeMillis();
+    try {
+      return new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+          name, new BigInteger(63, random), new Date(now), new Date(now + VALIDITY_MILLIS), name,
+          keyPair.getPublic())
+          .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate())));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  /*
+   * Starts filling the pool in the background, unless it is already being filled.
+   */
+  private void startFilling() {
+    if (capacity == 0 || !filling.compareAndSet(false, true)) {
+      return;
+    }
+    filler.execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean filled = false;
+        try {
+          while (keyPairs.size() < capacity) {
+            keyPairs.add(generateKeyPair());
+          }
+          filled = true;
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to fill the keystore pool", e);
+        } finally {
+          filling.set(false);
+        }
+        // Keystores may have been created after the last check of the loop.
+        if (filled && keyPairs.size() < lowWaterMark) {
+          startFilling();
+        }
+      }
+    });
+  }
+
+  private KeyPair generateKeyPair() throws IOException {
+    long start = System.currentTimeMillis();
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+      generator.initialize(KEY_SIZE, random);
+      return generator.generateKeyPair();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to generate a key pair", e);
+    } finally {
+      keyPairsGenerated.incrementAndGet();
+      totalGenerationMillis.addAndGet(System.currentTimeMillis() - start);
+    }
+  }
+
+  /*
+   * Quotes the user name so that commas and other special characters in it stay in the common
+   * name.
+   */
+  private static String quotifyUserName(String userName) {
+    Preconditions.checkNotNull(userName);
+    int length = userName.length();
+    StringBuilder sb = new StringBuilder(length + 2);
+    sb.append('"');
+    for (int i = 0; i < length; i++) {
+      char ch = userName.charAt(i);
+      if (ch == '"') {
+        sb.append('\\').append(ch);
+      } else {
+        sb.append(ch);
+      }
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  int getLowWaterMark() {
+    return lowWaterMark;
+  }
+
+  int getAvailableCount() {
+    return keyPairs.size();
+  }
+
+  int getKeystoresFromPoolCount() {
+    return keystoresFromPool.get();
+  }
+
+  int getKeystoresGeneratedOnDemandCount() {
+    return keystoresGeneratedOnDemand.get();
+  }
+
+  int getKeyPairsGeneratedCount() {
+    return keyPairsGenerated.get();
+  }
+
+  long getAverageGenerationMillis() {
+    int generated = keyPairsGenerated.get();
+    return generated == 0 ? 0 : totalGenerationMillis.get() / generated;
+  }
+}
@@ -0,0 +1,67 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent samples of a latency, in milliseconds, so that percentiles can be
+ * reported.
+ *
+ * <p>Only the last {@link #MAX_SAMPLES} samples are kept, so the percentiles describe recent
+ * behavior and memory use is bounded. The count and total cover every sample ever added.
+ */
+final class LatencySamples {
+  static final int MAX_SAMPLES = 1000;
+
+  // Guarded by this.
+  private final long[] samples = new long[MAX_SAMPLES];
+  private long count;
+  private long totalMillis;
+  private long maxMillis;
+
+  synchronized void add(long millis) {
+    samples[(int) (count % MAX_SAMPLES)] = millis;
+    count++;
+    totalMillis += millis;
+    maxMillis = Math.max(maxMillis, millis);
+  }
+
+  /**
+   * Returns the given percentile of the recent samples, or 0 if there are no samples.
+   *
+   * @param percentile  a number between 0 and 100
+   */
+  long getPercentile(double percentile) {
+    long[] sorted;
+    synchronized (this) {
+      sorted = Arrays.copyOf(samples, (int) Math.min(count, MAX_SAMPLES));
+    }
+    if (sorted.length == 0) {
+      return 0;
+    }
+    Arrays.sort(sorted);
+    // Nearest rank.
+    int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+  }
+
+  synchronized long getCount() {
+    return count;
+  }
+
+  synchronized long getTotalMillis() {
+    return totalMillis;
+  }
+
+  synchronized long getMaxMillis() {
+    return maxMillis;
+  }
+
+  synchronized long getAverageMillis() {
+    return count == 0 ? 0 : totalMillis / count;
+  }
+}
@@ -83,7 +83,8 @@ public final class Main {
                                          commandLineOptions.outputDir,
                                          commandLineOptions.isForStemCellApp,
                                          commandLineOptions.isForWireless,
-                                         commandLineOptions.childProcessRamMb);
+                                         commandLineOptions.childProcessRamMb,
+                                         new BuildProgress(commandLineOptions.inputZipFile.getName()));
     System.exit(result.getResult());
   }
 
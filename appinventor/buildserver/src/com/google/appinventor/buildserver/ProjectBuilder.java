@@ -8,26 +8,32 @@ package com.google.appinventor.buildserver;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
-import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -35,6 +41,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 
 /**
  * Provides support for building Young Android projects.
@@ -71,6 +78,97 @@ public final class ProjectBuilder {
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
+  private static final String YAIL_GENERATOR_JAR = Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar";
+
+  // The character encoding of the .scm and .blk files, as read by YailGenerator.
+  private static final Charset YAIL_SOURCE_CHARSET = Charset.forName("Cp1252");
+
+  // The pool of in-process YAIL generators, or null if YailGenerator.jar is run for each screen.
+  private static volatile YailGeneratorPool yailGeneratorPool;
+
+  /**
+   * Starts generating YAIL inside this process instead of running YailGenerator.jar.
+   *
+   * @param size  the number of screens that can be generated at the same time
+   */
+  static void startYailGeneratorPool(int size) throws IOException {
+    yailGeneratorPool = new YailGeneratorPool(new File(Compiler.getResource(YAIL_GENERATOR_JAR)),
+        size);
+  }
+
+  static YailGeneratorPool getYailGeneratorPool() {
+    return yailGeneratorPool;
+  }
+
+  // Creates the keystores of new users. By default, every key pair is generated on demand.
+  private static volatile KeystorePool keystorePool = new KeystorePool(0, 0);
+
+  /**
+   * Starts keeping key pairs ready for the keystores of new users.
+   *
+   * @param size  the number of key pairs to keep ready
+   * @param lowWaterMark  the pool is filled again when it has fewer key pairs than this
+   */
+  static void startKeystorePool(int size, int lowWaterMark) {
+    keystorePool = new KeystorePool(size, lowWaterMark);
+  }
+
+  static KeystorePool getKeystorePool() {
+    return keystorePool;
+  }
+
+  // The directory in which projects are extracted and built. Pointing it at a tmpfs keeps the
+  // sources and intermediate files of builds in memory.
+  private static volatile File workspaceDir = new File(System.getProperty("java.io.tmpdir"));
+
+  // The maximum total size of the files extracted from a project, or 0 if there is no limit.
+  private static volatile long maxProjectSizeBytes = 0;
+
+  /**
+   * Sets where projects are extracted and built.
+   *
+   * @param dir  the workspace directory
+   * @param maxProjectSize  the maximum total size of the files extracted from a project, in
+   *     bytes, or 0 if there is no limit
+   */
+  static void setWorkspace(File dir, long maxProjectSize) {
+    dir.mkdirs();
+    workspaceDir = dir;
+    maxProjectSizeBytes = maxProjectSize;
+  }
+
+  static File getWorkspace() {
+    return workspaceDir;
+  }
+
+  /**
+   * Thrown when the files of a project don't fit in the workspace quota.
+   */
+  static final class ProjectTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ProjectTooLargeException(long maxSizeBytes) {
+      super("The project is larger than " + maxSizeBytes + " bytes");
+    }
+  }
+
+  // Unsigned companion APKs. If null, the companion is compiled on every build.
+  private static volatile CompanionApkCache companionApkCache;
+
+  /**
+   * Enables the cache of unsigned companion APKs for all subsequent builds.
+   *
+   * @param cacheDir  the directory containing the cached APKs
+   * @param maxSizeBytes  the maximum total size of the cached APKs
+   */
+  static void setCompanionApkCacheDirectory(File cacheDir, long maxSizeBytes) {
+    companionApkCache = new CompanionApkCache(cacheDir, maxSizeBytes);
+  }
+
+  static CompanionApkCache getCompanionApkCache() {
+    return companionApkCache;
+  }
+
   public File getOutputApk() {
     return outputApk;
   }
@@ -80,10 +178,10 @@ public final class ProjectBuilder {
   }
 
   /**
-   * Creates a new directory beneath the system's temporary directory (as
-   * defined by the {@code java.io.tmpdir} system property), and returns its
-   * name. The name of the directory will contain the current time (in millis),
-   * and a random number.
+   * Creates a new directory beneath the workspace directory (by default, the
+   * system's temporary directory, as defined by the {@code java.io.tmpdir}
+   * system property), and returns its name. The name of the directory will
+   * contain the current time (in millis), and a random number.
    *
    * <p>This method assumes that the temporary volume is writable, has free
    * inodes and free blocks, and that it will not be called thousands of times
@@ -93,7 +191,7 @@ public final class ProjectBuilder {
    * @throws IllegalStateException if the directory could not be created
    */
   private static File createNewTempDir() {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File baseDir = workspaceDir;
     String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
 
     final int TEMP_DIR_ATTEMPTS = 10000;
@@ -112,37 +210,57 @@ public final class ProjectBuilder {
   }
 
     Result build(String userName, ZipFile inputZip, File outputDir, boolean isForRepl, boolean isForWireless,
-               int childProcessRam) {
+               int childProcessRam, BuildProgress progress) {
     try {
       // Download project files into a temporary directory
       File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
+        progress.stageStarted("Extract");
         try {
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
+        } catch (ProjectTooLargeException e) {
+          LOG.warning(e.getMessage());
+          progress.stageFinished("Extract", false);
+          return Result.createFailingResult("", "The project is too large to build.");
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
+          progress.stageFinished("Extract", false);
           return Result.createFailingResult("", "Problems processing zip file.");
         }
+        progress.stageFinished("Extract", true);
+
+        String companionApkKey = null;
+        CompanionApkCache companionCache = companionApkCache;
+        if ((isForRepl || isForWireless) && companionCache != null) {
+          companionApkKey = CompanionApkCache.computeKey(inputZip, KEYSTORE_FILE_NAME, isForRepl,
+              isForWireless, BuildResultCache.getBuildServerFingerprint());
+          if (signCachedCompanion(companionCache, companionApkKey, userName, projectRoot,
+              outputDir)) {
+            return new Result(true, "", "");
+          }
+        }
 
+        progress.stageStarted("YAIL");
         try {
+          long yailStart = System.currentTimeMillis();
           genYailFilesIfNecessary(sourceFiles);
+          BuildStageTimes.record(BuildStageTimes.Stage.YAIL, yailStart);
         } catch (YailGenerationException e) {
+          progress.stageFinished("YAIL", false);
           // Note that we're using a special result code here for the case of a Yail gen error.
           return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
         } catch (Exception e) {
           LOG.severe("Unknown exception signalled by genYailFilesIf Necessary");
           e.printStackTrace();
+          progress.stageFinished("YAIL", false);
           return Result.createFailingResult("", "Unexpected problems generating YAIL.");
         }
+        progress.stageFinished("YAIL", true);
 
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
-        String keyStorePath = keyStoreFile.getPath();
-        if (!keyStoreFile.exists()) {
-          keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
-          saveKeystore = true;
-        }
+        String keyStorePath = getKeyStorePath(userName, projectRoot);
 
         // Create project object from project properties file.
         Project project = getProjectProperties(projectRoot);
@@ -150,9 +268,11 @@ public final class ProjectBuilder {
         File buildTmpDir = new File(projectRoot, "build/tmp");
         buildTmpDir.mkdirs();
 
-        // Prepare for redirection of compiler message output
+        // Prepare for redirection of compiler message output. The messages are also recorded in
+        // the build's progress as they are written.
         ByteArrayOutputStream output = new ByteArrayOutputStream();
-        PrintStream console = new PrintStream(output);
+        PrintStream console =
+            new PrintStream(new TeeOutputStream(output, progress.newOutputStream()));
         ByteArrayOutputStream errors = new ByteArrayOutputStream();
         PrintStream userErrors = new PrintStream(errors);
 
@@ -162,7 +282,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForRepl, isForWireless,
-                             keyStorePath, childProcessRam);
+                             keyStorePath, childProcessRam, progress);
         console.close();
         userErrors.close();
 
@@ -178,11 +298,21 @@ public final class ProjectBuilder {
           if (!outputFile.exists()) {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
+            if (companionApkKey != null) {
+              // The cache only saves time for later builds, so this build succeeds even if the
+              // APK can't be cached.
+              try {
+                companionCache.putUnsigned(companionApkKey, outputFile, buildTmpDir);
+              } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to cache the companion", e);
+              }
+            }
+            // The project root is deleted below, so its files are moved rather than copied.
             outputApk = new File(outputDir, outputFile.getName());
-            Files.copy(outputFile, outputApk);
+            Files.move(outputFile, outputApk);
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
-              Files.copy(keyStoreFile, outputKeystore);
+              Files.move(keyStoreFile, outputKeystore);
             }
           }
         }
@@ -201,6 +331,49 @@ public final class ProjectBuilder {
     }
   }
 
+  /*
+   * Returns the path of the project's keystore, creating a keystore for the user if the project
+   * doesn't have one.
+   */
+  private String getKeyStorePath(String userName, File projectRoot) throws IOException {
+    File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
+    if (keyStoreFile.exists()) {
+      return keyStoreFile.getPath();
+    }
+    saveKeystore = true;
+    return createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
+  }
+
+  /*
+   * Signs the companion built earlier from the same sources with the user's keystore, instead of
+   * compiling it again.
+   *
+   * @return  {@code true} if the companion was in the cache, {@code false} otherwise
+   */
+  private boolean signCachedCompanion(CompanionApkCache companionCache, String companionApkKey,
+      String userName, File projectRoot, File outputDir) throws IOException {
+    File keyStoreFile = new File(getKeyStorePath(userName, projectRoot));
+    String projectName = getProjectProperties(projectRoot).getProjectName();
+    File apk = new File(outputDir, projectName + ".apk");
+    try {
+      if (!companionCache.getSigned(companionApkKey, keyStoreFile, apk, projectRoot)) {
+        return false;
+      }
+    } catch (IOException e) {
+      // Build the companion instead.
+      LOG.log(Level.WARNING, "Unable to sign the cached companion", e);
+      apk.delete();
+      return false;
+    }
+    LOG.info("Signed the cached companion for " + projectName);
+    outputApk = apk;
+    if (saveKeystore) {
+      outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
+      Files.copy(keyStoreFile, outputKeystore);
+    }
+    return true;
+  }
+
   private void genYailFilesIfNecessary(List<String> sourceFiles)
       throws IOException, YailGenerationException {
     // Filter out the files that aren't really source files (i.e. that don't end in .scm or .yail)
@@ -212,6 +385,7 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    List<String> rootPaths = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
@@ -220,10 +394,19 @@ public final class ProjectBuilder {
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          rootPaths.add(rootPath);
         }
       }
     }
+
+    YailGeneratorPool pool = yailGeneratorPool;
+    if (pool == null) {
+      for (String rootPath : rootPaths) {
+        generateYail(rootPath);
+      }
+    } else {
+      generateYail(pool, rootPaths);
+    }
   }
 
   private static Set<String> getAllComponentTypes() throws IOException {
@@ -236,23 +419,38 @@ public final class ProjectBuilder {
     return compSet;
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
+  @VisibleForTesting
+  static ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
       throws IOException {
+    long maxSizeBytes = maxProjectSizeBytes;
+    long remainingBytes = maxSizeBytes;
     ArrayList<String> projectFileNames = Lists.newArrayList();
     Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
     while (inputZipEnumeration.hasMoreElements()) {
       ZipEntry zipEntry = inputZipEnumeration.nextElement();
-      final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
       File extractedFile = new File(projectRoot, zipEntry.getName());
       LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
       Files.createParentDirs(extractedFile); // Do I need this?
-      Files.copy(
-          new InputSupplier<InputStream>() {
-            public InputStream getInput() throws IOException {
-              return extractedInputStream;
-            }
-          },
-          extractedFile);
+      InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
+      try {
+        OutputStream extractedOutputStream = new FileOutputStream(extractedFile);
+        try {
+          if (maxSizeBytes > 0) {
+            // Read at most one byte more than the quota allows, to find out if it is exceeded.
+            remainingBytes -= ByteStreams.copy(
+                ByteStreams.limit(extractedInputStream, remainingBytes + 1), extractedOutputStream);
+          } else {
+            ByteStreams.copy(extractedInputStream, extractedOutputStream);
+          }
+        } finally {
+          extractedOutputStream.close();
+        }
+      } finally {
+        extractedInputStream.close();
+      }
+      if (remainingBytes < 0) {
+        throw new ProjectTooLargeException(maxSizeBytes);
+      }
       projectFileNames.add(extractedFile.getPath());
     }
     return projectFileNames;
@@ -274,31 +472,8 @@ public final class ProjectBuilder {
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
-
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
-    }
-    return null;
+    keystorePool.createKeystore(userName, keyStoreFile);
+    return keyStoreFile.getAbsolutePath();
   }
 
   @VisibleForTesting
@@ -385,26 +560,6 @@ public final class ProjectBuilder {
     return messages;
   }
 
-  /*
-   * Adds quotes around the given userName and encodes embedded quotes as \".
-   */
-  private static String quotifyUserName(String userName) {
-    Preconditions.checkNotNull(userName);
-    int length = userName.length();
-    StringBuilder sb = new StringBuilder(length + 2);
-    sb.append('"');
-    for (int i = 0; i < length; i++) {
-      char ch = userName.charAt(i);
-      if (ch == '"') {
-        sb.append('\\').append(ch);
-      } else {
-        sb.append(ch);
-      }
-    }
-    sb.append('"');
-    return sb.toString();
-  }
-
   /*
    * Loads the project properties file of a Young Android project.
    */
@@ -452,6 +607,51 @@ public final class ProjectBuilder {
     }
   }
 
+  /*
+   * Generates the YAIL for the given screens in parallel, using the in-process generators.
+   */
+  private void generateYail(YailGeneratorPool pool, List<String> rootPaths)
+      throws IOException, YailGenerationException {
+    Map<String, Future<String>> futures = Maps.newLinkedHashMap();
+    try {
+      for (String rootPath : rootPaths) {
+        String formPropertiesSource = Files.toString(
+            new File(rootPath + FORM_PROPERTIES_EXTENSION), YAIL_SOURCE_CHARSET);
+        String codeblocksSource = Files.toString(
+            new File(rootPath + CODEBLOCKS_SOURCE_EXTENSION), YAIL_SOURCE_CHARSET);
+        String yailPath = rootPath + YAIL_EXTENSION;
+        futures.put(rootPath, pool.submit(formPropertiesSource, codeblocksSource, yailPath));
+      }
+
+      for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+        String rootPath = entry.getKey();
+        String formName = PathUtil.basename(rootPath);
+        String generatedYailString;
+        try {
+          generatedYailString = entry.getValue().get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof YailGeneratorPool.GenerationException) {
+            // Failed to generate yail for legitimate reasons, such as empty sockets.
+            throw new YailGenerationException("Unable to generate code for " + formName + "."
+                + "\n -- err is " + cause.getMessage(),
+                formName);
+          }
+          throw new RuntimeException("YailGenerator for form " + formName + " failed", cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while generating YAIL for form " + formName);
+        }
+        Files.write(generatedYailString, new File(rootPath + YAIL_EXTENSION), Charsets.UTF_8);
+      }
+    } finally {
+      // If a screen failed, don't bother generating the ones that haven't started yet.
+      for (Future<String> future : futures.values()) {
+        future.cancel(false);
+      }
+    }
+  }
+
   private static class YailGenerationException extends Exception {
     // The name of the form being built when an error occurred
     private final String formName;
@@ -468,8 +668,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
@@ -0,0 +1,168 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A directory of the resources (runtime jars, sdk tools, component libraries and assets) that
+ * the build server extracts from its jar so that builds can use them as files.
+ *
+ * <p>Each resource is extracted beneath a subdirectory named by its checksum, so the files
+ * extracted by an earlier build server are reused as long as the resource hasn't changed.
+ * Extracted files are read-only, and a file is only replaced by another extraction of the same
+ * resource, with the same checksum and so the same contents. Looking a resource up therefore
+ * doesn't need a lock once it has been extracted.
+ */
+final class ResourceDirectory {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResourceDirectory.class.getName());
+
+  private final File dir;
+  private final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>();
+
+  private volatile boolean ready = true;
+  private volatile long prewarmMillis;
+  private final AtomicInteger extractedCount = new AtomicInteger(0);
+  private final AtomicInteger reusedCount = new AtomicInteger(0);
+
+  /**
+   * Creates a ResourceDirectory, reusing any resources already extracted to the directory.
+   *
+   * @param dir  the directory containing the extracted resources
+   */
+  ResourceDirectory(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Returns the file of the given resource, extracting the resource first if needed.
+   *
+   * @param resourcePath  the absolute path of the resource, e.g. "/files/android.jar"
+   */
+  File get(String resourcePath) throws IOException {
+    File file = files.get(resourcePath);
+    if (file == null) {
+      // Two builds may extract the same resource at the same time. They write it to different
+      // temporary files, and whichever renames its file first wins.
+      file = extract(resourcePath);
+      files.put(resourcePath, file);
+    }
+    return file;
+  }
+
+  /**
+   * Starts extracting the given resources in the background. The directory isn't ready until they
+   * have all been extracted. Resources that can't be extracted are logged, and extracted again by
+   * the first build that needs them.
+   *
+   * @param resourcePaths  the absolute paths of the resources
+   */
+  void startPrewarming(final Collection<String> resourcePaths) {
+    ready = false;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.currentTimeMillis();
+        try {
+          for (String resourcePath : resourcePaths) {
+            try {
+              get(resourcePath);
+            } catch (IOException e) {
+              LOG.log(Level.WARNING, "Unable to extract " + resourcePath, e);
+            }
+          }
+        } finally {
+          prewarmMillis = System.currentTimeMillis() - start;
+          ready = true;
+          LOG.info("Extracted " + extractedCount.get() + " and reused " + reusedCount.get() +
+              " resources in " + dir.getAbsolutePath() + " in " + prewarmMillis + " ms");
+        }
+      }
+    }, "ResourceDirectory-prewarm");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private File extract(String resourcePath) throws IOException {
+    URL url = ResourceDirectory.class.getResource(resourcePath);
+    if (url == null) {
+      throw new FileNotFoundException("Resource " + resourcePath + " not found");
+    }
+    File file = new File(new File(dir, checksum(url)), resourcePath);
+    if (file.exists()) {
+      reusedCount.incrementAndGet();
+      return file;
+    }
+
+    Files.createParentDirs(file);
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      Files.copy(Resources.newInputStreamSupplier(url), tmpFile);
+      tmpFile.setExecutable(true);
+      tmpFile.setReadOnly();
+      if (!tmpFile.renameTo(file) && !file.exists()) {
+        throw new IOException("Unable to rename " + tmpFile + " to " + file);
+      }
+    } finally {
+      tmpFile.delete();
+    }
+    extractedCount.incrementAndGet();
+    return file;
+  }
+
+  /*
+   * Returns the checksum of the resource. The CRC and size recorded in the jar are used when the
+   * resource is in a jar, so that it doesn't have to be read.
+   */
+  private static String checksum(URL url) throws IOException {
+    URLConnection connection = url.openConnection();
+    if (connection instanceof JarURLConnection) {
+      JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+      if (entry != null && entry.getCrc() != -1 && entry.getSize() != -1) {
+        return Long.toHexString(entry.getCrc()) + "-" + Long.toHexString(entry.getSize());
+      }
+    }
+    return ByteStreams.hash(Resources.newInputStreamSupplier(url), Hashing.sha1()).toString();
+  }
+
+  File getDirectory() {
+    return dir;
+  }
+
+  boolean isReady() {
+    return ready;
+  }
+
+  long getPrewarmMillis() {
+    return prewarmMillis;
+  }
+
+  int getExtractedCount() {
+    return extractedCount.get();
+  }
+
+  int getReusedCount() {
+    return reusedCount.get();
+  }
+}
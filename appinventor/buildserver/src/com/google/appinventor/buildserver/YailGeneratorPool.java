@@ -0,0 +1,252 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of YAIL generators that run inside the build server process.
+ *
+ * <p>Launching {@code java -jar YailGenerator.jar} for each screen of a project starts a new JVM
+ * and loads the blocks language definition every time. The pool instead loads YailGenerator.jar
+ * into the build server and keeps the loaded generators for later builds.
+ *
+ * <p>The codeblocks classes keep the workspace, the blocks and the compile errors in static
+ * fields, so a generator can only do one job at a time. Each worker thread therefore loads the
+ * jar with its own class loader, which gives it its own copy of those fields, and the screens of a
+ * project can be generated in parallel on different workers. A worker's class loader is replaced
+ * after {@link #MAX_JOBS_PER_GENERATOR} jobs, so that state left behind by the codeblocks classes
+ * can't grow without bound.
+ *
+ * <p>The codeblocks classes print to System.out and System.err, which YailGenerator's main method
+ * redirected when it ran in its own process. The pool replaces System.out and System.err with
+ * streams that keep what a worker prints with its job. The output is logged if the generator
+ * crashes, and dropped otherwise.
+ */
+final class YailGeneratorPool {
+  /**
+   * Thrown when the YAIL can't be generated because of a problem in the blocks, such as an empty
+   * socket.
+   */
+  static final class GenerationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    GenerationException(String message) {
+      super(message);
+    }
+  }
+
+  private static final String YAIL_GENERATOR_CLASS =
+      "com.google.appinventor.yailgenerator.YailGenerator";
+  private static final String YAIL_GENERATION_EXCEPTION_CLASS =
+      "openblocks.yacodeblocks.YailGenerationException";
+
+  private static final int MAX_JOBS_PER_GENERATOR = 100;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(YailGeneratorPool.class.getName());
+
+  private final URL yailGeneratorJar;
+  private final ExecutorService executor;
+  private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>();
+
+  private final AtomicInteger loadedGenerators = new AtomicInteger(0);
+  private final AtomicInteger completedJobs = new AtomicInteger(0);
+
+  // What the generator of the job running on each worker prints to System.out and System.err.
+  private static final ThreadLocal<ByteArrayOutputStream> jobOutput =
+      new ThreadLocal<ByteArrayOutputStream>();
+
+  /*
+   * Stands in for System.out or System.err. What a worker prints to it is kept with its job, and
+   * everything else goes to the stream it replaced.
+   */
+  private static final class JobPrintStream extends PrintStream {
+    JobPrintStream(final PrintStream replaced) {
+      super(new OutputStream() {
+        @Override
+        public void write(int b) {
+          ByteArrayOutputStream output = jobOutput.get();
+          if (output != null) {
+            output.write(b);
+          } else {
+            replaced.write(b);
+          }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          ByteArrayOutputStream output = jobOutput.get();
+          if (output != null) {
+            output.write(b, off, len);
+          } else {
+            replaced.write(b, off, len);
+          }
+        }
+
+        @Override
+        public void flush() {
+          if (jobOutput.get() == null) {
+            replaced.flush();
+          }
+        }
+      }, true);
+    }
+  }
+
+  /*
+   * A YailGenerator class loaded by its own class loader.
+   */
+  private class Generator {
+    private final URLClassLoader classLoader;
+    private final Method generateYail;
+    private int jobs;
+
+    Generator() throws IOException {
+      // The parent is the parent of the system class loader, so that the generator's classes,
+      // including its copies of Guava and the JSON library, all come from YailGenerator.jar.
+      classLoader = new URLClassLoader(new URL[] { yailGeneratorJar },
+          ClassLoader.getSystemClassLoader().getParent());
+      try {
+        generateYail = classLoader.loadClass(YAIL_GENERATOR_CLASS).getMethod("generateYail",
+            String.class, String.class, String.class);
+      } catch (ReflectiveOperationException e) {
+        classLoader.close();
+        throw new IOException("Unable to load " + YAIL_GENERATOR_CLASS + " from " +
+            yailGeneratorJar, e);
+      }
+      loadedGenerators.incrementAndGet();
+    }
+
+    String generateYail(String formPropertiesSource, String codeblocksSource, String yailPath)
+        throws GenerationException {
+      jobs++;
+      Thread thread = Thread.currentThread();
+      ClassLoader savedContextClassLoader = thread.getContextClassLoader();
+      thread.setContextClassLoader(classLoader);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      jobOutput.set(output);
+      try {
+        return (String) generateYail.invoke(null, formPropertiesSource, codeblocksSource,
+            yailPath);
+      } catch (InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause.getClass().getName().equals(YAIL_GENERATION_EXCEPTION_CLASS)) {
+          throw new GenerationException(cause.getMessage());
+        }
+        LOG.warning("YailGenerator output for " + yailPath + ":\n" + output.toString());
+        throw new RuntimeException("YailGenerator failed", cause);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      } finally {
+        jobOutput.remove();
+        thread.setContextClassLoader(savedContextClassLoader);
+      }
+    }
+
+    void close() {
+      try {
+        classLoader.close();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to close YailGenerator class loader", e);
+      }
+    }
+  }
+
+  /**
+   * Creates a YailGeneratorPool.
+   *
+   * @param yailGeneratorJar  YailGenerator.jar, which contains the generator and everything it
+   *     needs
+   * @param size  the number of screens that can be generated at the same time
+   * @throws IOException  if the generator can't be loaded from the jar
+   */
+  YailGeneratorPool(File yailGeneratorJar, int size) throws IOException {
+    this.yailGeneratorJar = yailGeneratorJar.toURI().toURL();
+    redirectSystemStreams();
+    // Load the generator once here, so that a bad jar is noticed now rather than by every build.
+    new Generator().close();
+    loadedGenerators.set(0);
+    executor = Executors.newFixedThreadPool(size,
+        new ThreadFactoryBuilder().setNameFormat("YailGenerator-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Generates the YAIL for a screen on one of the pool's workers.
+   *
+   * <p>The returned future throws an {@link java.util.concurrent.ExecutionException} whose cause
+   * is a {@link GenerationException} if the blocks can't be turned into YAIL.
+   *
+   * @param formPropertiesSource  the contents of the screen's .scm file
+   * @param codeblocksSource  the contents of the screen's .blk file
+   * @param yailPath  the path of the .yail file
+   * @return  the generated YAIL
+   */
+  Future<String> submit(final String formPropertiesSource, final String codeblocksSource,
+      final String yailPath) {
+    return executor.submit(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        Generator generator = generators.get();
+        if (generator == null || generator.jobs >= MAX_JOBS_PER_GENERATOR) {
+          if (generator != null) {
+            generator.close();
+          }
+          generator = new Generator();
+          generators.set(generator);
+        }
+        try {
+          return generator.generateYail(formPropertiesSource, codeblocksSource, yailPath);
+        } catch (RuntimeException e) {
+          // The generator may have been left in a bad state. Load a new one for the next job.
+          generator.close();
+          generators.remove();
+          throw e;
+        } finally {
+          completedJobs.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  /*
+   * Replaces System.out and System.err with streams that keep the output of the workers, unless
+   * another pool has already done so.
+   */
+  private static synchronized void redirectSystemStreams() {
+    if (!(System.out instanceof JobPrintStream)) {
+      System.setOut(new JobPrintStream(System.out));
+    }
+    if (!(System.err instanceof JobPrintStream)) {
+      System.setErr(new JobPrintStream(System.err));
+    }
+  }
+
+  int getLoadedGeneratorCount() {
+    return loadedGenerators.get();
+  }
+
+  int getCompletedJobCount() {
+    return completedJobs.get();
+  }
+}
@@ -0,0 +1,199 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests ApkWriter class.
+ *
+ */
+public class ApkWriterTest extends TestCase {
+  private File tempDir;
+  private KeyPair keyPair;
+  private X509Certificate certificate;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    keyPair = generator.generateKeyPair();
+    X500Name name = new X500Name("CN=Test, O=AppInventor for Android, C=US");
+    X509CertificateHolder holder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+        new Date(), new Date(System.currentTimeMillis() + 86400000L), name,
+        keyPair.getPublic()).build(
+        new JcaContentSignerBuilder("SHA1withRSA").build(keyPair.getPrivate()));
+    certificate = new JcaX509CertificateConverter().getCertificate(holder);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testUncompressedEntriesAreAligned() throws Exception {
+    File apk = writeApk();
+    ZipFile zipFile = new ZipFile(apk);
+    RandomAccessFile file = new RandomAccessFile(apk, "r");
+    try {
+      int stored = 0;
+      long offset = 0;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        // Walk the local headers in order, checking where each entry's data starts.
+        file.seek(offset + 26);
+        int nameLength = Short.reverseBytes(file.readShort()) & 0xffff;
+        int extraLength = Short.reverseBytes(file.readShort()) & 0xffff;
+        long dataOffset = offset + 30 + nameLength + extraLength;
+        if (entry.getMethod() == ZipEntry.STORED) {
+          assertEquals(entry.getName(), 0, dataOffset % ApkWriter.ALIGNMENT);
+          stored++;
+        }
+        offset = dataOffset + entry.getCompressedSize();
+        if ((entry.getMethod() == ZipEntry.DEFLATED)) {
+          offset += 16;  // data descriptor
+        }
+      }
+      assertEquals(3, stored);
+    } finally {
+      file.close();
+      zipFile.close();
+    }
+  }
+
+  public void testApkIsSigned() throws Exception {
+    ZipFile zipFile = new ZipFile(writeApk());
+    try {
+      assertNull(zipFile.getEntry("META-INF/OLD.SF"));
+      byte[] manifestBytes = read(zipFile, "META-INF/MANIFEST.MF");
+      byte[] signatureBytes = read(zipFile, "META-INF/CERT.SF");
+
+      // The signature block signs the signature file with the key.
+      CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(signatureBytes),
+          read(zipFile, "META-INF/CERT.RSA"));
+      SignerInformation signer =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+
+      // The signature file has the digest of the manifest.
+      Manifest signature = new Manifest(new ByteArrayInputStream(signatureBytes));
+      assertEquals(sha1(manifestBytes),
+          signature.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+
+      // The manifest has the digest of each entry.
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      int signedEntries = 0;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        String name = entries.nextElement().getName();
+        if (!name.startsWith("META-INF/")) {
+          Attributes attributes = manifest.getAttributes(name);
+          assertNotNull(name, attributes);
+          assertEquals(sha1(read(zipFile, name)), attributes.getValue("SHA1-Digest"));
+          assertNotNull(signature.getAttributes(name));
+          signedEntries++;
+        }
+      }
+      assertEquals(5, signedEntries);
+      assertEquals(signedEntries, manifest.getEntries().size());
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private File writeApk() throws Exception {
+    File resources = new File(tempDir, "resources.ap_");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(resources));
+    try {
+      addEntry(out, "AndroidManifest.xml", "manifest", ZipEntry.DEFLATED);
+      addEntry(out, "res/drawable/ya.png", "png", ZipEntry.STORED);
+      addEntry(out, "resources.arsc", "arsc", ZipEntry.STORED);
+      addEntry(out, "assets/a-name-that-is-long-enough-to-be-continued-on-a-second-line-of-the-"
+          + "manifest.txt", "asset", ZipEntry.STORED);
+      addEntry(out, "META-INF/OLD.SF", "old signature", ZipEntry.DEFLATED);
+    } finally {
+      out.close();
+    }
+    File dex = new File(tempDir, "classes.dex");
+    Files.write("dex", dex, Charsets.UTF_8);
+
+    File apk = new File(tempDir, "test.apk");
+    ApkWriter writer = new ApkWriter(apk, keyPair.getPrivate(), certificate);
+    try {
+      writer.addZipFile(resources);
+      writer.addFile(dex, "classes.dex");
+    } finally {
+      writer.close();
+    }
+    return apk;
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, String contents, int method)
+      throws Exception {
+    byte[] bytes = contents.getBytes(Charsets.UTF_8);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      entry.setSize(bytes.length);
+      entry.setCrc(crc.getValue());
+    }
+    out.putNextEntry(entry);
+    out.write(bytes);
+    out.closeEntry();
+  }
+
+  private static byte[] read(ZipFile zipFile, String name) throws Exception {
+    InputStream in = zipFile.getInputStream(zipFile.getEntry(name));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String sha1(byte[] bytes) throws Exception {
+    return new String(Base64.encode(MessageDigest.getInstance("SHA1").digest(bytes)),
+        Charsets.US_ASCII);
+  }
+}
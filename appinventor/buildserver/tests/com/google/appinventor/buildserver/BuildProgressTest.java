@@ -0,0 +1,119 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests BuildProgress class.
+ *
+ */
+public class BuildProgressTest extends TestCase {
+  public void testEventsAfterSequenceNumber() throws Exception {
+    BuildProgress progress = new BuildProgress("build");
+    progress.stageStarted("Compile");
+    progress.setPercent(35);
+
+    JSONObject state = progress.await(-1, 0);
+    assertEquals("build", state.getString("buildId"));
+    assertEquals(35, state.getInt("percent"));
+    assertEquals("Compile", state.getJSONArray("stages").getString(0));
+    assertFalse(state.getBoolean("done"));
+    assertEquals(1, state.getLong("last"));
+    JSONArray events = state.getJSONArray("events");
+    assertEquals(2, events.length());
+    assertEquals("stage-started", events.getJSONObject(0).getString("type"));
+    assertEquals("Compile", events.getJSONObject(0).getString("stage"));
+    assertEquals(35, events.getJSONObject(1).getInt("percent"));
+
+    progress.stageFinished("Compile", true);
+    progress.finish(Result.SUCCESS);
+    state = progress.await(1, 0);
+    assertEquals(0, state.getJSONArray("stages").length());
+    assertTrue(state.getBoolean("done"));
+    assertEquals(Result.SUCCESS, state.getInt("result"));
+    assertEquals(2, state.getJSONArray("events").length());
+    assertFalse(state.getBoolean("missed"));
+  }
+
+  public void testPercentNeverGoesDown() throws Exception {
+    BuildProgress progress = new BuildProgress("build");
+    progress.setPercent(35);
+    progress.setPercent(20);
+    progress.setPercent(35);
+
+    JSONObject state = progress.await(-1, 0);
+    assertEquals(35, state.getInt("percent"));
+    assertEquals(1, state.getJSONArray("events").length());
+  }
+
+  public void testAwaitWaitsForNextEvent() throws Exception {
+    final BuildProgress progress = new BuildProgress("build");
+    progress.setPercent(10);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // Set the progress now.
+        }
+        progress.setPercent(20);
+      }
+    }.start();
+
+    JSONObject state = progress.await(0, 60000);
+    assertEquals(20, state.getInt("percent"));
+    assertEquals(1, state.getJSONArray("events").length());
+
+    long start = System.currentTimeMillis();
+    assertEquals(0, progress.await(1, 100).getJSONArray("events").length());
+    assertTrue(System.currentTimeMillis() - start >= 100);
+  }
+
+  public void testOutputLines() throws Exception {
+    BuildProgress progress = new BuildProgress("build");
+    OutputStream out = progress.newOutputStream();
+    PrintStream console = new PrintStream(out);
+    console.print("________Compiling source files\r\nScreen1");
+    console.flush();
+    assertEquals(1, progress.await(-1, 0).getJSONArray("events").length());
+    console.close();
+
+    JSONArray events = progress.await(-1, 0).getJSONArray("events");
+    assertEquals(2, events.length());
+    assertEquals("output", events.getJSONObject(0).getString("type"));
+    assertEquals("________Compiling source files", events.getJSONObject(0).getString("text"));
+    assertEquals("Screen1", events.getJSONObject(1).getString("text"));
+  }
+
+  public void testOldEventsAreDropped() throws Exception {
+    BuildProgress progress = new BuildProgress("build");
+    for (int i = 0; i < 2000; i++) {
+      progress.output(new String(new byte[] { 'a' }, Charsets.UTF_8));
+    }
+    JSONObject state = progress.await(-1, 0);
+    assertTrue(state.getBoolean("missed"));
+    assertEquals(1999, state.getLong("last"));
+    assertTrue(state.getJSONArray("events").length() < 2000);
+    assertFalse(progress.await(1998, 0).getBoolean("missed"));
+  }
+
+  public void testRegistry() throws Exception {
+    BuildProgress first = BuildProgress.start("registered-build");
+    assertSame(first, BuildProgress.get("registered-build"));
+    BuildProgress second = BuildProgress.start("registered-build");
+    assertSame(second, BuildProgress.get("registered-build"));
+    assertNull(BuildProgress.get("unknown-build"));
+  }
+}
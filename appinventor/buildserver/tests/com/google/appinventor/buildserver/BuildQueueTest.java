@@ -0,0 +1,182 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildQueue class.
+ *
+ */
+public class BuildQueueTest extends TestCase {
+  public void testAdditionalTaskIsRejectedWithoutQueue() throws Exception {
+    // Create the BuildQueue with capacity 10 and no room to wait.
+    int maxCapacity = 10;
+    BuildQueue executor = new BuildQueue(maxCapacity, 0, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I release them.
+    CountDownLatch signal = new CountDownLatch(1);
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatRecords("extra", null, null));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    signal.countDown();
+  }
+
+  public void testTasksWaitUntilQueueIsFull() throws Exception {
+    BuildQueue executor = new BuildQueue(1, 2, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    assertEquals(0, executor.submit("a", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatWaitsForSignal(signal), null));
+
+    List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+    CountDownLatch done = new CountDownLatch(2);
+    assertTrue(executor.submit("b", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("b", order, done), null) > 0);
+    executor.submit("c", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("c", order, done), null);
+    assertEquals(2, executor.getQueuedTaskCount());
+    try {
+      executor.submit("d", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("d", order, done), null);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Lists.newArrayList("b", "c"), order);
+    assertEquals(0, executor.getQueuedTaskCount());
+    assertEquals(3, executor.getWaitTimes().getCount());
+  }
+
+  public void testHigherPriorityTaskRunsFirst() throws Exception {
+    BuildQueue executor = new BuildQueue(1, 10, 0);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal));
+
+    List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+    CountDownLatch done = new CountDownLatch(3);
+    executor.submit("batch", BuildQueue.Priority.BATCH,
+        new TaskThatRecords("batch", order, done), null);
+    executor.submit("interactive", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("interactive", order, done), null);
+    executor.submit("companion", BuildQueue.Priority.COMPANION,
+        new TaskThatRecords("companion", order, done), null);
+
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Lists.newArrayList("companion", "interactive", "batch"), order);
+  }
+
+  public void testUserWithFewerRunningTasksGoesFirst() throws Exception {
+    BuildQueue executor = new BuildQueue(2, 10, 0);
+    CountDownLatch busySignal = new CountDownLatch(1);
+    CountDownLatch signal = new CountDownLatch(1);
+    // "busy" keeps one of the two slots for the whole test.
+    executor.submit("busy", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatWaitsForSignal(busySignal), null);
+    executor.submit("other", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatWaitsForSignal(signal), null);
+
+    List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+    CountDownLatch done = new CountDownLatch(2);
+    executor.submit("busy", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("busy", order, done), null);
+    executor.submit("fresh", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("fresh", order, done), null);
+
+    // When "other" finishes, "fresh" runs before "busy" even though it asked later.
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Lists.newArrayList("fresh", "busy"), order);
+    busySignal.countDown();
+  }
+
+  public void testTaskIsDroppedAfterDeadline() throws Exception {
+    BuildQueue executor = new BuildQueue(1, 10, 100);
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForSignal(signal));
+
+    List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+    CountDownLatch expired = new CountDownLatch(1);
+    executor.submit("late", BuildQueue.Priority.INTERACTIVE,
+        new TaskThatRecords("late", order, null), new TaskThatRecords("expired", order, expired));
+    assertTrue(expired.await(10, TimeUnit.SECONDS));
+    assertEquals(Lists.newArrayList("expired"), order);
+    assertEquals(0, executor.getQueuedTaskCount());
+    assertEquals(1, executor.getExpiredTaskCount());
+    signal.countDown();
+  }
+
+  public void testWaitTimePercentiles() throws Exception {
+    LatencySamples samples = new LatencySamples();
+    assertEquals(0, samples.getPercentile(50));
+    for (int i = 1; i <= 100; i++) {
+      samples.add(i);
+    }
+    assertEquals(50, samples.getPercentile(50));
+    assertEquals(95, samples.getPercentile(95));
+    assertEquals(100, samples.getPercentile(100));
+    assertEquals(50, samples.getAverageMillis());
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final CountDownLatch signal;
+    private TaskThatWaitsForSignal(CountDownLatch signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      try {
+        // Wait for the signal.
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatRecords implements Runnable {
+    private final String name;
+    private final List<String> order;
+    private final CountDownLatch done;
+    private TaskThatRecords(String name, List<String> order, CountDownLatch done) {
+      this.name = name;
+      this.order = order;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      if (order != null) {
+        order.add(name);
+      }
+      if (done != null) {
+        done.countDown();
+      }
+    }
+  }
+}
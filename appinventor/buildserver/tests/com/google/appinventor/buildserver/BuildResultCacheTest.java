@@ -0,0 +1,117 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests BuildResultCache class.
+ *
+ */
+public class BuildResultCacheTest extends TestCase {
+  private static final String KEYSTORE = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testKeyDoesNotDependOnEntryOrder() throws Exception {
+    String key1 = computeKey(createZip("a.zip", "src/Screen1.scm", "scm", KEYSTORE, "key"), "v1");
+    String key2 = computeKey(createZip("b.zip", KEYSTORE, "key", "src/Screen1.scm", "scm"), "v1");
+    assertNotNull(key1);
+    assertEquals(key1, key2);
+  }
+
+  public void testKeyDependsOnContentAndVersion() throws Exception {
+    File zip = createZip("a.zip", "src/Screen1.scm", "scm", KEYSTORE, "key");
+    String key = computeKey(zip, "v1");
+    assertFalse(key.equals(computeKey(zip, "v2")));
+    assertFalse(key.equals(
+        computeKey(createZip("b.zip", "src/Screen1.scm", "scm2", KEYSTORE, "key"), "v1")));
+    assertFalse(key.equals(
+        computeKey(createZip("c.zip", "src/Screen1.scm", "scm", KEYSTORE, "key2"), "v1")));
+  }
+
+  public void testNoKeyWithoutKeystore() throws Exception {
+    assertNull(computeKey(createZip("a.zip", "src/Screen1.scm", "scm"), "v1"));
+  }
+
+  public void testBuildServerFingerprintIsStable() {
+    String fingerprint = BuildResultCache.getBuildServerFingerprint();
+    assertNotNull(fingerprint);
+    assertFalse(fingerprint.equals("none"));
+    assertEquals(fingerprint, BuildResultCache.getBuildServerFingerprint());
+  }
+
+  public void testLeastRecentlyUsedResultIsEvicted() throws Exception {
+    File cacheDir = new File(tempDir, "cache");
+    BuildResultCache cache = new BuildResultCache(cacheDir, 25);
+    cache.put("one", createFile("one", "0123456789"));
+    cache.put("two", createFile("two", "0123456789"));
+    File destination = new File(tempDir, "destination");
+    assertTrue(cache.get("one", destination));
+
+    // Adding a third result exceeds the limit, so "two" is evicted.
+    cache.put("three", createFile("three", "0123456789"));
+    assertEquals(2, cache.getEntryCount());
+    assertTrue(cache.get("one", destination));
+    assertEquals("0123456789", Files.toString(destination, Charsets.UTF_8));
+    assertFalse(cache.get("two", destination));
+    assertTrue(cache.get("three", destination));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // The results survive a restart.
+    cache = new BuildResultCache(cacheDir, 25);
+    assertEquals(2, cache.getEntryCount());
+    assertTrue(cache.get("three", destination));
+  }
+
+  private String computeKey(File zip, String version) throws IOException {
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      return BuildResultCache.computeKey(zipFile, KEYSTORE, version);
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private File createFile(String name, String content) throws IOException {
+    File file = new File(tempDir, name);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private File createZip(String name, String... namesAndContents) throws IOException {
+    File zip = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    for (int i = 0; i < namesAndContents.length; i += 2) {
+      out.putNextEntry(new ZipEntry(namesAndContents[i]));
+      out.write(namesAndContents[i + 1].getBytes(Charsets.UTF_8));
+    }
+    out.close();
+    return zip;
+  }
+}
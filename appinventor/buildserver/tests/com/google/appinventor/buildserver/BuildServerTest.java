@@ -0,0 +1,170 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Tests BuildServer class.
+ *
+ */
+public class BuildServerTest extends TestCase {
+  private File tempDir;
+  private BuildResultCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    cache = new BuildResultCache(new File(tempDir, "cache"), 1024 * 1024);
+    BuildServer.setBuildExecutorAndCache(new BuildQueue(2, 10, 60000), cache);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testBatchServedFromCache() throws Exception {
+    // Only projects with their own keystore are cached.
+    File projectZip = new File(tempDir, "project.aia");
+    writeZip(projectZip, YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION, "keystore");
+    File outputZip = new File(tempDir, "output.zip");
+    writeZip(outputZip, "build.out", "cached output");
+    ZipFile zipFile = new ZipFile(projectZip);
+    try {
+      cache.put(BuildResultCache.computeKey(zipFile,
+          YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION,
+          BuildResultCache.getBuildServerFingerprint()), outputZip);
+    } finally {
+      zipFile.close();
+    }
+
+    File batchZip = new File(tempDir, "batch.zip");
+    ZipOutputStream batch = new ZipOutputStream(new FileOutputStream(batchZip));
+    try {
+      batch.putNextEntry(new ZipEntry("project.aia"));
+      Files.copy(projectZip, batch);
+      batch.closeEntry();
+    } finally {
+      batch.close();
+    }
+
+    Response response = new BuildServer().buildBatchFromZipFile("user", null, batchZip);
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(out);
+
+    Map<String, byte[]> entries = readZip(out.toByteArray());
+    assertTrue(Arrays.equals(Files.toByteArray(outputZip),
+        entries.get("project.aia.zip")));
+    JSONObject summary = new JSONObject(new String(entries.get("summary.json"), Charsets.UTF_8));
+    assertEquals(1, summary.getInt("succeeded"));
+    assertEquals(0, summary.getInt("failed"));
+    JSONObject projectSummary = summary.getJSONArray("projects").getJSONObject(0);
+    assertEquals("project.aia", projectSummary.getString("name"));
+    assertEquals(Result.SUCCESS, projectSummary.getInt("result"));
+    assertTrue(projectSummary.getBoolean("cached"));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  public void testOnlySomeProgressRequestsWait() throws Exception {
+    final BuildProgress progress = BuildProgress.start("waited-for");
+    final BuildServer buildServer = new BuildServer();
+    final CountDownLatch waitersDone = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            buildServer.progress(progress.getBuildId(), -1, 60);
+          } catch (InterruptedException e) {
+            // The test fails below.
+          }
+          waitersDone.countDown();
+        }
+      }.start();
+    }
+    // Wait until both requests are waiting for events.
+    while (progressWaiterCount(progress) < 2) {
+      Thread.sleep(10);
+    }
+
+    // A third request returns right away instead of waiting for a minute.
+    long start = System.currentTimeMillis();
+    Response response = buildServer.progress(progress.getBuildId(), -1, 60);
+    assertTrue(System.currentTimeMillis() - start < 30000);
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+    progress.finish(Result.SUCCESS);
+    assertTrue(waitersDone.await(10, TimeUnit.SECONDS));
+  }
+
+  /*
+   * Returns how many threads are waiting for events of the given build.
+   */
+  private static int progressWaiterCount(BuildProgress progress) {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getState() == Thread.State.TIMED_WAITING) {
+        for (StackTraceElement element : thread.getStackTrace()) {
+          if (element.getClassName().equals(BuildProgress.class.getName())
+              && element.getMethodName().equals("await")) {
+            count++;
+            break;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private static void writeZip(File zip, String entryName, String contents) throws Exception {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      out.putNextEntry(new ZipEntry(entryName));
+      out.write(contents.getBytes(Charsets.UTF_8));
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Map<String, byte[]> readZip(byte[] zip) throws Exception {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+    try {
+      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        entries.put(entry.getName(), ByteStreams.toByteArray(in));
+      }
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,151 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests BuildStageGraph class.
+ *
+ */
+public class BuildStageGraphTest extends TestCase {
+  private static final String ERROR_IN_STAGE = "Error in %s\n";
+
+  private ExecutorService executor;
+  private ByteArrayOutputStream userErrors;
+  private BuildStageGraph stages;
+  private List<String> order;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+    userErrors = new ByteArrayOutputStream();
+    stages = new BuildStageGraph(new PrintStream(userErrors, true), ERROR_IN_STAGE,
+        new BuildProgress("test"));
+    order = Collections.synchronizedList(Lists.<String>newArrayList());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testStageRunsAfterItsDependencies() throws Exception {
+    stages.add("a", new RecordingStage("a", true));
+    stages.add("b", new RecordingStage("b", true), "a");
+    stages.add("c", new RecordingStage("c", true), "b");
+    assertTrue(stages.run(executor));
+    assertEquals(Lists.newArrayList("a", "b", "c"), order);
+  }
+
+  public void testIndependentStagesRunAtTheSameTime() throws Exception {
+    // Each stage waits until the other one has started, so they can only finish if they run at
+    // the same time.
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    Callable<Boolean> stage = new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        bothStarted.countDown();
+        return bothStarted.await(10, TimeUnit.SECONDS);
+      }
+    };
+    stages.add("a", stage);
+    stages.add("b", stage);
+    stages.add("c", new RecordingStage("c", true), "a", "b");
+    assertTrue(stages.run(executor));
+    assertEquals(Lists.newArrayList("c"), order);
+  }
+
+  public void testNoStagesStartAfterFailure() throws Exception {
+    stages.add("a", new RecordingStage("a", false));
+    stages.add("b", new RecordingStage("b", true), "a");
+    assertFalse(stages.run(executor));
+    assertEquals(Lists.newArrayList("a"), order);
+    assertEquals("", userErrors.toString());
+  }
+
+  public void testExceptionIsReportedToUser() throws Exception {
+    stages.add("Broken", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        throw new IllegalStateException();
+      }
+    });
+    stages.add("b", new RecordingStage("b", true), "Broken");
+    assertFalse(stages.run(executor));
+    assertTrue(order.isEmpty());
+    assertEquals("Error in Broken\n", userErrors.toString());
+  }
+
+  public void testConcurrentStageOutputIsNotInterleaved() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final PrintStream out = stages.bufferStageOutput(output);
+    // Each stage writes a line, then waits until the other one has written its line too.
+    final CountDownLatch bothWrote = new CountDownLatch(2);
+    stages.add("a", new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        out.println("a1");
+        bothWrote.countDown();
+        bothWrote.await(10, TimeUnit.SECONDS);
+        out.println("a2");
+        return true;
+      }
+    });
+    stages.add("b", new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        out.println("b1");
+        bothWrote.countDown();
+        bothWrote.await(10, TimeUnit.SECONDS);
+        out.println("b2");
+        return true;
+      }
+    });
+    assertTrue(stages.run(executor));
+    out.println("done");
+
+    String text = output.toString();
+    assertTrue(text, text.equals("a1\na2\nb1\nb2\ndone\n")
+        || text.equals("b1\nb2\na1\na2\ndone\n"));
+  }
+
+  public void testDependencyMustBeAddedFirst() throws Exception {
+    try {
+      stages.add("b", new RecordingStage("b", true), "a");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private class RecordingStage implements Callable<Boolean> {
+    private final String name;
+    private final boolean result;
+
+    RecordingStage(String name, boolean result) {
+      this.name = name;
+      this.result = result;
+    }
+
+    @Override
+    public Boolean call() {
+      order.add(name);
+      return result;
+    }
+  }
+}
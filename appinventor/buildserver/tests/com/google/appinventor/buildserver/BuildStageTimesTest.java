@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildStageTimes class.
+ *
+ */
+public class BuildStageTimesTest extends TestCase {
+
+  public void testRecordsElapsedTimeOfStage() {
+    LatencySamples dxTimes = BuildStageTimes.get(BuildStageTimes.Stage.DX);
+    long dxCount = dxTimes.getCount();
+    long aaptCount = BuildStageTimes.get(BuildStageTimes.Stage.AAPT).getCount();
+
+    long start = System.currentTimeMillis() - 5000;
+    BuildStageTimes.record(BuildStageTimes.Stage.DX, start);
+
+    assertEquals(dxCount + 1, dxTimes.getCount());
+    assertTrue(dxTimes.getMaxMillis() >= 5000);
+    // Other stages are unaffected.
+    assertEquals(aaptCount, BuildStageTimes.get(BuildStageTimes.Stage.AAPT).getCount());
+  }
+
+  public void testReportsPercentilesOfStage() {
+    // The tests share the recorded times, so use a stage that no other test records.
+    LatencySamples yailTimes = BuildStageTimes.get(BuildStageTimes.Stage.YAIL);
+    assertEquals(0, yailTimes.getPercentile(50));
+
+    long now = System.currentTimeMillis();
+    for (int seconds = 1; seconds <= 100; seconds++) {
+      BuildStageTimes.record(BuildStageTimes.Stage.YAIL, now - seconds * 1000L);
+    }
+    assertEquals(100, yailTimes.getCount());
+    // Allow for the time that passes while recording.
+    assertTrue(Math.abs(yailTimes.getPercentile(50) - 50000) < 1000);
+    assertTrue(Math.abs(yailTimes.getPercentile(95) - 95000) < 1000);
+    assertTrue(yailTimes.getMaxMillis() >= 100000);
+  }
+
+  public void testEveryStageHasAName() {
+    for (BuildStageTimes.Stage stage : BuildStageTimes.Stage.values()) {
+      assertNotNull(BuildStageTimes.get(stage));
+      assertFalse(stage.getName().isEmpty());
+    }
+    assertEquals("zip-output", BuildStageTimes.Stage.ZIP_OUTPUT.getName());
+  }
+}
@@ -0,0 +1,82 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ChildProcessScheduler class.
+ *
+ */
+public class ChildProcessSchedulerTest extends TestCase {
+  public void testProcessesRunInParallelWithinBudget() throws Exception {
+    ChildProcessScheduler scheduler = new ChildProcessScheduler(4096);
+    scheduler.acquire(2048);
+    scheduler.acquire(2048);
+    assertEquals(2, scheduler.getRunningCount());
+    assertEquals(0, scheduler.getAvailableMb());
+
+    // A third process has to wait until one of the others finishes.
+    Thread third = startAcquire(scheduler, 2048);
+    waitUntilWaiting(scheduler, 1);
+    assertEquals(2, scheduler.getRunningCount());
+    scheduler.release(2048);
+    third.join(10000);
+    assertFalse(third.isAlive());
+    assertEquals(2, scheduler.getRunningCount());
+    assertEquals(3, scheduler.getAdmittedCount());
+  }
+
+  public void testLargeRequestIsNotStarved() throws Exception {
+    ChildProcessScheduler scheduler = new ChildProcessScheduler(4096);
+    scheduler.acquire(2048);
+
+    // The large request is first in line, so the small one that comes after it must wait even
+    // though it would fit in the remaining budget.
+    Thread large = startAcquire(scheduler, 4096);
+    waitUntilWaiting(scheduler, 1);
+    Thread small = startAcquire(scheduler, 1024);
+    waitUntilWaiting(scheduler, 2);
+    assertEquals(1, scheduler.getRunningCount());
+
+    scheduler.release(2048);
+    large.join(10000);
+    assertFalse(large.isAlive());
+    assertTrue(small.isAlive());
+    scheduler.release(4096);
+    small.join(10000);
+    assertFalse(small.isAlive());
+  }
+
+  public void testRequestLargerThanBudgetRunsAlone() throws Exception {
+    ChildProcessScheduler scheduler = new ChildProcessScheduler(1);
+    scheduler.acquire(2048);
+    Thread second = startAcquire(scheduler, 2048);
+    waitUntilWaiting(scheduler, 1);
+    scheduler.release(2048);
+    second.join(10000);
+    assertFalse(second.isAlive());
+    assertEquals(0, scheduler.getAvailableMb());
+  }
+
+  private static Thread startAcquire(final ChildProcessScheduler scheduler, final int ramMb) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        scheduler.acquire(ramMb);
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  private static void waitUntilWaiting(ChildProcessScheduler scheduler, int count)
+      throws InterruptedException {
+    for (int i = 0; i < 1000 && scheduler.getWaitingCount() < count; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, scheduler.getWaitingCount());
+  }
+}
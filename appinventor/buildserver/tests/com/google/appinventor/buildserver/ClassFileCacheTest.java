@@ -0,0 +1,146 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests ClassFileCache class.
+ *
+ */
+public class ClassFileCacheTest extends TestCase {
+  private static final String RUNTIME_MODULE = "com.google.youngandroid.runtime";
+
+  private File tempDir;
+  private File runtime;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    runtime = new File(tempDir, "runtime.scm");
+    Files.write("(module-name " + RUNTIME_MODULE + ")\n" +
+        "(define (twice x) (* x 2))\n" +
+        "(define (adder n) (lambda (x) (+ x n)))\n", runtime, Charsets.UTF_8);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testModuleNames() throws Exception {
+    File source = write("src/Screen1.yail", "(define (four) (twice 2))");
+    assertEquals("test.Screen1", ClassFileCache.getModuleName(source, "test."));
+    assertEquals(RUNTIME_MODULE, ClassFileCache.getModuleName(runtime, "test."));
+  }
+
+  public void testModuleNameOfYailRuntime() throws Exception {
+    File yailRuntime = new File(tempDir, "yailruntime.scm");
+    Files.write(Resources.toByteArray(Compiler.class.getResource(Compiler.YAIL_RUNTIME)),
+        yailRuntime);
+    assertEquals(RUNTIME_MODULE, ClassFileCache.getModuleName(yailRuntime, "test."));
+  }
+
+  public void testKeyDependsOnSourceRuntimeAndVersion() throws Exception {
+    File source = write("src/Screen1.yail", "(define (four) (twice 2))");
+    String key = ClassFileCache.computeKey(source, "test.Screen1", runtime, "v1");
+    assertEquals(key, ClassFileCache.computeKey(source, "test.Screen1", runtime, "v1"));
+    assertFalse(key.equals(ClassFileCache.computeKey(source, "test.Screen1", runtime, "v2")));
+    assertFalse(key.equals(ClassFileCache.computeKey(source, "other.Screen1", runtime, "v1")));
+
+    File changedRuntime = write("runtime2/runtime.scm", "(define (twice x) (+ x x))");
+    assertFalse(key.equals(
+        ClassFileCache.computeKey(source, "test.Screen1", changedRuntime, "v1")));
+
+    File changedSource = write("src2/Screen1.yail", "(define (four) (twice 3))");
+    assertFalse(key.equals(
+        ClassFileCache.computeKey(changedSource, "test.Screen1", runtime, "v1")));
+  }
+
+  public void testGetClassFilesOfModule() throws Exception {
+    File classesDir = new File(tempDir, "classes");
+    write("classes/test/Screen1.class", "a");
+    write("classes/test/Screen1$frame.class", "b");
+    write("classes/test/Screen10.class", "c");
+    write("classes/com/google/youngandroid/runtime.class", "d");
+
+    List<String> classFiles = ClassFileCache.getClassFiles(classesDir, "test.Screen1");
+    assertEquals(ImmutableSet.of("test/Screen1.class", "test/Screen1$frame.class"),
+        Sets.newHashSet(classFiles));
+    assertEquals(ImmutableSet.of("com/google/youngandroid/runtime.class"),
+        Sets.newHashSet(ClassFileCache.getClassFiles(classesDir, RUNTIME_MODULE)));
+    assertEquals(ImmutableSet.of("test/Screen1.class", "test/Screen1$frame.class",
+        "test/Screen10.class", "com/google/youngandroid/runtime.class"),
+        ClassFileCache.listFiles(classesDir));
+  }
+
+  public void testAllClassesCompiledByKawaAreAttributed() throws Exception {
+    File source = write("src/Screen1.yail", "(define (identity) (lambda (x) x))");
+    File classesDir = new File(tempDir, "classes");
+    classesDir.mkdirs();
+    String[] kawaCommandLine = {
+        System.getProperty("java.home") + "/bin/java",
+        "-cp", System.getProperty("java.class.path"),
+        "kawa.repl",
+        "-f", runtime.getAbsolutePath(),
+        "-d", classesDir.getAbsolutePath(),
+        "-P", "test.",
+        "-C", source.getAbsolutePath(), runtime.getAbsolutePath()
+    };
+    ByteArrayOutputStream kawaOutput = new ByteArrayOutputStream();
+    assertTrue(kawaOutput.toString(), Execution.execute(null, kawaCommandLine,
+        new PrintStream(kawaOutput), new PrintStream(kawaOutput)));
+
+    Set<String> unattributed = ClassFileCache.listFiles(classesDir);
+    for (File file : new File[] { source, runtime }) {
+      List<String> classFiles = ClassFileCache.getClassFiles(classesDir,
+          ClassFileCache.getModuleName(file, "test."));
+      assertFalse(classFiles.isEmpty());
+      unattributed.removeAll(classFiles);
+    }
+    assertTrue(unattributed.toString(), unattributed.isEmpty());
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    ClassFileCache cache = new ClassFileCache(new File(tempDir, "cache"), 1024 * 1024);
+    File classesDir = new File(tempDir, "classes");
+    write("classes/test/Screen1.class", "a");
+    write("classes/test/Screen1$frame.class", "b");
+
+    assertFalse(cache.restore("key", new File(tempDir, "restored")));
+    cache.store("key", classesDir, ClassFileCache.getClassFiles(classesDir, "test.Screen1"));
+    assertEquals(1, cache.getEntryCount());
+
+    File restoredDir = new File(tempDir, "restored");
+    assertTrue(cache.restore("key", restoredDir));
+    assertEquals("a", Files.toString(new File(restoredDir, "test/Screen1.class"),
+        Charsets.UTF_8));
+    assertEquals("b", Files.toString(new File(restoredDir, "test/Screen1$frame.class"),
+        Charsets.UTF_8));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  private File write(String path, String contents) throws Exception {
+    File file = new File(tempDir, path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
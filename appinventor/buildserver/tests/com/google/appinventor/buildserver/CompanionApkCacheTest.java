@@ -0,0 +1,134 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSSignedData;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests CompanionApkCache class.
+ *
+ */
+public class CompanionApkCacheTest extends TestCase {
+  private static final String KEYSTORE = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+
+  private File tempDir;
+  private KeystorePool keystorePool;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    keystorePool = new KeystorePool(0, 0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testKeyIgnoresKeystore() throws Exception {
+    ZipFile zip1 = createZip("a.zip", "src/Screen1.scm", "scm", KEYSTORE, "key1");
+    ZipFile zip2 = createZip("b.zip", "src/Screen1.scm", "scm", KEYSTORE, "key2");
+    ZipFile zip3 = createZip("c.zip", "src/Screen1.scm", "scm");
+    String key = CompanionApkCache.computeKey(zip1, KEYSTORE, true, false, "v1");
+    assertEquals(key, CompanionApkCache.computeKey(zip2, KEYSTORE, true, false, "v1"));
+    assertEquals(key, CompanionApkCache.computeKey(zip3, KEYSTORE, true, false, "v1"));
+    assertFalse(key.equals(CompanionApkCache.computeKey(zip1, KEYSTORE, false, true, "v1")));
+    assertFalse(key.equals(CompanionApkCache.computeKey(zip1, KEYSTORE, true, false, "v2")));
+  }
+
+  public void testCachedApkIsSignedForEachUser() throws Exception {
+    CompanionApkCache cache = new CompanionApkCache(new File(tempDir, "cache"), 1024 * 1024);
+    File apk = new File(tempDir, "built.apk");
+    ApkWriter apkWriter = ApkWriter.create(apk, createKeystore("first"),
+        KeystorePool.KEY_ALIAS, KeystorePool.KEYSTORE_PASSWORD);
+    try {
+      apkWriter.addFile(writeFile("classes.dex", "dex"), "classes.dex");
+    } finally {
+      apkWriter.close();
+    }
+
+    File signedApk = new File(tempDir, "signed.apk");
+    File keystore = createKeystore("second");
+    assertFalse(cache.getSigned("key", keystore, signedApk, tempDir));
+    cache.putUnsigned("key", apk, tempDir);
+    assertTrue(cache.getSigned("key", keystore, signedApk, tempDir));
+
+    ZipFile zipFile = new ZipFile(signedApk);
+    try {
+      assertEquals("dex", new String(read(zipFile, "classes.dex"), Charsets.UTF_8));
+      CMSSignedData signedData = new CMSSignedData(read(zipFile, "META-INF/CERT.RSA"));
+      X509CertificateHolder signer =
+          (X509CertificateHolder) signedData.getCertificates().getMatches(null).iterator().next();
+      assertEquals(getCertificate(keystore).getSerialNumber(), signer.getSerialNumber());
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private File createKeystore(String userName) throws Exception {
+    File keystore = new File(tempDir, userName + ".keystore");
+    keystorePool.createKeystore(userName, keystore);
+    return keystore;
+  }
+
+  private static X509Certificate getCertificate(File keystoreFile) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, KeystorePool.KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    return (X509Certificate) keyStore.getCertificate(KeystorePool.KEY_ALIAS);
+  }
+
+  private File writeFile(String name, String contents) throws Exception {
+    File file = new File(tempDir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private ZipFile createZip(String name, String... entryNamesAndContents) throws Exception {
+    File file = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (int i = 0; i < entryNamesAndContents.length; i += 2) {
+        out.putNextEntry(new ZipEntry(entryNamesAndContents[i]));
+        out.write(entryNamesAndContents[i + 1].getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return new ZipFile(file);
+  }
+
+  private static byte[] read(ZipFile zipFile, String name) throws Exception {
+    InputStream in = zipFile.getInputStream(zipFile.getEntry(name));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -20,12 +20,13 @@ public class CompilerTest extends TestCase {
   public void testGeneratePermissions() throws Exception {
     Set<String> noComponents = Sets.newHashSet();
     Compiler compiler = new Compiler(null, noComponents, System.out, System.err, System.err, false, false,
-                                     2048);
+                                     2048, new BuildProgress("test"));
     assertTrue("Permissions for no components not empty. (It should be empty!)",
         compiler.generatePermissions().isEmpty());
 
     Set<String> componentTypes = Sets.newHashSet("LocationSensor");
-    compiler = new Compiler(null, componentTypes, System.out, System.err, System.err, false, false, 2048);
+    compiler = new Compiler(null, componentTypes, System.out, System.err, System.err, false, false, 2048,
+                            new BuildProgress("test"));
     Set<String> permissions = compiler.generatePermissions();
     assertEquals(4, permissions.size());
     assertTrue(permissions.contains(
@@ -0,0 +1,185 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests DexCache class.
+ *
+ */
+public class DexCacheTest extends TestCase {
+  private File tempDir;
+  private File cacheDir;
+  private DexCache cache;
+
+  /**
+   * Stands in for DX: copies the library to the output, and fails for libraries named *.bad.
+   * The output and the library are the last two arguments.
+   */
+  public static class FakeDx {
+    public static void main(String[] args) throws IOException {
+      File output = new File(args[args.length - 2].substring("--output=".length()));
+      File library = new File(args[args.length - 1]);
+      if (library.getName().endsWith(".bad")) {
+        System.exit(1);
+      }
+      Files.copy(library, output);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    cacheDir = new File(tempDir, "cache");
+    cache = new DexCache(cacheDir, 1024 * 1024, "fingerprint");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testLibraryIsDexedOnce() throws Exception {
+    File library = createLibrary("kawa.jar", "kawa classes");
+
+    File dexFile = new File(tempDir, "first.dex");
+    assertTrue(cache.getDexFile(library.getAbsolutePath(), fakeDx(), dexFile,
+        System.out, System.err));
+    assertEquals("kawa classes", Files.toString(dexFile, Charsets.UTF_8));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    File cachedDexFile = new File(tempDir, "second.dex");
+    assertTrue(cache.getDexFile(library.getAbsolutePath(), fakeDx(), cachedDexFile,
+        System.out, System.err));
+    assertEquals("kawa classes", Files.toString(cachedDexFile, Charsets.UTF_8));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testCacheIsSharedByInstances() throws Exception {
+    File library = createLibrary("kawa.jar", "kawa classes");
+    File dexFile = new File(tempDir, "classes.dex");
+    cache.getDexFile(library.getAbsolutePath(), fakeDx(), dexFile, System.out, System.err);
+
+    DexCache otherCache = new DexCache(cacheDir, 1024 * 1024, "fingerprint");
+    assertTrue(otherCache.getDexFile(library.getAbsolutePath(), fakeDx(), dexFile,
+        System.out, System.err));
+    assertEquals(1, otherCache.getHitCount());
+  }
+
+  public void testNewBuildServerDexesAgain() throws Exception {
+    File library = createLibrary("kawa.jar", "kawa classes");
+    File dexFile = new File(tempDir, "classes.dex");
+    cache.getDexFile(library.getAbsolutePath(), fakeDx(), dexFile, System.out, System.err);
+
+    // A new build server may have a new dx.jar.
+    DexCache otherCache = new DexCache(cacheDir, 1024 * 1024, "other fingerprint");
+    assertFalse(otherCache.getDexFile(library.getAbsolutePath(), failingDx(), dexFile,
+        System.out, System.err));
+    assertEquals(1, otherCache.getMissCount());
+  }
+
+  public void testDifferentDxOptionsDexAgain() throws Exception {
+    File library = createLibrary("kawa.jar", "kawa classes");
+    File dexFile = new File(tempDir, "classes.dex");
+    cache.getDexFile(library.getAbsolutePath(), fakeDx(), dexFile, System.out, System.err);
+
+    List<String> otherDx = new ArrayList<String>(fakeDx());
+    otherDx.add("--no-optimize");
+    cache.getDexFile(library.getAbsolutePath(), otherDx, dexFile, System.out, System.err);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.getEntryCount());
+  }
+
+  public void testLibrariesWithDifferentContentsAreCachedSeparately() throws Exception {
+    File library1 = createLibrary("one.jar", "first");
+    File library2 = createLibrary("two.jar", "second");
+    File dexFile1 = new File(tempDir, "one.dex");
+    File dexFile2 = new File(tempDir, "two.dex");
+    cache.getDexFile(library1.getAbsolutePath(), fakeDx(), dexFile1, System.out, System.err);
+    cache.getDexFile(library2.getAbsolutePath(), fakeDx(), dexFile2, System.out, System.err);
+    assertEquals("first", Files.toString(dexFile1, Charsets.UTF_8));
+    assertEquals("second", Files.toString(dexFile2, Charsets.UTF_8));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.getEntryCount());
+  }
+
+  public void testFailedDexIsNotCached() throws Exception {
+    File library = createLibrary("broken.bad", "classes");
+    assertFalse(cache.getDexFile(library.getAbsolutePath(), fakeDx(),
+        new File(tempDir, "broken.dex"), System.out, System.err));
+    // No partial dex file is left behind.
+    assertEquals(0, cacheDir.list().length);
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testCacheIsBounded() throws Exception {
+    cache = new DexCache(cacheDir, 10, "fingerprint");
+    File dexFile = new File(tempDir, "classes.dex");
+    cache.getDexFile(createLibrary("one.jar", "12345678").getAbsolutePath(), fakeDx(), dexFile,
+        System.out, System.err);
+    cache.getDexFile(createLibrary("two.jar", "abcdefgh").getAbsolutePath(), fakeDx(), dexFile,
+        System.out, System.err);
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(1, cacheDir.list().length);
+  }
+
+  public void testMergeDexFiles() throws Exception {
+    String dxJar = Compiler.getResource("/files/dx.jar");
+    List<String> dx = ImmutableList.of(System.getProperty("java.home") + "/bin/java",
+        "-jar", dxJar, "--dex");
+    File jsonDex = new File(tempDir, "json.dex");
+    File args4jDex = new File(tempDir, "args4j.dex");
+    assertTrue(cache.getDexFile(codeSource(JSONObject.class), dx, jsonDex,
+        System.out, System.err));
+    assertTrue(cache.getDexFile(codeSource(CmdLineParser.class), dx, args4jDex,
+        System.out, System.err));
+
+    File merged = new File(tempDir, "classes.dex");
+    DexCache.mergeDexFiles(dxJar, merged, ImmutableList.of(jsonDex, args4jDex));
+    // Class descriptors are stored as plain strings in the dex string table.
+    String contents = new String(Files.toByteArray(merged), Charsets.ISO_8859_1);
+    assertTrue(contents.startsWith("dex\n"));
+    assertTrue(contents.contains("Lorg/json/JSONObject;"));
+    assertTrue(contents.contains("Lorg/kohsuke/args4j/CmdLineParser;"));
+  }
+
+  private File createLibrary(String name, String contents) throws IOException {
+    File library = new File(tempDir, name);
+    Files.write(contents, library, Charsets.UTF_8);
+    return library;
+  }
+
+  private static String codeSource(Class<?> cls) throws Exception {
+    return new File(cls.getProtectionDomain().getCodeSource().getLocation().toURI())
+        .getAbsolutePath();
+  }
+
+  private static List<String> fakeDx() {
+    return ImmutableList.of(System.getProperty("java.home") + "/bin/java",
+        "-cp", System.getProperty("java.class.path"), FakeDx.class.getName());
+  }
+
+  private static List<String> failingDx() {
+    return ImmutableList.of(System.getProperty("java.home") + "/bin/java", "-version-not-an-option");
+  }
+}
@@ -0,0 +1,117 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Tests KawaCompilerPool class.
+ *
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  private File tempDir;
+  private KawaCompilerPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    File runtime = new File(tempDir, "runtime.scm");
+    Files.write("(define (twice x) (* x 2))\n", runtime, Charsets.UTF_8);
+    // The test class path contains the Kawa runtime.
+    pool = new KawaCompilerPool(1, System.getProperty("java.class.path"),
+        runtime.getAbsolutePath(), 512);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pool.shutDown();
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testCompilesWithWarmDaemon() throws Exception {
+    File source = new File(tempDir, "Screen1.yail");
+    Files.write("(define (four) (twice 2))\n", source, Charsets.UTF_8);
+    File classesDir = new File(tempDir, "classes");
+    classesDir.mkdir();
+
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertEquals(KawaCompilerPool.Outcome.SUCCEEDED,
+        pool.compile(classesDir, "test.", ImmutableList.of(source.getAbsolutePath()),
+            System.out, new PrintStream(err)));
+    assertTrue(new File(classesDir, "test/Screen1.class").exists());
+
+    assertFalse(new File(classesDir, "test/runtime.class").exists());
+
+    // The daemon is reused for the next job, which also compiles the runtime.
+    File classesDir2 = new File(tempDir, "classes2");
+    classesDir2.mkdir();
+    assertEquals(KawaCompilerPool.Outcome.SUCCEEDED,
+        pool.compile(classesDir2, "test.", ImmutableList.of(source.getAbsolutePath(),
+            new File(tempDir, "runtime.scm").getAbsolutePath()),
+            System.out, new PrintStream(err)));
+    assertTrue(new File(classesDir2, "test/Screen1.class").exists());
+    assertTrue(new File(classesDir2, "test/runtime.class").exists());
+    assertEquals(1, pool.getStartedWorkerCount());
+  }
+
+  public void testReportsSourceErrors() throws Exception {
+    File source = new File(tempDir, "Screen1.yail");
+    Files.write("(define (four) (twice 2)\n", source, Charsets.UTF_8);
+    File classesDir = new File(tempDir, "classes");
+    classesDir.mkdir();
+
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertEquals(KawaCompilerPool.Outcome.FAILED,
+        pool.compile(classesDir, "test.", ImmutableList.of(source.getAbsolutePath()),
+            System.out, new PrintStream(err)));
+    assertTrue(err.toString().contains("Screen1.yail:"));
+  }
+
+  public void testUnavailableWhenNoDaemonStarts() throws Exception {
+    // The daemon can't load a missing runtime, so it never becomes ready.
+    KawaCompilerPool brokenPool = new KawaCompilerPool(1, System.getProperty("java.class.path"),
+        new File(tempDir, "missing.scm").getAbsolutePath(), 512, 100);
+    File source = new File(tempDir, "Screen1.yail");
+    Files.write("(define (four) (* 2 2))\n", source, Charsets.UTF_8);
+
+    assertEquals(KawaCompilerPool.Outcome.UNAVAILABLE,
+        brokenPool.compile(tempDir, "test.", ImmutableList.of(source.getAbsolutePath()),
+            System.out, new PrintStream(new ByteArrayOutputStream())));
+    assertEquals(1, brokenPool.getUnavailableJobCount());
+    assertEquals(0, brokenPool.getStartedWorkerCount());
+
+    // Shutting the pool down stops the retries.
+    brokenPool.shutDown();
+    for (int i = 0; i < 100 && brokenPool.getStartingWorkerCount() > 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(0, brokenPool.getStartingWorkerCount());
+  }
+
+  public void testShutDownStopsDaemons() throws Exception {
+    File source = new File(tempDir, "Screen1.yail");
+    Files.write("(define (four) (twice 2))\n", source, Charsets.UTF_8);
+    File classesDir = new File(tempDir, "classes");
+    classesDir.mkdir();
+    assertEquals(KawaCompilerPool.Outcome.SUCCEEDED,
+        pool.compile(classesDir, "test.", ImmutableList.of(source.getAbsolutePath()),
+            System.out, new PrintStream(new ByteArrayOutputStream())));
+    assertEquals(1, pool.getIdleWorkerCount());
+
+    pool.shutDown();
+    assertEquals(0, pool.getIdleWorkerCount());
+    assertEquals(0, pool.getStartingWorkerCount());
+  }
+}
@@ -0,0 +1,95 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+/**
+ * Tests KeystorePool class.
+ *
+ */
+public class KeystorePoolTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testKeystoreFromPool() throws Exception {
+    KeystorePool pool = new KeystorePool(2, 1);
+    waitUntilAvailable(pool, 2);
+
+    File keystoreFile = new File(tempDir, "android.keystore");
+    pool.createKeystore("Ben \"Bitdiddle\", Jr.", keystoreFile);
+    assertEquals(1, pool.getKeystoresFromPoolCount());
+    assertEquals(0, pool.getKeystoresGeneratedOnDemandCount());
+
+    KeyStore keyStore = loadKeystore(keystoreFile);
+    PrivateKey key = (PrivateKey) keyStore.getKey(KeystorePool.KEY_ALIAS,
+        KeystorePool.KEYSTORE_PASSWORD.toCharArray());
+    assertEquals("RSA", key.getAlgorithm());
+    X509Certificate certificate =
+        (X509Certificate) keyStore.getCertificate(KeystorePool.KEY_ALIAS);
+    certificate.verify(certificate.getPublicKey());
+    assertEquals("CN=Ben \\\"Bitdiddle\\\"\\, Jr.,O=AppInventor for Android,C=US",
+        certificate.getSubjectX500Principal().getName());
+    assertTrue(certificate.getNotAfter().getTime() - System.currentTimeMillis() >
+        9999L * 24 * 60 * 60 * 1000);
+  }
+
+  public void testPoolIsFilledBelowLowWaterMark() throws Exception {
+    KeystorePool pool = new KeystorePool(2, 2);
+    waitUntilAvailable(pool, 2);
+    pool.createKeystore("user", new File(tempDir, "1.keystore"));
+    waitUntilAvailable(pool, 2);
+    assertEquals(3, pool.getKeyPairsGeneratedCount());
+  }
+
+  public void testEmptyPoolGeneratesOnDemand() throws Exception {
+    KeystorePool pool = new KeystorePool(0, 0);
+    File keystoreFile = new File(tempDir, "android.keystore");
+    pool.createKeystore("user", keystoreFile);
+    assertEquals(0, pool.getKeystoresFromPoolCount());
+    assertEquals(1, pool.getKeystoresGeneratedOnDemandCount());
+    assertEquals(0, pool.getAvailableCount());
+    assertNotNull(loadKeystore(keystoreFile).getCertificate(KeystorePool.KEY_ALIAS));
+  }
+
+  private static void waitUntilAvailable(KeystorePool pool, int count) throws Exception {
+    long deadline = System.currentTimeMillis() + 60000;
+    while (pool.getAvailableCount() < count) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static KeyStore loadKeystore(File keystoreFile) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, KeystorePool.KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+}
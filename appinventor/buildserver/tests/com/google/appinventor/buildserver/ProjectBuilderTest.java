@@ -0,0 +1,84 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests ProjectBuilder class.
+ *
+ */
+public class ProjectBuilderTest extends TestCase {
+  private File tempDir;
+  private File projectRoot;
+  private ZipFile inputZip;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    projectRoot = new File(tempDir, "project");
+    projectRoot.mkdir();
+    File zip = new File(tempDir, "project.zip");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      out.putNextEntry(new ZipEntry("youngandroidproject/project.properties"));
+      out.write(Strings.repeat("a", 600).getBytes(Charsets.UTF_8));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("src/test/Screen1.scm"));
+      out.write(Strings.repeat("b", 600).getBytes(Charsets.UTF_8));
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    inputZip = new ZipFile(zip);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ProjectBuilder.setWorkspace(new File(System.getProperty("java.io.tmpdir")), 0);
+    inputZip.close();
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testExtractWithoutQuota() throws Exception {
+    ProjectBuilder.setWorkspace(tempDir, 0);
+    List<String> files = ProjectBuilder.extractProjectFiles(inputZip, projectRoot);
+    assertEquals(2, files.size());
+    assertEquals(600, new File(projectRoot, "youngandroidproject/project.properties").length());
+    assertEquals(600, new File(projectRoot, "src/test/Screen1.scm").length());
+  }
+
+  public void testExtractWithinQuota() throws Exception {
+    ProjectBuilder.setWorkspace(tempDir, 1200);
+    List<String> files = ProjectBuilder.extractProjectFiles(inputZip, projectRoot);
+    assertEquals(2, files.size());
+    assertEquals(600, new File(projectRoot, "src/test/Screen1.scm").length());
+  }
+
+  public void testExtractOverQuota() throws Exception {
+    ProjectBuilder.setWorkspace(tempDir, 1000);
+    try {
+      ProjectBuilder.extractProjectFiles(inputZip, projectRoot);
+      fail();
+    } catch (ProjectBuilder.ProjectTooLargeException e) {
+      // expected
+    }
+    // No more than one byte beyond the quota was extracted.
+    assertEquals(401, new File(projectRoot, "src/test/Screen1.scm").length());
+  }
+}
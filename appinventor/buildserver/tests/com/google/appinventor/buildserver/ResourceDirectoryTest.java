@@ -0,0 +1,82 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+
+/**
+ * Tests ResourceDirectory class.
+ *
+ */
+public class ResourceDirectoryTest extends TestCase {
+  // A resource in a directory and a resource in a jar.
+  private static final String CLASS_RESOURCE = "/com/google/appinventor/buildserver/Compiler.class";
+  private static final String JAR_RESOURCE = "/junit/framework/TestCase.class";
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testResourcesAreExtractedOnce() throws Exception {
+    ResourceDirectory resourceDirectory = new ResourceDirectory(tempDir);
+    for (String resourcePath : Arrays.asList(CLASS_RESOURCE, JAR_RESOURCE)) {
+      File file = resourceDirectory.get(resourcePath);
+      assertTrue(Arrays.equals(
+          Resources.toByteArray(ResourceDirectoryTest.class.getResource(resourcePath)),
+          Files.toByteArray(file)));
+      assertSame(file, resourceDirectory.get(resourcePath));
+    }
+    assertEquals(2, resourceDirectory.getExtractedCount());
+    assertEquals(0, resourceDirectory.getReusedCount());
+  }
+
+  public void testResourcesAreReusedAcrossRestarts() throws Exception {
+    File file = new ResourceDirectory(tempDir).get(JAR_RESOURCE);
+    ResourceDirectory resourceDirectory = new ResourceDirectory(tempDir);
+    assertEquals(file, resourceDirectory.get(JAR_RESOURCE));
+    assertEquals(0, resourceDirectory.getExtractedCount());
+    assertEquals(1, resourceDirectory.getReusedCount());
+  }
+
+  public void testPrewarming() throws Exception {
+    ResourceDirectory resourceDirectory = new ResourceDirectory(tempDir);
+    assertTrue(resourceDirectory.isReady());
+    resourceDirectory.startPrewarming(
+        ImmutableList.of(CLASS_RESOURCE, "/files/missing.jar", JAR_RESOURCE));
+    long deadline = System.currentTimeMillis() + 60000;
+    while (!resourceDirectory.isReady()) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    assertEquals(2, resourceDirectory.getExtractedCount());
+  }
+
+  public void testMissingResource() throws Exception {
+    try {
+      new ResourceDirectory(tempDir).get("/files/missing.jar");
+      fail();
+    } catch (FileNotFoundException e) {
+      // Expected.
+    }
+  }
+}
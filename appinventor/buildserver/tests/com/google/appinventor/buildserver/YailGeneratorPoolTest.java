@@ -0,0 +1,173 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the MIT License https://raw.github.com/mit-cml/app-inventor/master/mitlicense.txt
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutionException;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Tests YailGeneratorPool class.
+ *
+ */
+public class YailGeneratorPoolTest extends TestCase {
+  // A stand-in for YailGenerator. Each generator counts its jobs in a static field, like the
+  // codeblocks classes keep their state, so the results show which class loader did the job.
+  private static final String FAKE_YAIL_GENERATOR =
+      "package com.google.appinventor.yailgenerator;\n" +
+      "public class YailGenerator {\n" +
+      "  private static int jobs;\n" +
+      "  public static String generateYail(String form, String blocks, String yailPath)\n" +
+      "      throws openblocks.yacodeblocks.YailGenerationException {\n" +
+      "    if (blocks.equals(\"empty socket\")) {\n" +
+      "      throw new openblocks.yacodeblocks.YailGenerationException(\"Empty socket\");\n" +
+      "    }\n" +
+      "    if (blocks.equals(\"crash\")) {\n" +
+      "      throw new IllegalStateException(\"crash\");\n" +
+      "    }\n" +
+      "    if (blocks.equals(\"noisy\")) {\n" +
+      "      System.out.println(\"codeblocks output\");\n" +
+      "      System.err.println(\"codeblocks error\");\n" +
+      "    }\n" +
+      "    jobs++;\n" +
+      "    return form + \" \" + blocks + \" \" + jobs;\n" +
+      "  }\n" +
+      "}\n";
+  private static final String FAKE_YAIL_GENERATION_EXCEPTION =
+      "package openblocks.yacodeblocks;\n" +
+      "public class YailGenerationException extends Exception {\n" +
+      "  public YailGenerationException(String message) {\n" +
+      "    super(message);\n" +
+      "  }\n" +
+      "}\n";
+
+  private File tempDir;
+  private File yailGeneratorJar;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    yailGeneratorJar = createYailGeneratorJar();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testGeneratorIsReused() throws Exception {
+    YailGeneratorPool pool = new YailGeneratorPool(yailGeneratorJar, 1);
+    assertEquals("form blocks 1", pool.submit("form", "blocks", "Screen1.yail").get());
+    assertEquals("form blocks 2", pool.submit("form", "blocks", "Screen1.yail").get());
+    assertEquals(1, pool.getLoadedGeneratorCount());
+    assertEquals(2, pool.getCompletedJobCount());
+  }
+
+  public void testReportsErrorsInBlocks() throws Exception {
+    YailGeneratorPool pool = new YailGeneratorPool(yailGeneratorJar, 1);
+    try {
+      pool.submit("form", "empty socket", "Screen1.yail").get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof YailGeneratorPool.GenerationException);
+      assertEquals("Empty socket", e.getCause().getMessage());
+    }
+    // An error in the blocks doesn't harm the generator.
+    assertEquals("form blocks 1", pool.submit("form", "blocks", "Screen1.yail").get());
+    assertEquals(1, pool.getLoadedGeneratorCount());
+  }
+
+  public void testGeneratorIsReplacedAfterFailure() throws Exception {
+    YailGeneratorPool pool = new YailGeneratorPool(yailGeneratorJar, 1);
+    assertEquals("form blocks 1", pool.submit("form", "blocks", "Screen1.yail").get());
+    try {
+      pool.submit("form", "crash", "Screen1.yail").get();
+      fail();
+    } catch (ExecutionException e) {
+      assertFalse(e.getCause() instanceof YailGeneratorPool.GenerationException);
+    }
+    // The next job runs on a newly loaded generator.
+    assertEquals("form blocks 1", pool.submit("form", "blocks", "Screen1.yail").get());
+    assertEquals(2, pool.getLoadedGeneratorCount());
+    assertEquals(3, pool.getCompletedJobCount());
+  }
+
+  public void testGeneratorOutputIsCaptured() throws Exception {
+    PrintStream savedOut = System.out;
+    PrintStream savedErr = System.err;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out, true));
+    System.setErr(new PrintStream(err, true));
+    try {
+      YailGeneratorPool pool = new YailGeneratorPool(yailGeneratorJar, 1);
+      assertEquals("form noisy 1", pool.submit("form", "noisy", "Screen1.yail").get());
+      System.out.println("build server output");
+    } finally {
+      System.setOut(savedOut);
+      System.setErr(savedErr);
+    }
+    // Only output from outside the generator reaches the original streams.
+    assertEquals("build server output\n", out.toString());
+    assertEquals("", err.toString());
+  }
+
+  public void testRejectsJarWithoutGenerator() throws Exception {
+    File emptyJar = new File(tempDir, "Empty.jar");
+    new JarOutputStream(new FileOutputStream(emptyJar)).close();
+    try {
+      new YailGeneratorPool(emptyJar, 1);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private File createYailGeneratorJar() throws IOException {
+    File sourceDir = new File(tempDir, "src");
+    File classesDir = new File(tempDir, "classes");
+    classesDir.mkdirs();
+    File generatorSource = new File(sourceDir, "YailGenerator.java");
+    File exceptionSource = new File(sourceDir, "YailGenerationException.java");
+    Files.createParentDirs(generatorSource);
+    Files.write(FAKE_YAIL_GENERATOR, generatorSource, Charsets.UTF_8);
+    Files.write(FAKE_YAIL_GENERATION_EXCEPTION, exceptionSource, Charsets.UTF_8);
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0, javac.run(null, null, null, "-proc:none", "-d", classesDir.getAbsolutePath(),
+        generatorSource.getAbsolutePath(), exceptionSource.getAbsolutePath()));
+
+    File jar = new File(tempDir, "YailGenerator.jar");
+    JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      String[] classFiles = {
+          "com/google/appinventor/yailgenerator/YailGenerator.class",
+          "openblocks/yacodeblocks/YailGenerationException.class"
+      };
+      for (String classFile : classFiles) {
+        jarOutputStream.putNextEntry(new ZipEntry(classFile));
+        Files.copy(new File(classesDir, classFile), jarOutputStream);
+        jarOutputStream.closeEntry();
+      }
+    } finally {
+      jarOutputStream.close();
+    }
+    return jar;
+  }
+}